@@ -1,15 +1,29 @@
 package com.oracle.ukps.wls.logging;
 
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
+import javax.management.ObjectName;
+
 import weblogic.logging.NonCatalogLogger;
 
-public class WebLogicLoggingBridgeHandler extends Handler {
+public class WebLogicLoggingBridgeHandler extends Handler implements WebLogicLoggingBridgeHandlerMBean {
 	
 	private NonCatalogLogger logger;
 	
+	/** Registered name of this handler's counters, null if not registered **/
+	private ObjectName objectName;
+	
+	private final AtomicLong traceCount		= new AtomicLong();
+	private final AtomicLong debugCount		= new AtomicLong();
+	private final AtomicLong infoCount		= new AtomicLong();
+	private final AtomicLong warningCount	= new AtomicLong();
+	private final AtomicLong criticalCount	= new AtomicLong();
+	private final AtomicLong unmappedCount	= new AtomicLong();
+	
 	public WebLogicLoggingBridgeHandler() {
 		this("JAVA_LOGGING_BRIDGE");
 	}
@@ -17,10 +31,28 @@ public class WebLogicLoggingBridgeHandler extends Handler {
 	public WebLogicLoggingBridgeHandler(String name) {
 		System.err.println("Creating WebLogicServerLogHandler");
 		logger = new NonCatalogLogger(name);
+		
+		// Counters are published so that they can be scraped as metrics
+		try {
+			objectName = new ObjectName("com.oracle.ukps.wls.logging:type=WebLogicLoggingBridgeHandler,name="
+					+ ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		} catch (Exception e) {
+			System.err.println("Unable to register WebLogicServerLogHandler counters: " + e);
+			objectName = null;
+		}
 	}
 
 	@Override
 	public void close() throws SecurityException {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				System.err.println("Unable to unregister WebLogicServerLogHandler counters: " + e);
+			}
+			objectName = null;
+		}
 	}
 
 	@Override
@@ -32,38 +64,68 @@ public class WebLogicLoggingBridgeHandler extends Handler {
 	public void publish(LogRecord record) {
 		
 		if (record.getLevel() == Level.FINER || record.getLevel() == Level.FINEST) {
+			traceCount.incrementAndGet();
 			if (record.getThrown() == null) {
 				logger.trace(record.getMessage());
 			} else {
 				logger.trace(record.getMessage(), record.getThrown());
 			}
 		} else if (record.getLevel() == Level.FINE || record.getLevel() == Level.CONFIG) {
+			debugCount.incrementAndGet();
 			if (record.getThrown() == null) {
 				logger.debug(record.getMessage());
 			} else {
 				logger.debug(record.getMessage(), record.getThrown());
 			}
 		} else if (record.getLevel() == Level.INFO) {
+			infoCount.incrementAndGet();
 			if (record.getThrown() == null) {
 				logger.info(record.getMessage());
 			} else {
 				logger.info(record.getMessage(), record.getThrown());
 			}
 		} else if (record.getLevel() == Level.WARNING) {
+			warningCount.incrementAndGet();
 			if (record.getThrown() == null) {
 				logger.warning(record.getMessage());
 			} else {
 				logger.warning(record.getMessage(), record.getThrown());
 			}
 		} else if (record.getLevel() == Level.SEVERE) {
+			criticalCount.incrementAndGet();
 			if (record.getThrown() == null) {
 				logger.critical(record.getMessage());
 			} else {
 				logger.critical(record.getMessage(), record.getThrown());
 			}
 		} else {
+			unmappedCount.incrementAndGet();
 			throw new IllegalArgumentException("Level of message not mapped: " + record.getLevel());
 		}
 	}
+	
+	public long getTraceCount() {
+		return traceCount.get();
+	}
+	
+	public long getDebugCount() {
+		return debugCount.get();
+	}
+	
+	public long getInfoCount() {
+		return infoCount.get();
+	}
+	
+	public long getWarningCount() {
+		return warningCount.get();
+	}
+	
+	public long getCriticalCount() {
+		return criticalCount.get();
+	}
+	
+	public long getUnmappedCount() {
+		return unmappedCount.get();
+	}
 
 }
@@ -0,0 +1,26 @@
+package com.oracle.ukps.wls.logging;
+
+/**
+ * Counts of the records published by a {@link WebLogicLoggingBridgeHandler},
+ * by the WebLogic level they were logged at
+ */
+
+public interface WebLogicLoggingBridgeHandlerMBean {
+
+	public long getTraceCount();
+
+	public long getDebugCount();
+
+	public long getInfoCount();
+
+	public long getWarningCount();
+
+	public long getCriticalCount();
+
+	/**
+	 * @return	The number of records whose level could not be mapped
+	 */
+
+	public long getUnmappedCount();
+
+}
@@ -0,0 +1,105 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.benchmarks;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheSource;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheUtility;
+
+/**
+ * Compares the throughput of getXml on a few hot keys from many threads with
+ * and without the per-thread (L0) cache
+ *
+ * <pre>
+ * java com.oracle.uk.ocs.osbutil.xmlcache.benchmarks.XmlCacheUtilityL0Benchmark [threads] [keys] [millis]
+ * </pre>
+ */
+
+public class XmlCacheUtilityL0Benchmark {
+
+	private int threads;
+
+	private int keys;
+
+	private long duration;
+
+	public XmlCacheUtilityL0Benchmark(int threads, int keys, long duration) {
+		this.threads = threads;
+		this.keys = keys;
+		this.duration = duration;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int keys = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		long duration = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+		XmlCacheUtilityL0Benchmark benchmark = new XmlCacheUtilityL0Benchmark(threads, keys, duration);
+
+		// The first run of each warms up the JIT
+		benchmark.run(0);
+		long shared = benchmark.run(0);
+		benchmark.run(keys);
+		long local = benchmark.run(keys);
+		System.out.println("L0 benchmark, " + threads + " threads, " + keys + " keys: shared "
+				+ shared + " gets/s, per-thread " + local + " gets/s ("
+				+ (shared > 0 ? (100 * local / shared) : 0) + "%)");
+	}
+
+	private long run(int l0Size) throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_STATS, "false");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_EXPIRY, "600000");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L0_SIZE, String.valueOf(l0Size));
+		final XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new XmlCacheSource() {
+			public XmlObject readSource(String key) {
+				try {
+					return XmlObject.Factory.parse("<" + key + "/>");
+				} catch (XmlException e) {
+					return null;
+				}
+			}
+			public void configure(Properties configuration, String base) {
+			}
+		});
+		for (int i = 0; i < keys; i++) {
+			cache.getXml("key" + i);
+		}
+
+		final AtomicLong total = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long end = System.currentTimeMillis() + duration;
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					long count = 0;
+					try {
+						start.await();
+						while (System.currentTimeMillis() < end) {
+							for (int i = 0; i < keys; i++) {
+								cache.getXml("key" + i);
+							}
+							count += keys;
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						total.addAndGet(count);
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+		cache.shutdown();
+		return total.get() * 1000 / duration;
+	}
+
+}
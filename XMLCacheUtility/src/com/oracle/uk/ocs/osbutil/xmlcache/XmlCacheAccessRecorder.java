@@ -0,0 +1,309 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Records the keys requested from a cache to a trace file, for replay by
+ * {@link XmlCacheSimulator}
+ *
+ * <p>Each request is written as a line holding the time in milliseconds and
+ * the key, separated by a tab. A request that loaded its document from a
+ * source is followed by a line that also holds, after a further tab, the
+ * size in bytes of the document loaded, so that the simulator can replay
+ * the real sizes of the documents. Backslashes, tabs, newlines and carriage
+ * returns in keys are escaped as <code>\\</code>, <code>\t</code>,
+ * <code>\n</code> and <code>\r</code>. Requests are handed to a background
+ * thread through bounded queues, so that recording never blocks a caller and
+ * never does I/O on the caller's thread. The queues are striped by thread so
+ * that callers on different threads rarely share a lock. When a queue is full
+ * the request is dropped and counted rather than delaying the caller. Each
+ * batch of requests taken from the queues is written in time order.</p>
+ *
+ * <h2>Configuration</h2>
+ *
+ * <p>The XmlCacheUtility records every call to getXml, and the size of every
+ * document it loads from a source, when <code>cache.record.file</code> is set.
+ * Documents whose source does not give their size are serialized to measure
+ * them.</p>
+ *
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.record.file</td>
+ *         <td>File the trace is written to.</td>
+ *         <td>&nbsp;</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.record.buffer</td>
+ *         <td>The number of requests that can wait to be recorded before
+ *         further requests are dropped.</td>
+ *         <td>65536</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ */
+
+public class XmlCacheAccessRecorder {
+
+	private static Logger logger = Logger.getLogger(XmlCacheAccessRecorder.class.getName());
+
+	/** Milliseconds the writer waits when there is nothing to write **/
+	private static final long WAIT = 100;
+
+	private static final Comparator <Access> BY_TIME = new Comparator <Access> () {
+		public int compare(Access a, Access b) {
+			return a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+		}
+	};
+
+	private File file;
+
+	/** Queues of waiting requests, a power of two of them, chosen by thread **/
+	private List <BlockingQueue <Access>> stripes;
+	private AtomicLong recorded = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private volatile boolean closed = false;
+	private Thread writer;
+
+	/**
+	 * Start recording, appending to the trace file
+	 *
+	 * @param file		The trace file
+	 * @param capacity	The number of requests that can wait to be written,
+	 * shared between the stripes
+	 * @throws IOException	If the file cannot be opened
+	 */
+
+	public XmlCacheAccessRecorder(File file, int capacity) throws IOException {
+		this.file = file;
+		int count = Integer.highestOneBit(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), capacity)));
+		stripes = new ArrayList <BlockingQueue <Access>> (count);
+		for (int i = 0; i < count; i++) {
+			stripes.add(new ArrayBlockingQueue <Access> (Math.max(1, capacity / count)));
+		}
+		final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		writer = new Thread("XmlCacheAccessRecorder") {
+			@Override
+			public void run() {
+				drain(out);
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		logger.info("Recording cache requests to " + file);
+	}
+
+	/**
+	 * Record a request
+	 *
+	 * @param time	The time of the request in milliseconds
+	 * @param key	The key requested
+	 */
+
+	public void record(long time, String key) {
+		offer(new Access(time, key, -1));
+	}
+
+	/**
+	 * Record the size of the document loaded for a request
+	 *
+	 * @param time	The time the document was loaded in milliseconds
+	 * @param key	The key requested
+	 * @param size	The size in bytes of the document
+	 */
+
+	public void recordLoad(long time, String key, long size) {
+		offer(new Access(time, key, size));
+	}
+
+	private void offer(Access access) {
+		BlockingQueue <Access> stripe = stripes.get((int) Thread.currentThread().getId() & (stripes.size() - 1));
+		if (closed || !stripe.offer(access)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void drain(Writer out) {
+		List <Access> batch = new ArrayList <Access> ();
+		try {
+			while (true) {
+				boolean stopping = closed;
+				for (BlockingQueue <Access> stripe: stripes) {
+					stripe.drainTo(batch);
+				}
+				if (batch.isEmpty()) {
+					if (stopping)
+						break;
+					Thread.sleep(WAIT);
+					continue;
+				}
+				Collections.sort(batch, BY_TIME);
+				for (Access access: batch) {
+					out.write(Long.toString(access.time));
+					out.write('\t');
+					out.write(escape(access.key));
+					if (access.size >= 0) {
+						out.write('\t');
+						out.write(Long.toString(access.size));
+					}
+					out.write('\n');
+				}
+				out.flush();
+				recorded.addAndGet(batch.size());
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			logger.warning("Recording to " + file + " was interrupted");
+		} catch (IOException e) {
+			closed = true;
+			logger.severe("Unable to write to " + file + ". Recording has stopped: " + e.getLocalizedMessage());
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.fine("Unable to close " + file + ": " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stop recording, waiting for the requests already queued to be written
+	 */
+
+	public void close() {
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return	The number of requests and loads written to the trace file
+	 */
+
+	public long getRecorded() {
+		return recorded.get();
+	}
+
+	/**
+	 * @return	The number of requests and loads dropped because the queue was
+	 * full
+	 */
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Escape a key so that it fits on one line of the trace file
+	 *
+	 * @param key	The key
+	 * @return		The escaped key
+	 */
+
+	static String escape(String key) {
+		if (key.indexOf('\\') < 0 && key.indexOf('\t') < 0 && key.indexOf('\n') < 0 && key.indexOf('\r') < 0)
+			return key;
+		StringBuilder escaped = new StringBuilder(key.length() + 8);
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			switch (c) {
+			case '\\':
+				escaped.append("\\\\");
+				break;
+			case '\t':
+				escaped.append("\\t");
+				break;
+			case '\n':
+				escaped.append("\\n");
+				break;
+			case '\r':
+				escaped.append("\\r");
+				break;
+			default:
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Reverse {@link #escape(String)}
+	 *
+	 * @param key	The key as written in the trace file
+	 * @return		The key
+	 */
+
+	static String unescape(String key) {
+		if (key.indexOf('\\') < 0)
+			return key;
+		StringBuilder unescaped = new StringBuilder(key.length());
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c == '\\' && i + 1 < key.length()) {
+				c = key.charAt(++i);
+				if (c == 't') {
+					c = '\t';
+				} else if (c == 'n') {
+					c = '\n';
+				} else if (c == 'r') {
+					c = '\r';
+				}
+			}
+			unescaped.append(c);
+		}
+		return unescaped.toString();
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+
+	private static class Access {
+
+		private long	time;
+		private String	key;
+		private long	size;
+
+		private Access(long time, String key, long size) {
+			this.time = time;
+			this.key = key;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * Payload that holds serialized XML deflated in memory
+ * 
+ * <p>Used for cold entries, that is entries that have not been accessed
+ * recently. Serialized XML is typically a fraction of the size of the parsed
+ * tree and compresses well, so far more cold entries can be kept resident in
+ * the same heap.</p>
+ * 
+ * <h2>Configuration</h2>
+ * 
+ * <p>When <code>cache.cold.threshold</code> is set the XmlCacheUtility sweeps
+ * its entries in the background and replaces the live XmlObject of every entry
+ * that has not been accessed within the threshold with one of these payloads.
+ * The next access inflates and parses the entry, which is then hot again. The
+ * time spent inflating is recorded in the inflate statistics.</p>
+ * 
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.cold.threshold</td>
+ *         <td>The number of milliseconds since an entry was last accessed
+ *         after which it is considered cold. Zero turns cold compression
+ *         off.</td>
+ *         <td>0</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.cold.sweep</td>
+ *         <td>The number of milliseconds between sweeps of the cache for
+ *         cold entries.</td>
+ *         <td>60000</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ */
+
+public class XmlCacheCompressedPayload implements XmlCachePayload {
+
+	private byte[]	compressed;
+	private int		length;
+	
+	/**
+	 * Create a payload by compressing serialized XML
+	 * 
+	 * @param data	The serialized XML
+	 */
+	
+	public XmlCacheCompressedPayload(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				out.write(buffer, 0, n);
+			}
+			compressed = out.toByteArray();
+			length = data.length;
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	@Override
+	public XmlObject parse() throws XmlCacheException {
+		return XmlCacheSerializer.parse(getBytes());
+	}
+	
+	@Override
+	public byte[] getBytes() throws XmlCacheException {
+		byte[] source = compressed;
+		if (source == null)
+			throw new XmlCacheException("Compressed cache entry has been released");
+		
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(source);
+			byte[] data = new byte[length];
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				int k = inflater.inflate(data, n, length - n);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new XmlCacheException("Compressed cache entry is truncated");
+				n += k;
+			}
+			return data;
+		} catch (DataFormatException e) {
+			throw new XmlCacheException("Unable to inflate cache entry: " + e.getLocalizedMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	@Override
+	public int size() {
+		byte[] source = compressed;
+		return source == null ? 0 : source.length;
+	}
+	
+	@Override
+	public boolean keepAfterParse() {
+		return false;
+	}
+	
+	@Override
+	public void release() {
+		compressed = null;
+	}
+}
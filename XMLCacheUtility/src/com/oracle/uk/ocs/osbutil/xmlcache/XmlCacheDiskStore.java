@@ -0,0 +1,409 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Disk-backed second level (L2) store for serialized XML
+ *
+ * <p>Entries that are evicted from the in-memory cache are written to this
+ * store in their serialized form so that they can later be promoted back into
+ * memory by parsing the local bytes rather than going back to the original
+ * (possibly remote) XML source.</p>
+ *
+ * <p>The store is made up of fixed size segment files in a local directory.
+ * Each segment is memory-mapped and records are appended to the current
+ * segment until it is full, at which point a new segment is started. An
+ * in-memory index maps each key to the segment, offset and length of its
+ * record. A segment file is deleted once none of its records are live.
+ * Records larger than the segment size are given a segment of their own.</p>
+ *
+ * <p>The total size of the segment files can be capped. When a new segment
+ * would take the store over its capacity the oldest segments are dropped,
+ * along with any records still live in them, so the store holds the most
+ * recently demoted entries.</p>
+ *
+ * <p>The index is not persisted. Any segment files left in the directory by a
+ * previous run are deleted when the store is opened.</p>
+ *
+ * <h2>Configuration</h2>
+ *
+ * <p>The XmlCacheUtility demotes the entries it evicts to a store when
+ * <code>cache.maxentries</code> bounds the number it holds in memory (L1) and
+ * <code>cache.l2.enabled</code> is set. A later request for an evicted key
+ * promotes it back into L1 rather than searching the XML sources, and the
+ * promoted entry keeps the deadline it was given when it was first loaded, so
+ * it expires as normal.</p>
+ *
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.l2.enabled</td>
+ *         <td>Flag to control whether entries evicted from memory are kept
+ *         in this store.</td>
+ *         <td>false</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.l2.dir</td>
+ *         <td>The directory holding the segment files.</td>
+ *         <td>xmlcache-l2</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.l2.segmentsize</td>
+ *         <td>The size in bytes of each segment file.</td>
+ *         <td>16777216</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.l2.capacity</td>
+ *         <td>The maximum total size in bytes of the segment files. Zero for
+ *         no limit.</td>
+ *         <td>1073741824</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ *
+ * @see XmlCacheUtility
+ */
+
+public class XmlCacheDiskStore {
+
+	private static Logger logger = Logger.getLogger(XmlCacheDiskStore.class.getName());
+
+	/** Prefix of the segment file names **/
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	/** Suffix of the segment file names **/
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private File directory;
+	private int segmentSize;
+	private long capacity;
+	private long bytes = 0;
+	private int nextSegmentId = 0;
+	private boolean closed = false;
+
+	private List <Segment> segments = new ArrayList <Segment> ();
+	private Segment current = null;
+	private Map <String, Location> index = new HashMap <String, Location> ();
+
+	/**
+	 * Open a disk store with no limit on its size
+	 *
+	 * @param directory		The directory that holds the segment files
+	 * @param segmentSize	The size, in bytes, of each segment file
+	 * @throws IOException	If the directory cannot be created
+	 */
+
+	public XmlCacheDiskStore(File directory, int segmentSize) throws IOException {
+		this(directory, segmentSize, 0);
+	}
+
+	/**
+	 * Open a disk store
+	 *
+	 * @param directory		The directory that holds the segment files
+	 * @param segmentSize	The size, in bytes, of each segment file
+	 * @param capacity		The maximum total size, in bytes, of the segment
+	 * files, or 0 for no limit
+	 * @throws IOException	If the directory cannot be created
+	 */
+
+	public XmlCacheDiskStore(File directory, int segmentSize, long capacity) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.capacity = capacity;
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create L2 directory: " + directory);
+		}
+
+		File[] stale = directory.listFiles();
+		if (stale != null) {
+			for (File file: stale) {
+				if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+					logger.fine("Deleting stale L2 segment: " + file);
+					file.delete();
+				}
+			}
+		}
+		logger.info("Opened L2 store in " + directory + " with segment size " + segmentSize
+				+ (capacity > 0 ? " and capacity " + capacity : ""));
+	}
+
+	/**
+	 * Store the serialized XML for a key, replacing any existing record
+	 *
+	 * @param key		The cache key
+	 * @param timestamp	The time the XML was originally loaded from its source
+	 * @param deadline	The time the XML expires
+	 * @param data		The serialized XML
+	 * @throws IOException	If a new segment cannot be created or the store
+	 * has been closed
+	 */
+
+	public synchronized void put(String key, long timestamp, long deadline, byte[] data) throws IOException {
+		if (closed)
+			throw new IOException("L2 store in " + directory + " has been closed");
+		remove(key);
+
+		if (current == null || current.buffer.remaining() < data.length) {
+			if (current != null && current.live == 0) {
+				// Every record in it has been removed, which only releases
+				// segments that are no longer being written
+				releaseSegment(current);
+				current = null;
+			}
+			int size = Math.max(segmentSize, data.length);
+			if (capacity > 0) {
+				if (size > capacity)
+					throw new IOException("Record of " + data.length + " bytes is larger than the L2 capacity");
+				makeRoom(size);
+			}
+			current = createSegment(size);
+		}
+
+		int offset = current.buffer.position();
+		current.buffer.put(data);
+		current.live++;
+		index.put(key, new Location(current, offset, data.length, timestamp, deadline));
+	}
+
+	/**
+	 * Read the record for a key
+	 *
+	 * @param key	The cache key
+	 * @return		The record or null if the key is not in the store
+	 */
+
+	public synchronized Record get(String key) {
+		Location location = index.get(key);
+		if (location == null)
+			return null;
+
+		byte[] data = new byte[location.length];
+		ByteBuffer view = location.segment.buffer.duplicate();
+		view.position(location.offset);
+		view.get(data);
+		return new Record(location.timestamp, location.deadline, data);
+	}
+
+	/**
+	 * Remove the record for a key
+	 *
+	 * @param key	The cache key
+	 * @return		True if a record was removed
+	 */
+
+	public synchronized boolean remove(String key) {
+		Location location = index.remove(key);
+		if (location == null)
+			return false;
+
+		Segment segment = location.segment;
+		segment.live--;
+		if (segment.live == 0 && segment != current) {
+			releaseSegment(segment);
+		}
+		return true;
+	}
+
+	/**
+	 * Drop the oldest segments until a new segment of the given size fits
+	 * within the capacity
+	 *
+	 * @param size	The size of the new segment
+	 */
+
+	private void makeRoom(int size) {
+		while (bytes + size > capacity && !segments.isEmpty()) {
+			Segment oldest = segments.get(0);
+			int dropped = 0;
+			for (Iterator <Location> i = index.values().iterator(); i.hasNext();) {
+				if (i.next().segment == oldest) {
+					i.remove();
+					dropped++;
+				}
+			}
+			if (oldest == current)
+				current = null;
+			releaseSegment(oldest);
+			logger.fine("Dropped " + dropped + " L2 records to stay within capacity");
+		}
+	}
+
+	/**
+	 * @return	A copy of the keys held in the store
+	 */
+
+	public synchronized List <String> keys() {
+		return new ArrayList <String> (index.keySet());
+	}
+
+	/**
+	 * @return	The number of records held in the store
+	 */
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return	The number of segment files currently in use
+	 */
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return	The total size in bytes of the segment files
+	 */
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Remove every record, deleting all of the segment files
+	 */
+
+	public synchronized void clear() {
+		index.clear();
+		for (Segment segment: new ArrayList <Segment> (segments)) {
+			releaseSegment(segment);
+		}
+		current = null;
+	}
+
+	/**
+	 * Close the store, deleting all of its segment files. Nothing can be put
+	 * into a closed store.
+	 */
+
+	public synchronized void close() {
+		clear();
+		closed = true;
+	}
+
+	private Segment createSegment(int size) throws IOException {
+		File file = new File(directory, SEGMENT_PREFIX + (nextSegmentId++) + SEGMENT_SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			Segment segment = new Segment(file, buffer);
+			segments.add(segment);
+			bytes += size;
+			logger.fine("Created L2 segment: " + file);
+			return segment;
+		} finally {
+			// The mapping remains valid once the channel has been closed
+			raf.close();
+		}
+	}
+
+	private void releaseSegment(Segment segment) {
+		segments.remove(segment);
+		bytes -= segment.buffer.capacity();
+		segment.buffer = null;
+		if (!segment.file.delete()) {
+			// Typically on Windows whilst the mapping is still reachable
+			segment.file.deleteOnExit();
+		}
+		logger.fine("Released L2 segment: " + segment.file);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A record read back from the store
+	 */
+
+	public static class Record {
+
+		private long	timestamp;
+		private long	deadline;
+		private byte[]	data;
+
+		public Record(long timestamp, long deadline, byte[] data) {
+			this.timestamp = timestamp;
+			this.deadline = deadline;
+			this.data = data;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	private static class Segment {
+
+		private File				file;
+		private MappedByteBuffer	buffer;
+		private int					live = 0;
+
+		private Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private static class Location {
+
+		private Segment	segment;
+		private int		offset;
+		private int		length;
+		private long	timestamp;
+		private long	deadline;
+
+		private Location(Segment segment, int offset, int length, long timestamp, long deadline) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.timestamp = timestamp;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+/**
+ * Optional interface for an XML source that knows how long each of its
+ * documents should be cached for.
+ * 
+ * <p>The expiry supplied by the source takes precedence over the expiry
+ * policies in the cache configuration.</p>
+ * 
+ * @see XmlCacheUtility
+ */
+
+public interface XmlCacheExpirySource extends XmlCacheSource {
+
+	/**
+	 * Get the expiry of XML that has just been read from the source
+	 * 
+	 * @param key	The key of the XML
+	 * @return		The number of milliseconds to cache the XML for, or
+	 * {@link XmlCacheUtility#EXPIRY_DEFAULT} to use the configured policy or
+	 * {@link XmlCacheUtility#EXPIRY_NEVER} if the XML never expires
+	 */
+	
+	public long getExpiry(String key);
+}
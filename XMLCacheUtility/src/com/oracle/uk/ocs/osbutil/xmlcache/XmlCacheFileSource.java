@@ -14,9 +14,17 @@
 
 package com.oracle.uk.ocs.osbutil.xmlcache;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.xmlbeans.XmlException;
@@ -35,6 +43,25 @@ import org.apache.xmlbeans.XmlObject;
  * <p>Any forward slashes in the kay are preserved when calculating the filename
  * therefore sub-directories can be specified with the appropriate key.</p>
  * 
+ * <p>If there is no 'xmlcache/test.xml' the source looks for a gzip
+ * compressed 'xmlcache/test.xml.gz' instead, which is decompressed as it is
+ * read straight into the parser without any temporary file.</p>
+ * 
+ * <p>This source also implements <code>XmlCacheRawSource</code> so that the
+ * file contents can be cached unparsed when lazy loading is configured, and
+ * <code>XmlCacheSizeSource</code> so that documents are weighed by the
+ * length of their files. The uncompressed length of a compressed file is
+ * taken from its gzip trailer.</p>
+ * 
+ * <p>It is also an <code>XmlCacheStreamSource</code>: when a projection of
+ * plain element paths applies to a key the file is loaded with an
+ * {@link XmlCacheStreamLoader}, which builds only the projected elements
+ * below the root element and skips the rest of the file as it is read.
+ * Without such a projection files are parsed normally, since the parser
+ * already reads a file as a stream and the loader would build the same
+ * tree. The loader does not process DTDs, so entities declared in a DTD
+ * are not expanded in streamed files.</p>
+ * 
  * <h2>Configuration</h2>
  * 
  * <p>The following describes the scoped configuration keys that configure this
@@ -68,48 +95,277 @@ import org.apache.xmlbeans.XmlObject;
  *         <td>xmlcache</td>
  *         <td>No</td>
  *     </tr>
+ *     <tr>
+ *         <td>buffersize</td>
+ *         <td>The size in bytes of the read buffer used when streaming.</td>
+ *         <td>8192</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>progressinterval</td>
+ *         <td>The number of bytes between progress messages, logged at
+ *         FINE, whilst streaming, 0 for none.</td>
+ *         <td>8388608</td>
+ *         <td>No</td>
+ *     </tr>
  * </table>
  * 
  * @see XmlCacheSource
  *
  */
-public class XmlCacheFileSource implements XmlCacheSource {
+public class XmlCacheFileSource implements XmlCacheRawSource, XmlCacheSizeSource, XmlCacheStreamSource {
 	
 	private static Logger logger = Logger.getLogger(XmlCacheFileSource.class.getName());
 	
+	/** Suffix of the XML files **/
+	private static final String XML_SUFFIX = ".xml";
+	
+	/** Suffix of the compressed XML files **/
+	private static final String GZIP_SUFFIX = ".xml.gz";
+	
 	private String basedir = "xmlcache";
 	
+	private int bufferSize = 8192;
+	private long progressInterval = 8388608;
+	
+	private AtomicLong streamedLoads = new AtomicLong();
+	private AtomicLong streamedBytes = new AtomicLong();
+	private AtomicLong streamedElements = new AtomicLong();
+	
 	@Override
 	public XmlObject readSource(String key) {
 		
 		logger.finer("Asked for XML with key: " + key);
 		
-		String filepath = basedir + "/" + key + ".xml";
-		
-		logger.finer("Filepath for given key is: " + filepath);
-		
-		File xmlFile = new File(filepath);
-		if (xmlFile.exists() && xmlFile.isFile()) {
+		File xmlFile = findFile(key);
+		if (xmlFile != null) {
+			long span = XmlCacheTracer.begin();
 			try {
 				logger.finer("Successfully found XML for key: " + key + ": returning XML");
-				return XmlObject.Factory.parse(xmlFile);
+				if (!isCompressed(xmlFile))
+					return XmlObject.Factory.parse(xmlFile);
+				InputStream in = open(xmlFile);
+				try {
+					return XmlObject.Factory.parse(in);
+				} finally {
+					in.close();
+				}
 			} catch (XmlException e) {
 				logger.severe(e.getLocalizedMessage());
 				e.printStackTrace();
 			} catch (IOException e) {
 				logger.severe(e.getLocalizedMessage());
 				e.printStackTrace();
+			} finally {
+				XmlCacheTracer.end("file.parse", span);
+			}
+		}
+		
+		logger.finer("Failed to find XML for the key: " + key);
+		return null;
+	}
+
+	@Override
+	public long getSize(String key) {
+		File xmlFile = findFile(key);
+		if (xmlFile == null)
+			return -1;
+		if (!isCompressed(xmlFile))
+			return xmlFile.length();
+		// The gzip trailer ends with the uncompressed length modulo 2^32
+		try {
+			RandomAccessFile raf = new RandomAccessFile(xmlFile, "r");
+			try {
+				if (raf.length() < 18)
+					return -1;
+				raf.seek(raf.length() - 4);
+				byte[] trailer = new byte[4];
+				raf.readFully(trailer);
+				return (trailer[0] & 0xffL) | (trailer[1] & 0xffL) << 8 | (trailer[2] & 0xffL) << 16
+						| (trailer[3] & 0xffL) << 24;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			logger.fine("Unable to read the size of " + xmlFile + ": " + e.getLocalizedMessage());
+			return -1;
+		}
+	}
+	
+	/**
+	 * Find the file for a key, either plain or compressed
+	 * 
+	 * @param key	The key
+	 * @return		The file or null if there is none
+	 */
+	
+	private File findFile(String key) {
+		String filepath = basedir + "/" + key;
+		logger.finer("Filepath for given key is: " + filepath + XML_SUFFIX);
+		
+		File xmlFile = new File(filepath + XML_SUFFIX);
+		if (xmlFile.isFile())
+			return xmlFile;
+		xmlFile = new File(filepath + GZIP_SUFFIX);
+		if (xmlFile.isFile())
+			return xmlFile;
+		return null;
+	}
+	
+	private boolean isCompressed(File xmlFile) {
+		return xmlFile.getName().endsWith(GZIP_SUFFIX);
+	}
+	
+	/**
+	 * Open a file, decompressing it as it is read if it is compressed
+	 * 
+	 * @param xmlFile	The file
+	 * @return			The stream of XML
+	 * @throws IOException	If the file cannot be opened
+	 */
+	
+	private InputStream open(File xmlFile) throws IOException {
+		InputStream in = new FileInputStream(xmlFile);
+		if (!isCompressed(xmlFile))
+			return in;
+		try {
+			return new GZIPInputStream(in, bufferSize);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+	
+	@Override
+	public XmlObject readSource(String key, List <String> keep) {
+		
+		logger.finer("Asked for XML with key: " + key + " keeping: " + keep);
+		
+		File xmlFile = findFile(key);
+		if (xmlFile != null) {
+			long span = XmlCacheTracer.begin();
+			try {
+				return stream(xmlFile, keep);
+			} catch (XmlCacheException e) {
+				logger.severe(e.getLocalizedMessage());
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, e.getLocalizedMessage(), e);
+			} finally {
+				XmlCacheTracer.end("file.stream", span);
+			}
+		}
+		
+		logger.finer("Failed to find XML for the key: " + key);
+		return null;
+	}
+	
+	/**
+	 * Load a file with a streaming loader
+	 * 
+	 * @param xmlFile	The file
+	 * @param keep		The element paths to keep
+	 * @return			The loaded XML
+	 * @throws XmlCacheException	If the XML cannot be parsed
+	 * @throws IOException			If the file cannot be read
+	 */
+	
+	private XmlObject stream(File xmlFile, List <String> keep) throws XmlCacheException, IOException {
+		logger.fine("Streaming " + xmlFile.length() + " bytes from " + xmlFile);
+		XmlCacheStreamLoader loader = new XmlCacheStreamLoader(bufferSize, progressInterval, keep);
+		InputStream in = open(xmlFile);
+		try {
+			return loader.load(in, xmlFile.toString());
+		} finally {
+			in.close();
+			streamedLoads.incrementAndGet();
+			streamedBytes.addAndGet(loader.getBytesRead());
+			streamedElements.addAndGet(loader.getElements());
+		}
+	}
+	
+	/**
+	 * @return	The number of files that have been streamed
+	 */
+	
+	public long getStreamedLoads() {
+		return streamedLoads.get();
+	}
+	
+	/**
+	 * @return	The total number of bytes read from streamed files
+	 */
+	
+	public long getStreamedBytes() {
+		return streamedBytes.get();
+	}
+	
+	/**
+	 * @return	The total number of elements read from streamed files
+	 */
+	
+	public long getStreamedElements() {
+		return streamedElements.get();
+	}
+
+	@Override
+	public byte[] readRawSource(String key) {
+		
+		logger.finer("Asked for raw XML with key: " + key);
+		
+		File xmlFile = findFile(key);
+		if (xmlFile != null) {
+			long span = XmlCacheTracer.begin();
+			try {
+				byte[] data = read(xmlFile);
+				logger.finer("Successfully read raw XML for key: " + key);
+				return data;
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, e.getLocalizedMessage(), e);
+			} finally {
+				XmlCacheTracer.end("file.read", span);
 			}
 		}
 		
 		logger.finer("Failed to find XML for the key: " + key);
 		return null;
 	}
+	
+	/**
+	 * Read the whole of a file, decompressing it if it is compressed
+	 * 
+	 * @param xmlFile	The file
+	 * @return			The XML bytes
+	 * @throws IOException	If the file cannot be read
+	 */
+	
+	private byte[] read(File xmlFile) throws IOException {
+		InputStream in = open(xmlFile);
+		try {
+			// The uncompressed length of a compressed file is not trusted, so
+			// its buffer starts small and grows as it is read
+			long expected = isCompressed(xmlFile) ? Math.min(xmlFile.length(), 65536) : xmlFile.length();
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, expected));
+			byte[] buffer = new byte[bufferSize];
+			int r;
+			while ((r = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, r);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
 
 	@Override
 	public void configure(Properties configuration, String propbase) {
 		logger.finer("Configuring file source for property base: " + propbase);
 		basedir = configuration.getProperty(propbase + ".basedir", "xmlcache");
+		bufferSize = (int) XmlCacheUtility.getLongProperty(configuration, propbase + ".buffersize", 8192);
+		if (bufferSize <= 0) {
+			logger.warning("Property '" + propbase + ".buffersize' must be positive. 8192 is used");
+			bufferSize = 8192;
+		}
+		progressInterval = XmlCacheUtility.getLongProperty(configuration, propbase + ".progressinterval", 8388608);
 		logger.fine("Ccnfigured file source against basedir: " + basedir);
 	}
 	
@@ -0,0 +1,271 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate per-key totals and the keys with the largest totals
+ *
+ * <p>Totals are counted in a count-min sketch, a small fixed size table of
+ * counters with one row per hash function, so that memory use does not grow
+ * with the number of distinct keys. The estimate for a key is the smallest of
+ * its counters, which is never less than its true total and only more when
+ * other keys collide with it in every row.</p>
+ *
+ * <p>The keys with the largest estimates are kept in a min-heap of at most
+ * <i>k</i> entries. A key that is not in the heap replaces the smallest entry
+ * once its estimate is larger.</p>
+ *
+ * <p>The counters are updated without locking. The total of a key that is
+ * already in the heap is updated in place, and the heap is only reordered
+ * when its smallest entry is needed, so a lock is only taken by a key whose
+ * estimate is larger than the smallest entry's was when last reordered.</p>
+ *
+ * <h2>Configuration</h2>
+ *
+ * <p>When <code>cache.statistics.topk</code> is set the XmlCacheUtility's
+ * statistics also track which keys are requested most, which miss most and
+ * which take the most time to load. These are returned by
+ * {@link XmlCacheUtility#getTopRequestedKeys()},
+ * {@link XmlCacheUtility#getTopMissedKeys()} and
+ * {@link XmlCacheUtility#getTopLoadTimeKeys()}, and are a guide to the keys
+ * worth preloading, projecting or giving a longer expiry.</p>
+ *
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.statistics.topk</td>
+ *         <td>The number of keys reported for each total. Zero turns
+ *         per-key tracking off.</td>
+ *         <td>0</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.statistics.report</td>
+ *         <td>The number of milliseconds between reports of the top keys to
+ *         the statistics logger, 0 for none.</td>
+ *         <td>0</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ */
+
+public class XmlCacheHeavyHitters {
+
+	/** Number of rows, one per hash function **/
+	private static final int DEPTH = 4;
+
+	/** Number of counters in each row, a power of two **/
+	private static final int WIDTH = 2048;
+
+	/** The rows of the sketch, one after the other **/
+	private volatile AtomicLongArray sketch = new AtomicLongArray(DEPTH * WIDTH);
+	private int size;
+	private ConcurrentHashMap <String, Count> top = new ConcurrentHashMap <String, Count> ();
+
+	/** Guarded by itself **/
+	private PriorityQueue <Count> heap = new PriorityQueue <Count> ();
+
+	/** The smallest rank in the heap once it is full, -1 until then **/
+	private volatile long floor = -1;
+
+	/**
+	 * @param size	The number of keys to keep, <i>k</i>
+	 */
+
+	public XmlCacheHeavyHitters(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * Add to the total of a key
+	 *
+	 * @param key		The key
+	 * @param amount	The amount to add
+	 */
+
+	public void add(String key, long amount) {
+		AtomicLongArray counters = sketch;
+		int h1 = key.hashCode();
+		int h2 = mix(h1);
+		long estimate = Long.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i++) {
+			estimate = Math.min(estimate, counters.addAndGet(i * WIDTH + ((h1 + i * h2) & (WIDTH - 1)), amount));
+		}
+
+		Count count = top.get(key);
+		if (count != null) {
+			count.raise(estimate);
+			return;
+		}
+		if (size <= 0 || estimate <= floor)
+			return;
+		synchronized (heap) {
+			count = top.get(key);
+			if (count != null) {
+				count.raise(estimate);
+				return;
+			}
+			if (heap.size() >= size) {
+				Count smallest = smallest();
+				if (smallest.total >= estimate) {
+					floor = smallest.rank;
+					return;
+				}
+				heap.poll();
+				top.remove(smallest.key);
+			}
+			count = new Count(key, estimate);
+			top.put(key, count);
+			heap.add(count);
+			floor = heap.size() < size ? -1 : heap.peek().rank;
+		}
+	}
+
+	/**
+	 * Get the smallest entry in the heap, first reordering any entries whose
+	 * totals have grown since they were ranked. Must hold the heap lock
+	 *
+	 * @return	The entry with the smallest total
+	 */
+
+	private Count smallest() {
+		Count smallest = heap.peek();
+		long total;
+		while ((total = smallest.total) != smallest.rank) {
+			heap.poll();
+			smallest.rank = total;
+			heap.add(smallest);
+			smallest = heap.peek();
+		}
+		return smallest;
+	}
+
+	/**
+	 * @param key	The key
+	 * @return		The estimated total of the key
+	 */
+
+	public long estimate(String key) {
+		AtomicLongArray counters = sketch;
+		int h1 = key.hashCode();
+		int h2 = mix(h1);
+		long estimate = Long.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i++) {
+			estimate = Math.min(estimate, counters.get(i * WIDTH + ((h1 + i * h2) & (WIDTH - 1))));
+		}
+		return estimate;
+	}
+
+	/**
+	 * @return	The keys with the largest totals, largest first
+	 */
+
+	public List <Count> getTop() {
+		List <Count> counts = new ArrayList <Count> ();
+		synchronized (heap) {
+			for (Count count: heap) {
+				counts.add(new Count(count.key, count.total));
+			}
+		}
+		Collections.sort(counts, Collections.reverseOrder());
+		return counts;
+	}
+
+	/**
+	 * Clear every total
+	 */
+
+	public void reset() {
+		synchronized (heap) {
+			sketch = new AtomicLongArray(DEPTH * WIDTH);
+			top.clear();
+			heap.clear();
+			floor = -1;
+		}
+	}
+
+	/**
+	 * A second, odd, hash derived from the first
+	 */
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h | 1;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A key and its estimated total
+	 */
+
+	public static class Count implements Comparable <Count> {
+
+		private String			key;
+		private volatile long	total;
+
+		/** The total when the count was last placed in the heap **/
+		private long			rank;
+
+		private Count(String key, long total) {
+			this.key = key;
+			this.total = total;
+			this.rank = total;
+		}
+
+		/**
+		 * Raise the total, which only grows
+		 */
+
+		private void raise(long estimate) {
+			if (estimate > total)
+				total = estimate;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		@Override
+		public int compareTo(Count other) {
+			return rank < other.rank ? -1 : (rank == other.rank ? 0 : 1);
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + total;
+		}
+	}
+}
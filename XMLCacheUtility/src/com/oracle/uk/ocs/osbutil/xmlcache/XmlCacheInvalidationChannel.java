@@ -0,0 +1,500 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Lightweight channel for broadcasting cache invalidations to peer servers
+ * 
+ * <p>Each managed server has its own cache. This channel lets a change on
+ * one server (invalidate a key, invalidate every key with a prefix, or
+ * reload a key) be applied on every configured peer so that all servers can
+ * use long expiry times and still converge quickly after reference data
+ * changes.</p>
+ * 
+ * <p>Events are sent as UDP datagrams to each peer. They are not sent
+ * immediately: they are queued and flushed as a batch every batch interval.
+ * Whilst queued, events are coalesced so that an event storm results in a
+ * small number of packets:</p>
+ * <ul>
+ *     <li>Repeated events for the same key are sent once.</li>
+ *     <li>A key event is dropped if a queued prefix covers the key.</li>
+ *     <li>A prefix is dropped if a shorter queued prefix covers it.</li>
+ *     <li>A reload of a key replaces an invalidate of the same key.</li>
+ * </ul>
+ * 
+ * <p>Delivery is best effort. A lost packet means a peer keeps its copy of
+ * an entry until that entry expires normally. Packets from hosts that are
+ * not configured as peers are dropped and counted.</p>
+ * 
+ * <h2>Wire Format</h2>
+ * 
+ * <p>Each datagram is UTF-8 text. The first line is <code>XMLCACHE</code>
+ * followed by the sender id, used to ignore a server's own packets. Each
+ * following line is one event: <code>I</code>, <code>P</code> or
+ * <code>R</code> (invalidate key, invalidate prefix or reload key), a space,
+ * and the key or prefix, in which backslashes, line feeds and carriage
+ * returns are escaped as <code>\\</code>, <code>\n</code> and
+ * <code>\r</code>.</p>
+ * 
+ * <h2>Configuration</h2>
+ * 
+ * <p>The XmlCacheUtility opens a channel when <code>cluster.port</code> is
+ * set. Its {@link XmlCacheUtility#invalidate(String)},
+ * {@link XmlCacheUtility#invalidatePrefix(String)} and
+ * {@link XmlCacheUtility#reload(String)} are then also sent to every peer, and
+ * the events received from peers are applied to its own entries. Reloads
+ * received from peers are carried out on a background thread.</p>
+ * 
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cluster.port</td>
+ *         <td>The local UDP port that events from peers are received on. The
+ *         channel is off if not set.</td>
+ *         <td></td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cluster.peers</td>
+ *         <td>Comma separated <code>host:port</code> list of the peers that
+ *         events are sent to.</td>
+ *         <td></td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cluster.batch.interval</td>
+ *         <td>The number of milliseconds that events are batched and
+ *         coalesced for before being sent.</td>
+ *         <td>100</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ */
+
+public class XmlCacheInvalidationChannel {
+
+	private static Logger logger = Logger.getLogger(XmlCacheInvalidationChannel.class.getName());
+	
+	/** First word of every datagram **/
+	private static final String HEADER = "XMLCACHE";
+	
+	/** Largest payload sent in one datagram **/
+	private static final int MAX_PACKET = 8192;
+	
+	private static final char INVALIDATE = 'I';
+	private static final char PREFIX = 'P';
+	private static final char RELOAD = 'R';
+	
+	/** Longest pause of the receiver after repeated errors **/
+	private static final long MAX_BACKOFF = 5000;
+	
+	private String senderId = Long.toHexString(new Random().nextLong());
+	private DatagramSocket socket;
+	private List <InetSocketAddress> peers;
+	private Set <InetAddress> peerHosts = new HashSet <InetAddress> ();
+	private Listener listener;
+	private long batchInterval;
+	
+	/** Queued key events, guarded by this **/
+	private Map <String, Character> queuedKeys = new LinkedHashMap <String, Character> ();
+	
+	/** Queued prefixes, guarded by this **/
+	private Set <String> queuedPrefixes = new LinkedHashSet <String> ();
+	
+	private volatile boolean running = true;
+	private long packetsSent = 0;
+	private long packetsReceived = 0;
+	private long packetsRejected = 0;
+	private long eventsCoalesced = 0;
+	
+	/**
+	 * Open a channel
+	 * 
+	 * @param port			The local UDP port to listen on
+	 * @param peers			The addresses of the peer servers
+	 * @param batchInterval	The number of milliseconds between flushes of
+	 * queued events
+	 * @param listener		Applies events received from peers
+	 * @throws SocketException	If the port cannot be opened
+	 */
+	
+	public XmlCacheInvalidationChannel(int port, List <InetSocketAddress> peers, long batchInterval,
+			Listener listener) throws SocketException {
+		this.socket = new DatagramSocket(port);
+		this.peers = new ArrayList <InetSocketAddress> (peers);
+		for (InetSocketAddress peer: peers) {
+			if (peer.isUnresolved()) {
+				logger.warning("Unable to resolve peer " + peer + ". Its invalidations will be ignored");
+			} else {
+				peerHosts.add(peer.getAddress());
+			}
+		}
+		this.batchInterval = batchInterval;
+		this.listener = listener;
+		
+		Thread receiver = new Thread("XmlCacheInvalidationChannel-receiver") {
+			@Override
+			public void run() {
+				receive();
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+		
+		Thread sender = new Thread("XmlCacheInvalidationChannel-sender") {
+			@Override
+			public void run() {
+				send();
+			}
+		};
+		sender.setDaemon(true);
+		sender.start();
+		
+		logger.info("Opened invalidation channel on port " + port + " to peers " + peers);
+	}
+	
+	/**
+	 * Parse a peer list of the form <code>host:port,host:port</code>
+	 * 
+	 * @param peers	The peer list
+	 * @return		The peer addresses
+	 */
+	
+	public static List <InetSocketAddress> parsePeers(String peers) {
+		List <InetSocketAddress> addresses = new ArrayList <InetSocketAddress> ();
+		for (String peer: peers.split(",")) {
+			peer = peer.trim();
+			int colon = peer.lastIndexOf(':');
+			if (colon < 1) {
+				logger.warning("Ignoring peer without a port: " + peer);
+				continue;
+			}
+			try {
+				addresses.add(new InetSocketAddress(peer.substring(0, colon),
+						Integer.parseInt(peer.substring(colon + 1))));
+			} catch (NumberFormatException e) {
+				logger.warning("Ignoring peer with an invalid port: " + peer);
+			}
+		}
+		return addresses;
+	}
+	
+	/**
+	 * Queue an invalidation of a key for the peers
+	 * 
+	 * @param key	The key to invalidate
+	 */
+	
+	public synchronized void publishInvalidate(String key) {
+		if (coveredByPrefix(key) || queuedKeys.containsKey(key)) {
+			eventsCoalesced++;
+			return;
+		}
+		queuedKeys.put(key, INVALIDATE);
+	}
+	
+	/**
+	 * Queue a reload of a key for the peers
+	 * 
+	 * @param key	The key to reload
+	 */
+	
+	public synchronized void publishReload(String key) {
+		if (coveredByPrefix(key)) {
+			eventsCoalesced++;
+			return;
+		}
+		if (queuedKeys.put(key, RELOAD) != null)
+			eventsCoalesced++;
+	}
+	
+	/**
+	 * Queue an invalidation of every key starting with a prefix for the peers
+	 * 
+	 * @param prefix	The prefix of the keys to invalidate
+	 */
+	
+	public synchronized void publishInvalidatePrefix(String prefix) {
+		if (coveredByPrefix(prefix)) {
+			eventsCoalesced++;
+			return;
+		}
+		for (Iterator <String> i = queuedPrefixes.iterator(); i.hasNext(); ) {
+			if (i.next().startsWith(prefix)) {
+				i.remove();
+				eventsCoalesced++;
+			}
+		}
+		for (Iterator <String> i = queuedKeys.keySet().iterator(); i.hasNext(); ) {
+			if (i.next().startsWith(prefix)) {
+				i.remove();
+				eventsCoalesced++;
+			}
+		}
+		queuedPrefixes.add(prefix);
+	}
+	
+	/**
+	 * Send any queued events now
+	 */
+	
+	public void flush() {
+		List <String> lines = new ArrayList <String> ();
+		synchronized (this) {
+			for (String prefix: queuedPrefixes) {
+				lines.add(PREFIX + " " + escape(prefix));
+			}
+			for (Map.Entry <String, Character> e: queuedKeys.entrySet()) {
+				lines.add(e.getValue() + " " + escape(e.getKey()));
+			}
+			queuedPrefixes.clear();
+			queuedKeys.clear();
+		}
+		if (lines.isEmpty())
+			return;
+		
+		StringBuilder packet = new StringBuilder();
+		for (String line: lines) {
+			if (packet.length() > 0 && packet.length() + line.length() + 1 > MAX_PACKET) {
+				sendPacket(packet.toString());
+				packet.setLength(0);
+			}
+			if (packet.length() == 0) {
+				packet.append(HEADER).append(' ').append(senderId);
+			}
+			packet.append('\n').append(line);
+		}
+		sendPacket(packet.toString());
+	}
+	
+	/**
+	 * Stop the channel and close its socket
+	 */
+	
+	public void close() {
+		running = false;
+		flush();
+		socket.close();
+	}
+	
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+	
+	public synchronized long getPacketsReceived() {
+		return packetsReceived;
+	}
+	
+	public synchronized long getEventsCoalesced() {
+		return eventsCoalesced;
+	}
+	
+	/**
+	 * @return	The number of packets dropped because they were not sent by a
+	 * configured peer
+	 */
+	
+	public synchronized long getPacketsRejected() {
+		return packetsRejected;
+	}
+	
+	private static String escape(String key) {
+		if (key.indexOf('\\') < 0 && key.indexOf('\n') < 0 && key.indexOf('\r') < 0)
+			return key;
+		StringBuilder escaped = new StringBuilder(key.length() + 8);
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			switch (c) {
+			case '\\':
+				escaped.append("\\\\");
+				break;
+			case '\n':
+				escaped.append("\\n");
+				break;
+			case '\r':
+				escaped.append("\\r");
+				break;
+			default:
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+	
+	private static String unescape(String key) {
+		if (key.indexOf('\\') < 0)
+			return key;
+		StringBuilder unescaped = new StringBuilder(key.length());
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c == '\\' && i + 1 < key.length()) {
+				c = key.charAt(++i);
+				if (c == 'n') {
+					c = '\n';
+				} else if (c == 'r') {
+					c = '\r';
+				}
+			}
+			unescaped.append(c);
+		}
+		return unescaped.toString();
+	}
+	
+	private boolean coveredByPrefix(String key) {
+		for (String prefix: queuedPrefixes) {
+			if (key.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+	
+	private void sendPacket(String text) {
+		try {
+			byte[] data = text.getBytes("UTF-8");
+			for (InetSocketAddress peer: peers) {
+				try {
+					socket.send(new DatagramPacket(data, data.length, peer));
+					synchronized (this) {
+						packetsSent++;
+					}
+				} catch (IOException e) {
+					logger.warning("Unable to send invalidations to " + peer + ": " + e.getLocalizedMessage());
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void send() {
+		while (running) {
+			try {
+				Thread.sleep(batchInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			flush();
+		}
+	}
+	
+	private void receive() {
+		byte[] buffer = new byte[65536];
+		long backoff = 0;
+		while (running) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+				backoff = 0;
+			} catch (IOException e) {
+				if (!running)
+					return;
+				// Pause so that a persistent error does not spin the thread
+				backoff = Math.min(MAX_BACKOFF, Math.max(100, backoff * 2));
+				logger.warning("Error receiving invalidations, retrying in " + backoff + "ms: "
+						+ e.getLocalizedMessage());
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				continue;
+			}
+			
+			if (!peerHosts.contains(packet.getAddress())) {
+				synchronized (this) {
+					packetsRejected++;
+				}
+				logger.fine("Ignoring invalidations from " + packet.getSocketAddress() + ", which is not a peer");
+				continue;
+			}
+			
+			String[] lines;
+			try {
+				lines = new String(packet.getData(), packet.getOffset(), packet.getLength(), "UTF-8").split("\n");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			if (!lines[0].startsWith(HEADER + " ") || lines[0].substring(HEADER.length() + 1).equals(senderId))
+				continue;
+			
+			synchronized (this) {
+				packetsReceived++;
+			}
+			for (int i = 1; i < lines.length; i++) {
+				String line = lines[i];
+				if (line.length() < 3)
+					continue;
+				String key = unescape(line.substring(2));
+				try {
+					switch (line.charAt(0)) {
+					case INVALIDATE:
+						listener.invalidate(key);
+						break;
+					case PREFIX:
+						listener.invalidatePrefix(key);
+						break;
+					case RELOAD:
+						listener.reload(key);
+						break;
+					default:
+						logger.fine("Ignoring unknown invalidation event: " + line);
+					}
+				} catch (RuntimeException e) {
+					logger.warning("Error applying invalidation '" + line + "': " + e.getLocalizedMessage());
+				}
+			}
+		}
+	}
+	
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Applies the events received from peers to the local cache
+	 */
+	
+	public interface Listener {
+		
+		public void invalidate(String key);
+		
+		public void invalidatePrefix(String prefix);
+		
+		public void reload(String key);
+	}
+}
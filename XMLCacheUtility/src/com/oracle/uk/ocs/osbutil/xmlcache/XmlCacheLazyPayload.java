@@ -0,0 +1,141 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * Payload that holds the raw bytes read from an XML source
+ * 
+ * <p>The bytes are only parsed the first time the XML is needed. The parse
+ * happens exactly once: the first caller parses and any concurrent callers
+ * wait on a latch for its result rather than parsing the same bytes
+ * again.</p>
+ * 
+ * <h2>Configuration</h2>
+ * 
+ * <p>When <code>cache.lazy</code> is set (default false) the XmlCacheUtility
+ * caches the documents of every {@link XmlCacheRawSource} as these payloads.
+ * Documents loaded with {@link XmlCacheUtility#preload(String)}, for example
+ * whilst warming up the cache, are therefore never parsed unless they are read
+ * before they expire. With off-heap storage the raw bytes go straight into the
+ * off-heap store instead. Documents that are projected or validated are
+ * always parsed on load.</p>
+ * 
+ * @see XmlCacheRawSource
+ */
+
+public class XmlCacheLazyPayload implements XmlCachePayload {
+
+	private byte[]			data;
+	private String			origin;
+	private long			loadTime;
+	
+	private AtomicBoolean	claimed = new AtomicBoolean(false);
+	private CountDownLatch	parsed = new CountDownLatch(1);
+	private XmlObject		xml;
+	private XmlCacheException	failure;
+	
+	/**
+	 * @param data		The raw bytes read from the source
+	 * @param origin	A description of the source the bytes came from
+	 */
+	
+	public XmlCacheLazyPayload(byte[] data, String origin) {
+		this.data = data;
+		this.origin = origin;
+		this.loadTime = System.currentTimeMillis();
+	}
+	
+	@Override
+	public XmlObject parse() throws XmlCacheException {
+		if (claimed.compareAndSet(false, true)) {
+			try {
+				byte[] bytes = data;
+				if (bytes == null)
+					throw new XmlCacheException("Lazy entry from " + origin + " has been released");
+				xml = XmlCacheSerializer.parse(bytes);
+			} catch (XmlCacheException e) {
+				failure = e;
+			} finally {
+				parsed.countDown();
+			}
+		} else {
+			long span = XmlCacheTracer.begin();
+			try {
+				parsed.await();
+				XmlCacheTracer.end("wait", span);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new XmlCacheException("Interrupted waiting for lazy entry from " + origin);
+			}
+		}
+		
+		if (failure != null)
+			throw failure;
+		return xml;
+	}
+	
+	@Override
+	public byte[] getBytes() throws XmlCacheException {
+		byte[] bytes = data;
+		if (bytes == null)
+			throw new XmlCacheException("Lazy entry from " + origin + " has been released");
+		return bytes;
+	}
+	
+	@Override
+	public int size() {
+		byte[] bytes = data;
+		return bytes == null ? 0 : bytes.length;
+	}
+	
+	@Override
+	public boolean keepAfterParse() {
+		return false;
+	}
+	
+	@Override
+	public void release() {
+		data = null;
+	}
+	
+	/**
+	 * @return	A description of the source the bytes came from
+	 */
+	
+	public String getOrigin() {
+		return origin;
+	}
+	
+	/**
+	 * @return	The time the bytes were read from the source
+	 */
+	
+	public long getLoadTime() {
+		return loadTime;
+	}
+	
+	/**
+	 * @return	True once the bytes have been parsed
+	 */
+	
+	public boolean isParsed() {
+		return parsed.getCount() == 0;
+	}
+}
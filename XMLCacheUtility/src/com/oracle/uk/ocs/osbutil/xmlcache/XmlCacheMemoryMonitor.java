@@ -0,0 +1,313 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Watches the occupancy of the old generation and tells caches when the heap
+ * comes under pressure and when it is relieved
+ *
+ * <p>The monitor arms a collection usage threshold on the tenured heap pool
+ * at the lowest of a number of levels, each a fraction of the pool's maximum
+ * size. The threshold is only compared with the pool's usage after a
+ * collection, so garbage that a collection would free does not count as
+ * pressure. When the JVM reports that the threshold has been crossed the
+ * listeners are
+ * told which level was reached and the threshold is moved up to the next
+ * level, so that pressure that keeps growing is reported again at each level
+ * in turn.</p>
+ *
+ * <p>Every check interval the monitor compares the pool's usage after the
+ * last collection with the lowest level. Whilst it is below, the threshold is
+ * re-armed at the lowest level and the listeners are told that the pressure
+ * has been relieved, once per interval, so that they can grow back
+ * gradually.</p>
+ *
+ * <p>There is one monitor for the JVM, shared by every cache and region that
+ * is configured to use it. The levels and interval of the first registration
+ * are used, and a warning is logged for later registrations that ask for
+ * others. The monitor stops when the last listener is removed, and puts back
+ * the threshold that the pool had before it was armed.</p>
+ *
+ * <h2>Configuration</h2>
+ *
+ * <p>A cache registers with the monitor when <code>cache.memory.levels</code>
+ * is set. At each level it first compresses its cold entries, if cold entry
+ * compression is on, then limits itself to <code>cache.memory.shed</code>
+ * fewer entries than it holds and evicts the least recently used entries down
+ * to that limit. Once the pressure is relieved the limit is raised by the same
+ * fraction every check interval until the cache may grow back to the size it
+ * was when the pressure started.</p>
+ *
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.memory.levels</td>
+ *         <td>Semicolon separated fractions of the old generation's maximum
+ *         size at which the cache sheds entries. Empty for none.</td>
+ *         <td></td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.memory.shed</td>
+ *         <td>The fraction of the entries shed at each level, above 0 and
+ *         below 1.</td>
+ *         <td>0.25</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.memory.checkinterval</td>
+ *         <td>The number of milliseconds between checks for the pressure
+ *         being relieved, and between steps in growing back.</td>
+ *         <td>10000</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ */
+
+public class XmlCacheMemoryMonitor implements NotificationListener {
+
+	private static Logger logger = Logger.getLogger(XmlCacheMemoryMonitor.class.getName());
+
+	private static XmlCacheMemoryMonitor instance;
+
+	private MemoryPoolMXBean pool;
+	private double[] levels;
+	private long checkInterval;
+	private long[] thresholds;
+
+	/** The pool's threshold before the monitor armed it, restored on stop **/
+	private long previousThreshold;
+
+	private List <Listener> listeners = new CopyOnWriteArrayList <Listener> ();
+
+	/** Index of the level the threshold is armed at, guarded by this **/
+	private int armed = 0;
+
+	/** Whether pressure has been reported since the last relief, guarded by this **/
+	private boolean pressured = false;
+
+	private Timer timer = new Timer("XmlCacheMemoryMonitor", true);
+
+	/**
+	 * Register a listener with the JVM's monitor, creating it if needed
+	 *
+	 * @param levels		The fractions of the tenured pool's maximum size
+	 * at which pressure is reported
+	 * @param checkInterval	The number of milliseconds between checks for
+	 * relief
+	 * @param listener		The listener
+	 * @return				False if there is no tenured pool that supports
+	 * collection usage thresholds
+	 */
+
+	public static synchronized boolean register(double[] levels, long checkInterval, Listener listener) {
+		if (instance == null) {
+			MemoryPoolMXBean pool = findTenuredPool();
+			if (pool == null) {
+				logger.warning("No heap pool supports collection usage thresholds. Memory pressure is not monitored");
+				return false;
+			}
+			instance = new XmlCacheMemoryMonitor(pool, levels, checkInterval);
+		} else if (!Arrays.equals(sort(levels), instance.levels) || checkInterval != instance.checkInterval) {
+			logger.warning("Memory pressure levels " + Arrays.toString(sort(levels)) + " every " + checkInterval
+					+ "ms are ignored. The monitor is already running at " + Arrays.toString(instance.levels)
+					+ " every " + instance.checkInterval + "ms");
+		}
+		instance.listeners.add(listener);
+		return true;
+	}
+
+	/**
+	 * Remove a listener, stopping the monitor if it was the last
+	 *
+	 * @param listener	The listener
+	 */
+
+	public static synchronized void unregister(Listener listener) {
+		if (instance != null && instance.listeners.remove(listener) && instance.listeners.isEmpty()) {
+			instance.stop();
+			instance = null;
+		}
+	}
+
+	private XmlCacheMemoryMonitor(MemoryPoolMXBean pool, double[] levels, long checkInterval) {
+		this.pool = pool;
+		this.levels = sort(levels);
+		this.checkInterval = checkInterval;
+		long max = pool.getUsage().getMax();
+		thresholds = new long[this.levels.length];
+		for (int i = 0; i < this.levels.length; i++) {
+			thresholds[i] = (long) (max * this.levels[i]);
+		}
+		previousThreshold = pool.getCollectionUsageThreshold();
+		pool.setCollectionUsageThreshold(thresholds[0]);
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, checkInterval, checkInterval);
+		logger.info("Monitoring " + pool.getName() + " at " + Arrays.toString(this.levels) + " of " + max + " bytes");
+	}
+
+	private static double[] sort(double[] levels) {
+		double[] sorted = levels.clone();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()))
+			return;
+		MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+		if (!pool.getName().equals(info.getPoolName()))
+			return;
+
+		final int level;
+		synchronized (this) {
+			level = armed;
+			pressured = true;
+			if (armed < thresholds.length - 1) {
+				armed++;
+				pool.setCollectionUsageThreshold(thresholds[armed]);
+			}
+		}
+		logger.warning(pool.getName() + " has reached memory pressure level " + level + " with "
+				+ info.getUsage().getUsed() + " bytes used");
+
+		// Listeners are not called on the JVM's notification thread
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				for (Listener listener: listeners) {
+					listener.memoryPressure(level);
+				}
+			}
+		}, 0);
+	}
+
+	/**
+	 * Check whether the pressure has been relieved
+	 */
+
+	private void check() {
+		MemoryUsage usage = pool.getCollectionUsage();
+		if (usage == null || usage.getUsed() >= thresholds[0])
+			return;
+		synchronized (this) {
+			if (armed > 0) {
+				armed = 0;
+				pool.setCollectionUsageThreshold(thresholds[0]);
+			}
+			if (!pressured)
+				return;
+		}
+		boolean growing = false;
+		for (Listener listener: listeners) {
+			growing |= listener.memoryRelieved();
+		}
+		if (!growing) {
+			synchronized (this) {
+				pressured = false;
+			}
+			logger.info(pool.getName() + " is no longer under memory pressure");
+		}
+	}
+
+	/**
+	 * Stop checking, stop listening to the JVM and restore the threshold
+	 */
+
+	private void stop() {
+		timer.cancel();
+		try {
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+		} catch (ListenerNotFoundException e) {
+			logger.fine("Monitor was not listening: " + e.getLocalizedMessage());
+		}
+		pool.setCollectionUsageThreshold(previousThreshold);
+		logger.info("No longer monitoring " + pool.getName());
+	}
+
+	/**
+	 * Find the heap pool that holds long-lived objects
+	 *
+	 * @return	The largest heap pool that supports collection usage
+	 * thresholds, or null
+	 */
+
+	private static MemoryPoolMXBean findTenuredPool() {
+		MemoryPoolMXBean tenured = null;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+					&& pool.getUsage().getMax() > 0
+					&& (tenured == null || pool.getUsage().getMax() > tenured.getUsage().getMax())) {
+				tenured = pool;
+			}
+		}
+		return tenured;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Told of changes in memory pressure
+	 */
+
+	public interface Listener {
+
+		/**
+		 * @param level	The index, from 0, of the level that was reached
+		 */
+
+		public void memoryPressure(int level);
+
+		/**
+		 * Called every check interval whilst usage is below the lowest level
+		 * after pressure was reported
+		 *
+		 * @return	True if the listener is still growing back
+		 */
+
+		public boolean memoryRelieved();
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of metrics written in the Prometheus text exposition format
+ *
+ * <p>Values are kept where they are updated, typically in {@link Counter}s,
+ * which are a single atomic add and never allocate. The registry only reads
+ * them when it is scraped: each registered {@link Collector} reports its
+ * current values to a {@link Sink}, which groups the samples of each metric
+ * under one HELP and TYPE line.</p>
+ *
+ * <p>Numeric attributes of MBeans matching a pattern can also be exported,
+ * so that components that do not depend on the cache, such as the WebLogic
+ * logging bridge, can be scraped along with it. Each attribute becomes an
+ * untyped metric named after the MBean domain and attribute, with the
+ * MBean's key properties as labels.</p>
+ *
+ * <p>The XmlCacheUtility keeps its request, load and eviction counts, and the
+ * size of the cache and of each region, in a registry returned by
+ * {@link XmlCacheUtility#getMetrics()}. The counts are always kept, whether or
+ * not statistics are on.</p>
+ *
+ * @see XmlCacheMetricsExporter
+ */
+
+public class XmlCacheMetrics {
+
+	private static Logger logger = Logger.getLogger(XmlCacheMetrics.class.getName());
+
+	private List <Collector> collectors = new CopyOnWriteArrayList <Collector> ();
+
+	/**
+	 * Add a collector
+	 *
+	 * @param collector	The collector
+	 */
+
+	public void register(Collector collector) {
+		collectors.add(collector);
+	}
+
+	/**
+	 * Export the numeric attributes of the MBeans matching a pattern
+	 *
+	 * @param pattern	The object name pattern, for example
+	 * <code>com.oracle.ukps.wls.logging:*</code>
+	 */
+
+	public void registerMBeans(final String pattern) {
+		final ObjectName query;
+		try {
+			query = new ObjectName(pattern);
+		} catch (Exception e) {
+			logger.severe("Invalid MBean pattern '" + pattern + "' is ignored: " + e.getLocalizedMessage());
+			return;
+		}
+		register(new Collector() {
+			public void collect(Sink sink) {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				for (ObjectName name: server.queryNames(query, null)) {
+					StringBuilder labels = new StringBuilder();
+					for (Map.Entry <String, String> property: name.getKeyPropertyList().entrySet()) {
+						String value = property.getValue();
+						label(labels, sanitize(property.getKey()),
+								value.startsWith("\"") ? ObjectName.unquote(value) : value);
+					}
+					MBeanAttributeInfo[] attributes;
+					try {
+						attributes = server.getMBeanInfo(name).getAttributes();
+					} catch (Exception e) {
+						logger.fine("Unable to read MBean " + name + ": " + e.getLocalizedMessage());
+						continue;
+					}
+					for (MBeanAttributeInfo attribute: attributes) {
+						if (!attribute.isReadable())
+							continue;
+						try {
+							Object value = server.getAttribute(name, attribute.getName());
+							if (value instanceof Number) {
+								sink.sample(sanitize(name.getDomain()) + "_" + sanitize(attribute.getName()),
+										"MBean attribute " + attribute.getName(), "untyped", labels.toString(),
+										((Number) value).doubleValue());
+							}
+						} catch (Exception e) {
+							logger.fine("Unable to read " + attribute.getName() + " of MBean " + name + ": "
+									+ e.getLocalizedMessage());
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return	Every metric in the text exposition format
+	 */
+
+	public String scrape() {
+		Sink sink = new Sink();
+		for (Collector collector: collectors) {
+			try {
+				collector.collect(sink);
+			} catch (RuntimeException e) {
+				logger.warning("Metrics collector failed: " + e.getLocalizedMessage());
+			}
+		}
+		return sink.toString();
+	}
+
+	/**
+	 * Append a label to a label list
+	 *
+	 * @param labels	The labels so far, without braces
+	 * @param name		The label name
+	 * @param value		The label value, which is escaped
+	 */
+
+	public static void label(StringBuilder labels, String name, String value) {
+		if (labels.length() > 0)
+			labels.append(',');
+		labels.append(name).append("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				labels.append('\\').append(c);
+			} else if (c == '\n') {
+				labels.append("\\n");
+			} else {
+				labels.append(c);
+			}
+		}
+		labels.append('"');
+	}
+
+	private static String sanitize(String name) {
+		StringBuilder sanitized = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			sanitized.append(Character.isLetterOrDigit(c) && c < 128 ? c : '_');
+		}
+		return sanitized.toString();
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Reports current values when the registry is scraped
+	 */
+
+	public interface Collector {
+
+		/**
+		 * @param sink	Receives the samples
+		 */
+
+		public void collect(Sink sink);
+	}
+
+	/**
+	 * A monotonically increasing count
+	 */
+
+	public static class Counter {
+
+		private AtomicLong value = new AtomicLong();
+
+		public void inc() {
+			value.incrementAndGet();
+		}
+
+		public void add(long amount) {
+			value.addAndGet(amount);
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	/**
+	 * Groups the samples reported by the collectors into metric families
+	 */
+
+	public static class Sink {
+
+		private Map <String, StringBuilder> families = new LinkedHashMap <String, StringBuilder> ();
+
+		/**
+		 * Add a sample
+		 *
+		 * @param name		The metric name
+		 * @param help		The description, used for the first sample only
+		 * @param type		counter, gauge or untyped
+		 * @param labels	The labels without braces, built with
+		 * {@link XmlCacheMetrics#label(StringBuilder, String, String)}, or
+		 * an empty string
+		 * @param value		The value
+		 */
+
+		public void sample(String name, String help, String type, String labels, double value) {
+			StringBuilder family = families.get(name);
+			if (family == null) {
+				family = new StringBuilder();
+				family.append("# HELP ").append(name).append(' ').append(help.replace("\n", " ")).append('\n');
+				family.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+				families.put(name, family);
+			}
+			family.append(name);
+			if (labels.length() > 0)
+				family.append('{').append(labels).append('}');
+			family.append(' ');
+			if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+				family.append((long) value);
+			} else {
+				family.append(value);
+			}
+			family.append('\n');
+		}
+
+		public void counter(String name, String help, String labels, long value) {
+			sample(name, help, "counter", labels, value);
+		}
+
+		public void gauge(String name, String help, String labels, double value) {
+			sample(name, help, "gauge", labels, value);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			for (StringBuilder family: families.values()) {
+				text.append(family);
+			}
+			return text.toString();
+		}
+	}
+}
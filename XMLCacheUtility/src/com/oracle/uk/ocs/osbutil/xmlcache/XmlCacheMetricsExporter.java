@@ -0,0 +1,257 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Publishes a metrics registry in the Prometheus text exposition format
+ *
+ * <p>The metrics can be written to a file at a fixed interval, for a node
+ * exporter text file collector to pick up, and can be served over HTTP on a
+ * port bound to the loopback address. Every request to the port, whatever
+ * its path, is answered with the current metrics. The port's acceptor hands
+ * each connection to a small pool of workers, so that a slow client does not
+ * hold up the others. Files are written to a
+ * temporary file first and renamed so a reader never sees a partial
+ * file.</p>
+ *
+ * <h2>Configuration</h2>
+ *
+ * <p>The XmlCacheUtility exports its metrics, along with the MBeans matching
+ * <code>metrics.mbeans</code>, when a file or port is set. For example:</p>
+ *
+ * <pre>
+ * metrics.port=9404
+ * </pre>
+ *
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>metrics.file</td>
+ *         <td>File the metrics are written to.</td>
+ *         <td>&nbsp;</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>metrics.interval</td>
+ *         <td>The number of milliseconds between writes of the file.</td>
+ *         <td>15000</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>metrics.port</td>
+ *         <td>Local port the metrics are served on over HTTP, 0 for
+ *         none.</td>
+ *         <td>0</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>metrics.mbeans</td>
+ *         <td>Semicolon separated list of the MBean name patterns whose
+ *         numeric attributes are exported, by default the counters of the
+ *         WebLogic logging bridge.</td>
+ *         <td>com.oracle.ukps.wls.logging:*</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ *
+ * @see XmlCacheMetrics
+ */
+
+public class XmlCacheMetricsExporter {
+
+	private static Logger logger = Logger.getLogger(XmlCacheMetricsExporter.class.getName());
+
+	/** Content type of the text exposition format **/
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/** Number of threads answering requests **/
+	private static final int WORKERS = 2;
+
+	private XmlCacheMetrics metrics;
+	private Timer timer = null;
+	private ServerSocket server = null;
+	private ExecutorService workers = null;
+
+	/**
+	 * @param metrics	The registry to publish
+	 */
+
+	public XmlCacheMetricsExporter(XmlCacheMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Write the metrics to a file at a fixed interval
+	 *
+	 * @param file		The file
+	 * @param interval	The number of milliseconds between writes
+	 */
+
+	public synchronized void writeTo(final File file, long interval) {
+		if (timer == null) {
+			timer = new Timer("XmlCacheMetricsExporter", true);
+		}
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					write(file);
+				} catch (IOException e) {
+					logger.warning("Unable to write metrics to " + file + ": " + e.getLocalizedMessage());
+				}
+			}
+		}, 0, interval);
+		logger.info("Writing metrics to " + file + " every " + interval + "ms");
+	}
+
+	/**
+	 * Write the metrics to a file now
+	 *
+	 * @param file	The file
+	 * @throws IOException	If the file cannot be written
+	 */
+
+	public void write(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(metrics.scrape().getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Windows will not rename over an existing file
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Unable to rename " + temp + " to " + file);
+		}
+	}
+
+	/**
+	 * Serve the metrics over HTTP on a local port
+	 *
+	 * @param port	The port, bound to the loopback address
+	 * @throws IOException	If the port cannot be opened
+	 */
+
+	public synchronized void serve(int port) throws IOException {
+		server = new ServerSocket(port, 16, InetAddress.getByName(null));
+		workers = XmlCacheUtility.newExecutor("XmlCacheMetricsExporter-" + server.getLocalPort(), WORKERS);
+		final ServerSocket socket = server;
+		final ExecutorService executor = workers;
+		Thread acceptor = new Thread("XmlCacheMetricsExporter-" + port) {
+			@Override
+			public void run() {
+				while (!socket.isClosed()) {
+					try {
+						final Socket client = socket.accept();
+						try {
+							executor.execute(new Runnable() {
+								public void run() {
+									try {
+										respond(client);
+									} catch (IOException e) {
+										logger.fine("Metrics request failed: " + e.getLocalizedMessage());
+									}
+								}
+							});
+						} catch (RejectedExecutionException e) {
+							// Closed whilst accepting
+							client.close();
+						}
+					} catch (IOException e) {
+						if (!socket.isClosed())
+							logger.fine("Metrics request failed: " + e.getLocalizedMessage());
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		logger.info("Serving metrics on port " + socket.getLocalPort());
+	}
+
+	/**
+	 * @return	The port the metrics are served on, or -1 if they are not
+	 */
+
+	public synchronized int getPort() {
+		return server == null ? -1 : server.getLocalPort();
+	}
+
+	private void respond(Socket client) throws IOException {
+		try {
+			client.setSoTimeout(5000);
+			// Only the end of the request headers matters
+			InputStream in = new BufferedInputStream(client.getInputStream());
+			int matched = 0;
+			int c;
+			while (matched < 4 && (c = in.read()) >= 0) {
+				matched = (c == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (c == '\r' ? 1 : 0);
+			}
+			byte[] body = metrics.scrape().getBytes("UTF-8");
+			OutputStream out = client.getOutputStream();
+			out.write(("HTTP/1.0 200 OK\r\nContent-Type: " + CONTENT_TYPE + "\r\nContent-Length: " + body.length
+					+ "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+			out.write(body);
+			out.flush();
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Stop writing and serving the metrics
+	 */
+
+	public synchronized void close() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		if (server != null) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				logger.fine("Unable to close metrics port: " + e.getLocalizedMessage());
+			}
+			server = null;
+		}
+		if (workers != null) {
+			workers.shutdown();
+			workers = null;
+		}
+	}
+}
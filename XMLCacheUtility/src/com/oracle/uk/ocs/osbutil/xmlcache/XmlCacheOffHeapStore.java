@@ -0,0 +1,285 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * Off-heap store for serialized XML
+ *
+ * <p>Holds serialized documents in direct buffers outside of the Java heap so
+ * that large, long-lived reference data does not add to the old generation
+ * and to the cost of full garbage collections.</p>
+ *
+ * <p>Memory is managed with a slab allocator. Direct buffers of the slab size
+ * are allocated on demand and carved into equally sized chunks for one of a
+ * number of power-of-two size classes. Freed chunks are returned to the free
+ * list of their size class and reused; slabs are never given back. Documents
+ * larger than the slab size are given a direct buffer of their own which is
+ * dropped when freed.</p>
+ *
+ * <p>Each allocation is an {@link XmlCachePayload} that parses by streaming
+ * straight out of the direct buffer, without first copying the bytes on to
+ * the heap.</p>
+ *
+ * <h2>Configuration</h2>
+ *
+ * <p>When <code>cache.storage</code> is <code>offheap</code> the
+ * XmlCacheUtility serializes each document into the store when it is loaded
+ * and holds only the allocation. Each access parses the document straight out
+ * of direct memory. If <code>cache.cold.threshold</code> is also set the
+ * parsed XmlObject is kept until the entry goes cold, when it is simply
+ * dropped and parsed again on the next access. If the store is full the entry
+ * is held on the heap as normal.</p>
+ *
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.storage</td>
+ *         <td>Where entries are stored: <code>heap</code> or
+ *         <code>offheap</code>.</td>
+ *         <td>heap</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.offheap.slabsize</td>
+ *         <td>The size in bytes of each slab.</td>
+ *         <td>1048576</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.offheap.capacity</td>
+ *         <td>The maximum number of bytes of direct memory used.</td>
+ *         <td>268435456</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ */
+
+public class XmlCacheOffHeapStore {
+
+	private static Logger logger = Logger.getLogger(XmlCacheOffHeapStore.class.getName());
+
+	/** Size of the smallest size class **/
+	private static final int MIN_CHUNK = 256;
+
+	private int slabSize;
+	private long capacity;
+	private long reserved = 0;
+	private long used = 0;
+
+	/** Free chunks for each size class **/
+	private List <LinkedList <ByteBuffer>> freeLists = new ArrayList <LinkedList <ByteBuffer>> ();
+
+	/**
+	 * Create an off-heap store
+	 *
+	 * @param slabSize	The size in bytes of each slab, rounded up to a power
+	 * of two
+	 * @param capacity	The maximum number of bytes of direct memory to reserve
+	 */
+
+	public XmlCacheOffHeapStore(int slabSize, long capacity) {
+		int size = MIN_CHUNK;
+		while (size < slabSize) {
+			freeLists.add(new LinkedList <ByteBuffer> ());
+			size <<= 1;
+		}
+		freeLists.add(new LinkedList <ByteBuffer> ());
+		this.slabSize = size;
+		this.capacity = capacity;
+		logger.info("Created off-heap store with slab size " + this.slabSize + " and capacity " + capacity);
+	}
+
+	/**
+	 * Copy serialized XML into the store
+	 *
+	 * @param data	The serialized XML
+	 * @return		The payload holding the data or null if the store is full
+	 */
+
+	public synchronized Slot allocate(byte[] data) {
+		int sizeClass = sizeClass(data.length);
+		ByteBuffer chunk;
+		if (sizeClass < 0) {
+			if (reserved + data.length > capacity)
+				return null;
+			chunk = ByteBuffer.allocateDirect(data.length);
+			reserved += data.length;
+		} else {
+			LinkedList <ByteBuffer> free = freeLists.get(sizeClass);
+			if (free.isEmpty() && !addSlab(sizeClass))
+				return null;
+			chunk = free.removeFirst();
+		}
+
+		chunk.clear();
+		chunk.put(data);
+		used += chunk.capacity();
+		return new Slot(chunk, data.length, sizeClass);
+	}
+
+	/**
+	 * @return	The number of bytes of direct memory reserved by the store
+	 */
+
+	public synchronized long getReserved() {
+		return reserved;
+	}
+
+	/**
+	 * @return	The number of reserved bytes that are currently allocated
+	 */
+
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	private int sizeClass(int length) {
+		int size = MIN_CHUNK;
+		for (int i = 0; i < freeLists.size(); i++) {
+			if (length <= size)
+				return i;
+			size <<= 1;
+		}
+		return -1;
+	}
+
+	private boolean addSlab(int sizeClass) {
+		if (reserved + slabSize > capacity)
+			return false;
+
+		int chunkSize = MIN_CHUNK << sizeClass;
+		ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+		reserved += slabSize;
+		LinkedList <ByteBuffer> free = freeLists.get(sizeClass);
+		for (int offset = 0; offset + chunkSize <= slabSize; offset += chunkSize) {
+			slab.limit(offset + chunkSize);
+			slab.position(offset);
+			free.add(slab.slice());
+		}
+		logger.fine("Added slab for chunk size " + chunkSize);
+		return true;
+	}
+
+	private synchronized void free(ByteBuffer chunk, int sizeClass) {
+		used -= chunk.capacity();
+		if (sizeClass < 0) {
+			reserved -= chunk.capacity();
+		} else {
+			freeLists.get(sizeClass).add(chunk);
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * An allocation in the off-heap store
+	 *
+	 * <p>The chunk is only returned to the store once it has been released
+	 * and no parse is still reading from it.</p>
+	 */
+
+	public class Slot implements XmlCachePayload {
+
+		private ByteBuffer	chunk;
+		private int			length;
+		private int			sizeClass;
+		private int			readers = 0;
+		private boolean		released = false;
+
+		private Slot(ByteBuffer chunk, int length, int sizeClass) {
+			this.chunk = chunk;
+			this.length = length;
+			this.sizeClass = sizeClass;
+		}
+
+		@Override
+		public XmlObject parse() throws XmlCacheException {
+			ByteBuffer view = acquire();
+			try {
+				return XmlObject.Factory.parse(new XmlCacheBufferInputStream(view));
+			} catch (XmlException e) {
+				throw new XmlCacheException("Unable to parse off-heap XML: " + e.getLocalizedMessage());
+			} catch (IOException e) {
+				throw new XmlCacheException("Unable to read off-heap XML: " + e.getLocalizedMessage());
+			} finally {
+				unacquire();
+			}
+		}
+
+		@Override
+		public byte[] getBytes() throws XmlCacheException {
+			ByteBuffer view = acquire();
+			try {
+				byte[] data = new byte[length];
+				view.get(data);
+				return data;
+			} finally {
+				unacquire();
+			}
+		}
+
+		@Override
+		public int size() {
+			return length;
+		}
+
+		@Override
+		public boolean keepAfterParse() {
+			return true;
+		}
+
+		@Override
+		public synchronized void release() {
+			if (released)
+				return;
+			released = true;
+			if (readers == 0)
+				free(chunk, sizeClass);
+		}
+
+		private synchronized ByteBuffer acquire() throws XmlCacheException {
+			if (released)
+				throw new XmlCacheException("Off-heap entry has been released");
+			readers++;
+			ByteBuffer view = chunk.duplicate();
+			view.clear();
+			view.limit(length);
+			return view;
+		}
+
+		private synchronized void unacquire() {
+			readers--;
+			if (released && readers == 0)
+				free(chunk, sizeClass);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * The serialized form of a cache entry that is not currently held as a live
+ * XmlObject.
+ * 
+ * <p>A cache entry holds either a live XmlObject or a payload. When the
+ * XmlObject is needed the payload is parsed and then released.</p>
+ * 
+ * @see XmlCacheCompressedPayload
+ */
+
+public interface XmlCachePayload {
+
+	/**
+	 * Parse the payload into XML
+	 * 
+	 * @return		The parsed XML
+	 * @throws XmlCacheException	If the payload cannot be parsed
+	 */
+	
+	public XmlObject parse() throws XmlCacheException;
+	
+	/**
+	 * Get the serialized XML held by the payload
+	 * 
+	 * @return		The serialized XML
+	 * @throws XmlCacheException	If the payload cannot be read
+	 */
+	
+	public byte[] getBytes() throws XmlCacheException;
+	
+	/**
+	 * @return		The number of bytes used to hold the payload
+	 */
+	
+	public int size();
+	
+	/**
+	 * @return		True if the payload should be kept once it has been parsed,
+	 * because it is held outside of the Java heap, so that the cold sweep can
+	 * drop the parsed XML without compressing it. Otherwise the payload is
+	 * released once the parsed XML is held live.
+	 */
+	
+	public boolean keepAfterParse();
+	
+	/**
+	 * Release any resources held by the payload. The payload must not be
+	 * used afterwards.
+	 */
+	
+	public void release();
+}
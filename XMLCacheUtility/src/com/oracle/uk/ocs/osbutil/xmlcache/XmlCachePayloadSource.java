@@ -0,0 +1,38 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+/**
+ * Optional interface for an XML source that holds documents outside of the
+ * Java heap, for example in a memory-mapped file.
+ * 
+ * <p>The XmlCacheUtility caches the payload returned by this interface
+ * rather than a parsed XmlObject, so documents are parsed straight out of
+ * the source's storage when they are needed.</p>
+ * 
+ * @see XmlCacheSharedSource
+ */
+
+public interface XmlCachePayloadSource extends XmlCacheSource {
+
+	/**
+	 * Search the XML source for the XML identified by key
+	 * 
+	 * @param key	The key to use for locating the XML
+	 * @return		A payload holding the XML associated with the key or null
+	 * if not found
+	 */
+	
+	public XmlCachePayload readPayload(String key);
+}
@@ -0,0 +1,40 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+/**
+ * Optional interface for an XML source that can supply the raw, unparsed
+ * bytes of a document.
+ * 
+ * <p>When lazy loading is configured the XmlCacheUtility uses this interface
+ * to cache the bytes and defer parsing them until the XML is actually
+ * needed. Sources that do not implement it are always parsed on load.</p>
+ * 
+ * @see XmlCacheLazyPayload
+ * @see XmlCacheFileSource
+ */
+
+public interface XmlCacheRawSource extends XmlCacheSource {
+
+	/**
+	 * Search the XML source for the raw bytes of the XML identified by key
+	 * 
+	 * @param key	The key to use for locating the XML
+	 * @return		The unparsed XML associated with the key or null if not
+	 * found
+	 */
+	
+	public byte[] readRawSource(String key);
+}
@@ -0,0 +1,67 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * Converts cached XML to and from its serialized (byte) form
+ *
+ * <p>Used wherever the cache holds XML outside of the live XmlObject tree,
+ * for example in the L2 disk store.</p>
+ */
+
+public class XmlCacheSerializer {
+
+	private XmlCacheSerializer() {
+	}
+
+	/**
+	 * Serialize XML to bytes
+	 *
+	 * @param xml	The XML to serialize
+	 * @return		The serialized XML
+	 * @throws IOException	If the XML cannot be written
+	 */
+
+	public static byte[] toBytes(XmlObject xml) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		xml.save(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Parse serialized XML
+	 *
+	 * @param data	The serialized XML
+	 * @return		The parsed XML
+	 * @throws XmlCacheException	If the bytes cannot be parsed
+	 */
+
+	public static XmlObject parse(byte[] data) throws XmlCacheException {
+		try {
+			return XmlObject.Factory.parse(new ByteArrayInputStream(data));
+		} catch (XmlException e) {
+			throw new XmlCacheException("Unable to parse serialized XML: " + e.getLocalizedMessage());
+		} catch (IOException e) {
+			throw new XmlCacheException("Unable to read serialized XML: " + e.getLocalizedMessage());
+		}
+	}
+}
@@ -0,0 +1,430 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * Memory-mapped segment file of serialized XML shared between processes
+ * 
+ * <p>Several managed servers on the same host can share one copy of their
+ * reference data. A single process writes the serialized documents, with an
+ * index, into a segment file and every process on the host maps that file
+ * read-only. The operating system holds one copy of the mapped pages for all
+ * of them, so loading the documents from their original sources, and the
+ * memory to hold the serialized form, is paid once per host rather than once
+ * per JVM.</p>
+ * 
+ * <p>A segment is immutable once written. Each segment is written to its
+ * own file, named after the configured file with its sequence number
+ * appended, for example <code>xmlcache.seg.1700000000000</code>, and is then
+ * published by replacing the configured file, a small pointer file holding
+ * that sequence number. A mapped file is therefore never renamed over or
+ * rewritten, and readers that still map the previous segment continue to
+ * see it until they reopen. Readers compare the sequence number of their
+ * segment with the pointer file to find out whether it has been replaced.
+ * Publishing a segment deletes those older than the one it replaces.
+ * Segments are limited to 2GB.</p>
+ * 
+ * <h2>File Format</h2>
+ * 
+ * <p>A header (magic number, format version, sequence number, entry count
+ * and index length)
+ * followed by the index, one record per entry (key, version, offset and
+ * length of its data), followed by the concatenated serialized
+ * documents.</p>
+ * 
+ * <h2>Configuration</h2>
+ * 
+ * <p>The writing process sets <code>cache.shared.file</code> and its
+ * XmlCacheUtility periodically publishes its unexpired entries (see
+ * {@link XmlCacheUtility#publishSharedSegment()}). The other processes
+ * configure an {@link XmlCacheSharedSource} on the same file ahead of their
+ * other sources.</p>
+ * 
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.shared.file</td>
+ *         <td>The pointer file that segments are published through. Only one
+ *         process per host should set this.</td>
+ *         <td></td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.shared.interval</td>
+ *         <td>The number of milliseconds between publications.</td>
+ *         <td>60000</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ * 
+ * @see XmlCacheSharedSource
+ */
+
+public class XmlCacheSharedSegment {
+
+	private static Logger logger = Logger.getLogger(XmlCacheSharedSegment.class.getName());
+	
+	/** Identifies a segment file **/
+	private static final int MAGIC = 0x584d4c53;
+	
+	/** Version of the segment file format **/
+	private static final int FORMAT = 2;
+	
+	/** Length of the fixed header **/
+	private static final int HEADER_LENGTH = 24;
+	
+	/** The pointer file **/
+	private File file;
+	private long sequence;
+	private MappedByteBuffer buffer;
+	private Map <String, Location> index = new HashMap <String, Location> ();
+	
+	private XmlCacheSharedSegment(File file) {
+		this.file = file;
+	}
+	
+	/**
+	 * Write a segment and publish it in place of any existing segment
+	 * 
+	 * @param file		The pointer file
+	 * @param records	The entries to write
+	 * @throws IOException	If the segment cannot be written or published
+	 */
+	
+	public static void write(File file, List <XmlCacheSnapshot.Record> records) throws IOException {
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+		DataOutputStream indexOut = new DataOutputStream(indexBytes);
+		long offset = 0;
+		for (XmlCacheSnapshot.Record record: records) {
+			indexOut.writeUTF(record.getKey());
+			indexOut.writeLong(record.getVersion());
+			indexOut.writeInt((int) offset);
+			indexOut.writeInt(record.getData().length);
+			offset += record.getData().length;
+		}
+		indexOut.close();
+		if (HEADER_LENGTH + indexBytes.size() + offset > Integer.MAX_VALUE) {
+			throw new IOException("Shared segment would exceed 2GB");
+		}
+		
+		// Kept increasing even if the previous segment has been deleted
+		long previous = readSequence(file);
+		long sequence = Math.max(previous + 1, System.currentTimeMillis());
+		File directory = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(file.getName() + ".", ".tmp", directory);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		boolean written = false;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(sequence);
+			out.writeInt(records.size());
+			out.writeInt(indexBytes.size());
+			indexBytes.writeTo(out);
+			for (XmlCacheSnapshot.Record record: records) {
+				out.write(record.getData());
+			}
+			written = true;
+		} finally {
+			out.close();
+			if (!written)
+				temp.delete();
+		}
+		
+		File segmentFile = getSegmentFile(file, sequence);
+		if (!temp.renameTo(segmentFile)) {
+			temp.delete();
+			throw new IOException("Unable to rename shared segment " + temp + " to " + segmentFile);
+		}
+		publish(file, sequence);
+		logger.fine("Wrote " + records.size() + " entries to shared segment " + segmentFile);
+		deleteSegmentsBefore(file, previous);
+	}
+	
+	/**
+	 * Point the pointer file at a segment
+	 * 
+	 * @param file		The pointer file
+	 * @param sequence	The sequence number of the segment
+	 * @throws IOException	If the pointer file cannot be replaced
+	 */
+	
+	private static void publish(File file, long sequence) throws IOException {
+		File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write((sequence + "\n").getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Windows will not rename over an existing file. Whilst the
+			// pointer is missing readers keep the segment they have
+			file.delete();
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				throw new IOException("Unable to rename shared segment pointer " + temp + " to " + file);
+			}
+		}
+	}
+	
+	/**
+	 * Delete the segment files older than a sequence number. Files that
+	 * cannot be deleted, typically on Windows whilst a reader still maps
+	 * them, are left for a later publication to delete.
+	 * 
+	 * @param file		The pointer file
+	 * @param sequence	The sequence number of the oldest segment to keep
+	 */
+	
+	private static void deleteSegmentsBefore(File file, long sequence) {
+		File[] siblings = file.getAbsoluteFile().getParentFile().listFiles();
+		if (siblings == null)
+			return;
+		String prefix = file.getName() + ".";
+		for (File sibling: siblings) {
+			String name = sibling.getName();
+			if (!name.startsWith(prefix))
+				continue;
+			try {
+				if (Long.parseLong(name.substring(prefix.length())) < sequence && sibling.delete())
+					logger.fine("Deleted old shared segment " + sibling);
+			} catch (NumberFormatException e) {
+				// Not a segment file
+			}
+		}
+	}
+	
+	private static File getSegmentFile(File file, long sequence) {
+		return new File(file.getPath() + "." + sequence);
+	}
+	
+	/**
+	 * Map the segment that a pointer file points at read-only
+	 * 
+	 * @param file	The pointer file
+	 * @return		The mapped segment
+	 * @throws IOException	If the segment cannot be read or is not valid
+	 */
+	
+	public static XmlCacheSharedSegment open(File file) throws IOException {
+		long published = readSequence(file);
+		if (published == 0)
+			throw new IOException("No shared segment is published at " + file);
+		XmlCacheSharedSegment segment = new XmlCacheSharedSegment(file);
+		File segmentFile = getSegmentFile(file, published);
+		RandomAccessFile raf = new RandomAccessFile(segmentFile, "r");
+		try {
+			segment.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			// The mapping remains valid once the channel has been closed
+			raf.close();
+		}
+		
+		ByteBuffer view = segment.buffer.duplicate();
+		if (view.getInt() != MAGIC)
+			throw new IOException("Not a shared cache segment: " + segmentFile);
+		int format = view.getInt();
+		if (format != FORMAT)
+			throw new IOException("Unsupported shared segment format " + format + ": " + segmentFile);
+		segment.sequence = view.getLong();
+		if (segment.sequence != published)
+			throw new IOException("Shared segment " + segmentFile + " has sequence number " + segment.sequence);
+		int count = view.getInt();
+		int indexLength = view.getInt();
+		int dataStart = HEADER_LENGTH + indexLength;
+		
+		DataInputStream in = new DataInputStream(new XmlCacheBufferInputStream(view));
+		for (int i = 0; i < count; i++) {
+			String key = in.readUTF();
+			long version = in.readLong();
+			int offset = in.readInt();
+			int length = in.readInt();
+			segment.index.put(key, new Location(version, dataStart + offset, length));
+		}
+		logger.info("Mapped shared segment " + segmentFile + " with " + count + " entries");
+		return segment;
+	}
+	
+	/**
+	 * Read the sequence number of the published segment from a pointer file
+	 * 
+	 * @param file	The pointer file
+	 * @return		The sequence number, or 0 if the file is missing or does
+	 * not hold a sequence number
+	 */
+	
+	private static long readSequence(File file) {
+		if (!file.isFile())
+			return 0;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				String line = raf.readLine();
+				return line == null ? 0 : Long.parseLong(line.trim());
+			} finally {
+				raf.close();
+			}
+		} catch (NumberFormatException e) {
+			logger.fine("Shared segment pointer " + file + " does not hold a sequence number");
+			return 0;
+		} catch (IOException e) {
+			logger.fine("Unable to read shared segment pointer " + file + ": " + e.getLocalizedMessage());
+			return 0;
+		}
+	}
+	
+	/**
+	 * Get the XML for a key
+	 * 
+	 * @param key	The cache key
+	 * @return		A payload that parses straight out of the mapping, or null
+	 * if the key is not in the segment
+	 */
+	
+	public XmlCachePayload get(String key) {
+		Location location = index.get(key);
+		if (location == null)
+			return null;
+		ByteBuffer view = buffer.duplicate();
+		view.position(location.offset);
+		view.limit(location.offset + location.length);
+		return new MappedPayload(view.slice());
+	}
+	
+	/**
+	 * Get the version of the entry for a key
+	 * 
+	 * @param key	The cache key
+	 * @return		The version, or -1 if the key is not in the segment
+	 */
+	
+	public long getVersion(String key) {
+		Location location = index.get(key);
+		return location == null ? -1 : location.version;
+	}
+	
+	/**
+	 * @return	The number of entries in the segment
+	 */
+	
+	public int size() {
+		return index.size();
+	}
+	
+	/**
+	 * @return	The sequence number of the segment
+	 */
+	
+	public long getSequence() {
+		return sequence;
+	}
+	
+	/**
+	 * @return	True if another segment has been published since this one was
+	 * mapped
+	 */
+	
+	public boolean isStale() {
+		long current = readSequence(file);
+		return current != 0 && current != sequence;
+	}
+	
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+	
+	private static class Location {
+		
+		private long	version;
+		private int		offset;
+		private int		length;
+		
+		private Location(long version, int offset, int length) {
+			this.version = version;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	/**
+	 * Payload held in the shared mapping. It is never released because the
+	 * mapping is shared by every entry and remains valid whilst referenced.
+	 */
+	
+	private static class MappedPayload implements XmlCachePayload {
+		
+		private ByteBuffer data;
+		
+		private MappedPayload(ByteBuffer data) {
+			this.data = data;
+		}
+		
+		@Override
+		public XmlObject parse() throws XmlCacheException {
+			try {
+				return XmlObject.Factory.parse(new XmlCacheBufferInputStream(data.duplicate()));
+			} catch (XmlException e) {
+				throw new XmlCacheException("Unable to parse shared XML: " + e.getLocalizedMessage());
+			} catch (IOException e) {
+				throw new XmlCacheException("Unable to read shared XML: " + e.getLocalizedMessage());
+			}
+		}
+		
+		@Override
+		public byte[] getBytes() {
+			byte[] bytes = new byte[data.capacity()];
+			data.duplicate().get(bytes);
+			return bytes;
+		}
+		
+		@Override
+		public int size() {
+			return data.capacity();
+		}
+		
+		@Override
+		public boolean keepAfterParse() {
+			return true;
+		}
+		
+		@Override
+		public void release() {
+		}
+	}
+}
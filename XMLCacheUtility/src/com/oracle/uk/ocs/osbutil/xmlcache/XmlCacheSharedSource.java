@@ -0,0 +1,143 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * Shared segment implementation of XmlCacheSource
+ * 
+ * <p>Reads XML out of a {@link XmlCacheSharedSegment} file that is written
+ * by one process on the host (see the <code>cache.shared.file</code>
+ * property in {@link XmlCacheSharedSegment}) and mapped read-only by every
+ * other process.
+ * This source should normally be listed before the original sources so that
+ * they are only searched for keys the segment does not hold.</p>
+ * 
+ * <p>The entries cached from this source hold the mapped bytes rather than
+ * a copy of them (see {@link XmlCachePayloadSource}). The segment file is
+ * checked for replacement at most once every check interval and remapped if
+ * it has changed. As with off-heap storage, a document is parsed on its
+ * first access and the parsed XML is kept until the entry goes cold (see
+ * <code>cache.cold.threshold</code>), when it is dropped again and the
+ * mapped bytes are parsed on the next access.</p>
+ * 
+ * <h2>Configuration</h2>
+ * 
+ * <pre>
+ * ...
+ * source.shared.class=com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheSharedSource
+ * source.shared.file=/var/cache/osb/xmlcache.seg
+ * ...
+ * </pre>
+ * 
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Key</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>file</td>
+ *         <td>The path to the pointer file of the shared segment (see
+ *         {@link XmlCacheSharedSegment}).</td>
+ *         <td></td>
+ *         <td>Yes</td>
+ *     </tr>
+ *     <tr>
+ *         <td>checkinterval</td>
+ *         <td>The minimum number of milliseconds between checks for a
+ *         replaced segment file.</td>
+ *         <td>5000</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ * 
+ * @see XmlCacheSharedSegment
+ */
+
+public class XmlCacheSharedSource implements XmlCachePayloadSource {
+	
+	private static Logger logger = Logger.getLogger(XmlCacheSharedSource.class.getName());
+	
+	private File file;
+	private long checkInterval = 5000;
+	private long lastCheck = 0;
+	private XmlCacheSharedSegment segment = null;
+	
+	@Override
+	public XmlCachePayload readPayload(String key) {
+		XmlCacheSharedSegment current = getSegment();
+		if (current == null)
+			return null;
+		XmlCachePayload payload = current.get(key);
+		logger.finer((payload == null ? "Missed" : "Found") + " key '" + key + "' in shared segment");
+		return payload;
+	}
+	
+	@Override
+	public XmlObject readSource(String key) {
+		XmlCachePayload payload = readPayload(key);
+		if (payload == null)
+			return null;
+		try {
+			return payload.parse();
+		} catch (XmlCacheException e) {
+			logger.severe(e.getLocalizedMessage());
+			return null;
+		}
+	}
+	
+	private synchronized XmlCacheSharedSegment getSegment() {
+		long now = System.currentTimeMillis();
+		if (segment != null && now - lastCheck < checkInterval)
+			return segment;
+		lastCheck = now;
+		
+		if (segment == null || segment.isStale()) {
+			if (!file.isFile()) {
+				logger.finer("No shared segment at " + file);
+				return segment;
+			}
+			try {
+				segment = XmlCacheSharedSegment.open(file);
+			} catch (IOException e) {
+				logger.warning("Unable to map shared segment " + file + ": " + e.getLocalizedMessage());
+			}
+		}
+		return segment;
+	}
+	
+	@Override
+	public void configure(Properties configuration, String propbase) throws Exception {
+		logger.finer("Configuring shared source for property base: " + propbase);
+		String path = configuration.getProperty(propbase + ".file");
+		if (path == null)
+			throw new XmlCacheException("No shared segment file configured for " + propbase);
+		file = new File(path);
+		checkInterval = XmlCacheUtility.getLongProperty(configuration, propbase + ".checkinterval", 5000);
+		logger.fine("Configured shared source against file: " + file);
+	}
+	
+	@Override
+	public String toString() {
+		return this.getClass().getName() + " {" + file + "}";
+	}
+}
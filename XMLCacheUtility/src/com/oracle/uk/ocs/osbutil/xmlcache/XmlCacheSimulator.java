@@ -0,0 +1,420 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * Replays a recorded trace of requests through the cache to predict the
+ * hit ratio, load volume and memory use of different configurations
+ *
+ * <p>The trace is a file written by {@link XmlCacheAccessRecorder}, with
+ * the time in milliseconds and the key of each request on a line, separated
+ * by a tab, and the size of each document loaded on a further line. Each
+ * configuration is replayed through a real {@link XmlCacheUtility}, so the
+ * same expiry and eviction policies apply as in production, but with its
+ * clock set to the time of each request and with a stubbed source that
+ * returns a generated document for every key. The document is the size most
+ * recently loaded for the key at that point in the trace, or the first size
+ * loaded for it later in the trace, so a document that changed size is
+ * replayed at each of its sizes in turn. Keys that were never loaded in the
+ * trace get documents of a default size.</p>
+ *
+ * <p>Settings that need real sources, other processes, disks or background
+ * threads, such as sources, regions, the L2 store, snapshots, memory pressure
+ * and asynchronous refresh, are removed from the configuration before it is
+ * replayed. A weight limit is always set, if only to the largest value, so
+ * that the peak weight can be reported.</p>
+ *
+ * <p>From the command line:</p>
+ *
+ * <pre>
+ * java com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheSimulator requests.log
+ *     -config xmlcache.properties -size 4096
+ *     cache.maxentries=1000,10000 cache.expiry=60000,300000
+ * </pre>
+ *
+ * <p>replays every combination of the listed values on top of the
+ * configuration file and prints one line of results for each.</p>
+ */
+
+public class XmlCacheSimulator {
+
+	/** Prefixes of the settings that are not simulated **/
+	private static final String[] IGNORED_SETTINGS = {
+		"source.", "region.", XmlCacheUtility.CFGKEY_CACHE_REGIONS, XmlCacheUtility.CFGKEY_CACHE_L2,
+		XmlCacheUtility.CFGKEY_CACHE_REFRESH, XmlCacheUtility.CFGKEY_CACHE_STATS_REPORT, "cache.snapshot.",
+		"cache.shared.", "cache.memory.", "cache.cold.", "cache.record.", "cache.config.", "cluster.", "metrics."
+	};
+
+	private List <Access> trace;
+	private int size;
+
+	/**
+	 * @param trace	The requests to replay, in time order
+	 * @param size	The size in bytes of the text of the documents generated
+	 * for keys that were not loaded in the trace
+	 */
+
+	public XmlCacheSimulator(List <Access> trace, int size) {
+		this.trace = trace;
+		this.size = size;
+	}
+
+	/**
+	 * Read a trace file
+	 *
+	 * @param file	The file written by {@link XmlCacheAccessRecorder}
+	 * @return		The requests in the file
+	 * @throws IOException	If the file cannot be read or a line is invalid
+	 */
+
+	public static List <Access> readTrace(File file) throws IOException {
+		List <Access> trace = new ArrayList <Access> ();
+		Map <String, Access> latest = new HashMap <String, Access> ();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null) {
+				number++;
+				if (line.length() == 0)
+					continue;
+				int tab = line.indexOf('\t');
+				int sizeTab = line.indexOf('\t', tab + 1);
+				try {
+					long time = Long.parseLong(line.substring(0, tab));
+					if (sizeTab < 0) {
+						Access access = new Access(time, XmlCacheAccessRecorder.unescape(line.substring(tab + 1)));
+						trace.add(access);
+						latest.put(access.key, access);
+					} else {
+						// The size loaded for the last request for the key
+						Access access = latest.get(XmlCacheAccessRecorder.unescape(line.substring(tab + 1, sizeTab)));
+						if (access != null) {
+							access.size = Long.parseLong(line.substring(sizeTab + 1));
+						}
+					}
+				} catch (RuntimeException e) {
+					throw new IOException("Invalid request on line " + number + " of " + file);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return trace;
+	}
+
+	/**
+	 * Replay every combination of a set of settings
+	 *
+	 * @param base		The configuration the settings are applied to
+	 * @param settings	The values to try for each setting
+	 * @return			The results of each combination
+	 */
+
+	public List <Result> sweep(Properties base, Map <String, List <String>> settings) {
+		List <Result> results = new ArrayList <Result> ();
+		sweep(base, new ArrayList <Map.Entry <String, List <String>>> (settings.entrySet()), 0,
+				new LinkedHashMap <String, String> (), results);
+		return results;
+	}
+
+	private void sweep(Properties base, List <Map.Entry <String, List <String>>> settings, int index,
+			Map <String, String> chosen, List <Result> results) {
+		if (index == settings.size()) {
+			Properties configuration = new Properties();
+			configuration.putAll(base);
+			configuration.putAll(chosen);
+			results.add(simulate(configuration, chosen.toString()));
+			return;
+		}
+		Map.Entry <String, List <String>> setting = settings.get(index);
+		for (String value: setting.getValue()) {
+			chosen.put(setting.getKey(), value);
+			sweep(base, settings, index + 1, chosen, results);
+		}
+		chosen.remove(setting.getKey());
+	}
+
+	/**
+	 * Replay the trace through a cache
+	 *
+	 * @param settings		The configuration of the cache
+	 * @param description	Describes the configuration in the result
+	 * @return				The result
+	 */
+
+	public Result simulate(Properties settings, String description) {
+		Properties configuration = new Properties();
+		for (String key: settings.stringPropertyNames()) {
+			if (!isIgnored(key)) {
+				configuration.setProperty(key, settings.getProperty(key));
+			}
+		}
+		if (XmlCacheUtility.getLongProperty(configuration, XmlCacheUtility.CFGKEY_CACHE_MAXWEIGHT, 0) <= 0) {
+			configuration.setProperty(XmlCacheUtility.CFGKEY_CACHE_MAXWEIGHT, Long.toString(Long.MAX_VALUE));
+		}
+
+		SimulatedCache cache = new SimulatedCache(configuration);
+		SimulatedSource source = new SimulatedSource(size, getFirstSizes());
+		cache.addXmlCacheSource(source);
+
+		Result result = new Result(description);
+		for (Access access: trace) {
+			cache.now = access.time;
+			if (access.size >= 0) {
+				source.sizes.put(access.key, access.size);
+			}
+			try {
+				cache.getXml(access.key);
+			} catch (XmlCacheException e) {
+				throw new IllegalStateException("Simulated source failed for key: " + access.key, e);
+			}
+			result.requests++;
+			result.peakEntries = Math.max(result.peakEntries, cache.getCacheSize());
+			result.peakWeight = Math.max(result.peakWeight, cache.getCacheWeight());
+		}
+		result.loads = source.loads;
+		result.loadBytes = source.loadBytes;
+		return result;
+	}
+
+	/**
+	 * @return	The first size loaded for each key in the trace
+	 */
+
+	private Map <String, Long> getFirstSizes() {
+		Map <String, Long> sizes = new HashMap <String, Long> ();
+		for (Access access: trace) {
+			if (access.size >= 0 && !sizes.containsKey(access.key)) {
+				sizes.put(access.key, access.size);
+			}
+		}
+		return sizes;
+	}
+
+	private static boolean isIgnored(String key) {
+		for (String prefix: IGNORED_SETTINGS) {
+			if (key.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: XmlCacheSimulator <trace file> [-config <properties file>] [-size <bytes>]"
+					+ " [<property>=<value>[,<value>...]]...");
+			System.exit(1);
+		}
+
+		Properties base = new Properties();
+		int size = 1024;
+		Map <String, List <String>> settings = new LinkedHashMap <String, List <String>> ();
+		for (int i = 1; i < args.length; i++) {
+			if ("-config".equals(args[i]) && i + 1 < args.length) {
+				FileInputStream in = new FileInputStream(args[++i]);
+				try {
+					base.load(in);
+				} finally {
+					in.close();
+				}
+			} else if ("-size".equals(args[i]) && i + 1 < args.length) {
+				size = Integer.parseInt(args[++i]);
+			} else if (args[i].indexOf('=') > 0) {
+				int equals = args[i].indexOf('=');
+				settings.put(args[i].substring(0, equals), Arrays.asList(args[i].substring(equals + 1).split(",")));
+			} else {
+				System.err.println("Unrecognised argument: " + args[i]);
+				System.exit(1);
+			}
+		}
+
+		List <Access> trace = readTrace(new File(args[0]));
+		System.out.println("Replaying " + trace.size() + " requests");
+		for (Result result: new XmlCacheSimulator(trace, size).sweep(base, settings)) {
+			System.out.println(result);
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A recorded request
+	 */
+
+	public static class Access {
+
+		private long	time;
+		private String	key;
+		private long	size;
+
+		public Access(long time, String key) {
+			this(time, key, -1);
+		}
+
+		public Access(long time, String key, long size) {
+			this.time = time;
+			this.key = key;
+			this.size = size;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return	The size in bytes of the document loaded for the request,
+		 * or -1 if it did not load one
+		 */
+
+		public long getSize() {
+			return size;
+		}
+	}
+
+	/**
+	 * The outcome of replaying the trace through one configuration
+	 */
+
+	public static class Result {
+
+		private String	description;
+		private long	requests;
+		private long	loads;
+		private long	loadBytes;
+		private int		peakEntries;
+		private long	peakWeight;
+
+		private Result(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public long getRequests() {
+			return requests;
+		}
+
+		public long getHits() {
+			return requests - loads;
+		}
+
+		public double getHitRatio() {
+			return requests == 0 ? 0 : (double) getHits() / requests;
+		}
+
+		public long getLoads() {
+			return loads;
+		}
+
+		public long getLoadBytes() {
+			return loadBytes;
+		}
+
+		public int getPeakEntries() {
+			return peakEntries;
+		}
+
+		public long getPeakWeight() {
+			return peakWeight;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("SIMULATION %s REQUESTS=%d HITS=%d HIT-RATIO=%.4f LOADS=%d LOAD-BYTES=%d"
+					+ " PEAK-ENTRIES=%d PEAK-WEIGHT=%d", description, requests, getHits(), getHitRatio(), loads,
+					loadBytes, peakEntries, peakWeight);
+		}
+	}
+
+	/**
+	 * A cache whose clock is set by the simulator
+	 */
+
+	private static class SimulatedCache extends XmlCacheUtility {
+
+		private long now;
+
+		private SimulatedCache(Properties configuration) {
+			super(configuration);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	/**
+	 * A source that generates a document of the recorded size for any key
+	 */
+
+	private static class SimulatedSource implements XmlCacheSource {
+
+		private int					size;
+		private Map <String, Long>	sizes;
+		private long				loads = 0;
+		private long				loadBytes = 0;
+
+		private SimulatedSource(int size, Map <String, Long> sizes) {
+			this.size = size;
+			this.sizes = sizes;
+		}
+
+		public XmlObject readSource(String key) {
+			Long recorded = sizes.get(key);
+			char[] chars = new char[recorded != null ? (int) Math.min(recorded, Integer.MAX_VALUE) : size];
+			Arrays.fill(chars, 'x');
+			String text = new String(chars);
+			XmlObject xml = XmlObject.Factory.newInstance();
+			XmlCursor cursor = xml.newCursor();
+			cursor.toNextToken();
+			cursor.beginElement("simulated");
+			cursor.insertAttributeWithValue("key", key);
+			cursor.insertChars(text);
+			cursor.dispose();
+			loads++;
+			loadBytes += text.length();
+			return xml;
+		}
+
+		public void configure(Properties configuration, String base) {
+		}
+	}
+}
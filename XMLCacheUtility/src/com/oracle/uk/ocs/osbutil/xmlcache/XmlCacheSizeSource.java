@@ -0,0 +1,40 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+/**
+ * Optional interface for an XML source that knows the size of the text of
+ * each of its documents.
+ *
+ * <p>When <code>cache.maxweight</code> is set the XmlCacheUtility weighs
+ * documents from these sources by the size they report, rather than by
+ * serializing each document to measure it.</p>
+ *
+ * @see XmlCacheUtility
+ * @see XmlCacheFileSource
+ */
+
+public interface XmlCacheSizeSource extends XmlCacheSource {
+
+	/**
+	 * Get the size of XML that has just been read from the source
+	 *
+	 * @param key	The key of the XML
+	 * @return		The size in bytes of the XML text, which may be an
+	 * estimate, or -1 if it is not known
+	 */
+
+	public long getSize(String key);
+}
@@ -0,0 +1,235 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes snapshots of the cache contents
+ * 
+ * <p>A snapshot is a local file holding, for each cached entry, its key, its
+ * version (the time it was loaded from its source), the time it expires and
+ * its serialized XML.
+ * The XmlCacheUtility writes a snapshot periodically and at shutdown and
+ * restores from it at startup, so that a restarted server does not have to
+ * reload every document from its source before it is ready.</p>
+ * 
+ * <p>A snapshot is written to a temporary file which is then renamed over
+ * the previous snapshot, so a crash whilst writing never leaves a partial
+ * snapshot in place. Where the platform cannot rename over an existing file
+ * the previous snapshot is deleted first, and if a crash then leaves only the
+ * temporary file it is read instead.</p>
+ * 
+ * <h2>Configuration</h2>
+ * 
+ * <p>At startup the snapshot is restored before the cache is used,
+ * deserializing entries in parallel, or caching them lazily when
+ * <code>cache.lazy</code> is set. Entries that expired whilst the server was
+ * down are not restored. Unless <code>cache.snapshot.revalidate</code> is
+ * false the restored entries are then revalidated against their sources in
+ * the background: each is replaced with the current version from its source,
+ * or kept until it expires if no source has it any longer. A single shutdown
+ * hook writes the snapshots of every cache that has not been shut down with
+ * {@link XmlCacheUtility#shutdown()}.</p>
+ * 
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.snapshot.file</td>
+ *         <td>The snapshot file. No snapshot is taken if not set.</td>
+ *         <td></td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.snapshot.interval</td>
+ *         <td>The number of milliseconds between periodic snapshots. Zero
+ *         means a snapshot is only written at shutdown.</td>
+ *         <td>0</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.snapshot.threads</td>
+ *         <td>The number of threads used to deserialize a snapshot and
+ *         revalidate its entries.</td>
+ *         <td>Number of processors</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.snapshot.revalidate</td>
+ *         <td>Flag to control whether restored entries are reloaded from
+ *         their sources in the background.</td>
+ *         <td>true</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ */
+
+public class XmlCacheSnapshot {
+
+	private static Logger logger = Logger.getLogger(XmlCacheSnapshot.class.getName());
+	
+	/** Identifies a snapshot file **/
+	private static final int MAGIC = 0x584d4c43;
+	
+	/** Version of the snapshot file format **/
+	private static final int FORMAT = 2;
+	
+	private XmlCacheSnapshot() {
+	}
+	
+	/**
+	 * Write a snapshot
+	 * 
+	 * @param file		The snapshot file
+	 * @param records	The entries to write
+	 * @throws IOException	If the snapshot cannot be written
+	 */
+	
+	public static void write(File file, List <Record> records) throws IOException {
+		File temp = getTemporaryFile(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeInt(records.size());
+			for (Record record: records) {
+				out.writeUTF(record.key);
+				out.writeLong(record.version);
+				out.writeLong(record.deadline);
+				out.writeInt(record.data.length);
+				out.write(record.data);
+			}
+		} finally {
+			out.close();
+		}
+		
+		if (!temp.renameTo(file)) {
+			// Windows will not rename over an existing file
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Unable to rename snapshot " + temp + " to " + file);
+		}
+		logger.fine("Wrote " + records.size() + " entries to snapshot " + file);
+	}
+	
+	/**
+	 * Read a snapshot
+	 * 
+	 * @param file		The snapshot file
+	 * @return			The entries in the snapshot
+	 * @throws IOException	If the snapshot cannot be read or is not valid
+	 */
+	
+	public static List <Record> read(File file) throws IOException {
+		if (!file.isFile() && getTemporaryFile(file).isFile()) {
+			logger.warning("Snapshot " + file + " was not replaced. Reading " + getTemporaryFile(file));
+			file = getTemporaryFile(file);
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a cache snapshot: " + file);
+			int format = in.readInt();
+			if (format != FORMAT)
+				throw new IOException("Unsupported snapshot format " + format + ": " + file);
+			
+			int count = in.readInt();
+			List <Record> records = new ArrayList <Record> (count);
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				long version = in.readLong();
+				long deadline = in.readLong();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				records.add(new Record(key, version, deadline, data));
+			}
+			logger.fine("Read " + count + " entries from snapshot " + file);
+			return records;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * @param file	The snapshot file
+	 * @return		True if there is a snapshot to read
+	 */
+	
+	public static boolean exists(File file) {
+		return file.isFile() || getTemporaryFile(file).isFile();
+	}
+	
+	private static File getTemporaryFile(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+	
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * A single entry in a snapshot
+	 */
+	
+	public static class Record {
+		
+		private String	key;
+		private long	version;
+		private long	deadline;
+		private byte[]	data;
+		
+		public Record(String key, long version, long deadline, byte[] data) {
+			this.key = key;
+			this.version = version;
+			this.deadline = deadline;
+			this.data = data;
+		}
+		
+		public String getKey() {
+			return key;
+		}
+		
+		public long getVersion() {
+			return version;
+		}
+		
+		/**
+		 * @return	The time the entry expires
+		 */
+		
+		public long getDeadline() {
+			return deadline;
+		}
+		
+		public byte[] getData() {
+			return data;
+		}
+	}
+}
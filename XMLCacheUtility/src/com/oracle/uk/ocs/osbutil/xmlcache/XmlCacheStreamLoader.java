@@ -0,0 +1,269 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * Streaming loader for large XML documents
+ *
+ * <p>Reads a document with StAX through a fixed size buffer and writes each
+ * event straight into a new XmlObject through a cursor, so that the only
+ * copy of the document held in memory is the tree being built. Text is not
+ * coalesced, so no single read holds more than a buffer's worth of
+ * characters.</p>
+ *
+ * <p>A loader can also be given a set of element paths to keep, such as
+ * <code>/catalog/header</code>. The root element is always kept; below it
+ * only the elements at one of the paths are copied, with their content, in
+ * document order. Everything else is skipped as it is read and never built,
+ * so a large document can be reduced to the few parts that are used without
+ * ever being held whole. Paths are matched on local names only.</p>
+ *
+ * <p>DTDs are not processed: a document type declaration is skipped, so
+ * entities it declares are not expanded and default attributes it declares
+ * are not added, unlike a normal XMLBeans parse.</p>
+ *
+ * <p>The loader counts the bytes and elements read and logs its progress at
+ * a configurable interval. A loader is used for one document at a time.</p>
+ *
+ * @see XmlCacheFileSource
+ * @see XmlCacheStreamSource
+ */
+
+public class XmlCacheStreamLoader {
+
+	private static Logger logger = Logger.getLogger(XmlCacheStreamLoader.class.getName());
+
+	private static XMLInputFactory factory = createFactory();
+
+	private int				bufferSize;
+	private long			progressInterval;
+	private List <String>	keep = new ArrayList <String> ();
+
+	private volatile long	bytesRead = 0;
+	private volatile long	elements = 0;
+
+	/**
+	 * Create a loader
+	 *
+	 * @param bufferSize		The size in bytes of the read buffer
+	 * @param progressInterval	The number of bytes between progress log
+	 * messages, or 0 for none
+	 * @param keep				The element paths to keep, or null or empty
+	 * to keep the whole document
+	 */
+
+	public XmlCacheStreamLoader(int bufferSize, long progressInterval, List <String> keep) {
+		this.bufferSize = bufferSize;
+		this.progressInterval = progressInterval;
+		if (keep != null) {
+			for (String path: keep) {
+				path = path.trim();
+				if (path.length() > 0)
+					this.keep.add(path.startsWith("/") ? path : "/" + path);
+			}
+		}
+	}
+
+	/**
+	 * Load a document
+	 *
+	 * @param in		The stream to read the document from, which is not
+	 * closed
+	 * @param origin	A description of the document for the log
+	 * @return			The loaded document
+	 * @throws XmlCacheException	If the document cannot be read or parsed
+	 */
+
+	public XmlObject load(InputStream in, String origin) throws XmlCacheException {
+		bytesRead = 0;
+		elements = 0;
+		long start = System.currentTimeMillis();
+		CountingInputStream counted = new CountingInputStream(new BufferedInputStream(in, bufferSize), origin);
+
+		XmlObject xml = XmlObject.Factory.newInstance();
+		XmlCursor cursor = xml.newCursor();
+		XMLStreamReader reader = null;
+		try {
+			reader = factory.createXMLStreamReader(counted);
+			cursor.toNextToken();
+
+			StringBuilder path = new StringBuilder();
+			List <Integer> lengths = new ArrayList <Integer> ();
+			int depth = 0;
+			int keptDepth = 0;
+
+			while (reader.hasNext()) {
+				int event = reader.next();
+				switch (event) {
+				case XMLStreamConstants.START_ELEMENT:
+					lengths.add(path.length());
+					path.append('/').append(reader.getLocalName());
+					depth++;
+					elements++;
+					if (depth == 1) {
+						// The root is always kept, with all of its content if
+						// there are no paths
+						if (keep.isEmpty())
+							keptDepth = depth;
+						startElement(reader, cursor);
+					} else if (keptDepth > 0) {
+						startElement(reader, cursor);
+					} else if (keep.contains(path.toString())) {
+						keptDepth = depth;
+						startElement(reader, cursor);
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (depth == 1 || keptDepth > 0) {
+						cursor.toNextToken();
+					}
+					if (depth == keptDepth)
+						keptDepth = 0;
+					depth--;
+					path.setLength(lengths.remove(lengths.size() - 1));
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (keptDepth > 0)
+						cursor.insertChars(reader.getText());
+					break;
+				case XMLStreamConstants.COMMENT:
+					if (keptDepth > 0)
+						cursor.insertComment(reader.getText());
+					break;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					if (keptDepth > 0)
+						cursor.insertProcInst(reader.getPITarget(), reader.getPIData());
+					break;
+				default:
+					break;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new XmlCacheException("Unable to stream XML from " + origin + ": " + e.getLocalizedMessage());
+		} finally {
+			cursor.dispose();
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					logger.fine("Unable to close reader for " + origin + ": " + e.getLocalizedMessage());
+				}
+			}
+		}
+
+		logger.fine("Streamed " + bytesRead + " bytes and " + elements + " elements from " + origin
+				+ " in " + (System.currentTimeMillis() - start) + "ms");
+		return xml;
+	}
+
+	/**
+	 * @return	The number of bytes read from the current or last document
+	 */
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return	The number of elements read from the current or last document,
+	 * whether or not they were kept
+	 */
+
+	public long getElements() {
+		return elements;
+	}
+
+	private void startElement(XMLStreamReader reader, XmlCursor cursor) {
+		cursor.beginElement(reader.getName());
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String prefix = reader.getNamespacePrefix(i);
+			cursor.insertNamespace(prefix == null ? "" : prefix, reader.getNamespaceURI(i));
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			QName name = reader.getAttributeName(i);
+			cursor.insertAttributeWithValue(name, reader.getAttributeValue(i));
+		}
+	}
+
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Counts the bytes read and logs the progress of a load
+	 */
+
+	private class CountingInputStream extends FilterInputStream {
+
+		private String	origin;
+		private long	nextReport = progressInterval;
+
+		private CountingInputStream(InputStream in, String origin) {
+			super(in);
+			this.origin = origin;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count(n);
+			return n;
+		}
+
+		private void count(int n) {
+			bytesRead += n;
+			if (progressInterval > 0 && bytesRead >= nextReport) {
+				logger.fine("Streamed " + bytesRead + " bytes and " + elements + " elements from " + origin);
+				nextReport = bytesRead + progressInterval;
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.util.List;
+
+import org.apache.xmlbeans.XmlObject;
+
+/**
+ * Optional interface for an XML source that can read only some elements of
+ * its documents.
+ *
+ * <p>When a projection made up of plain element paths applies to a key the
+ * XmlCacheUtility asks these sources for just the projected elements, so
+ * that the rest of a large document is skipped as it is read rather than
+ * built and then thrown away.</p>
+ *
+ * @see XmlCacheUtility
+ * @see XmlCacheStreamLoader
+ */
+
+public interface XmlCacheStreamSource extends XmlCacheSource {
+
+	/**
+	 * Read the root element of some XML with only the elements at some paths
+	 *
+	 * @param key	The key of the XML
+	 * @param keep	The element paths to keep, such as /catalog/header,
+	 * matched on local names
+	 * @return		The root element holding the kept elements in document
+	 * order, or null if the XML is not found
+	 */
+
+	public XmlObject readSource(String key, List <String> keep);
+}
@@ -0,0 +1,295 @@
+/*
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.oracle.uk.ocs.osbutil.xmlcache;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Sampled tracing of where the time in a cache lookup goes
+ *
+ * <p>One call in every <i>n</i> is traced. Whilst a call is traced, spans
+ * timed anywhere on its thread, in the cache or in a source, are added to the
+ * call's trace and to a histogram for the span's phase. Each thread counts
+ * its own calls, starting at a random point so that threads are not sampled
+ * in step, so calls that are not sampled cost a thread local lookup and a
+ * decrement, and each span in them a thread local lookup. Callers should
+ * only build span names when {@link #begin()} returns a start time.</p>
+ *
+ * <p>Span code uses the static methods so that sources need no reference to
+ * the cache:</p>
+ *
+ * <pre>
+ * long start = XmlCacheTracer.begin();
+ * ...
+ * XmlCacheTracer.end("file.read", start);
+ * </pre>
+ *
+ * <p>Histograms have power-of-two buckets of microseconds. The most recent
+ * traces are kept as text and logged at FINE.</p>
+ *
+ * <h2>Configuration</h2>
+ *
+ * <p>When <code>cache.trace.rate</code> is set the XmlCacheUtility traces a
+ * sample of the calls to getXml. Its phases are the lookup, L2 promotion, each
+ * source probed, reading and parsing files, waiting for a lazy parse in
+ * progress, parsing, projection, validation and index building. The
+ * histograms are returned by {@link XmlCacheUtility#getTraceHistogramString()}
+ * and included in the statistics report, and the traces by
+ * {@link XmlCacheUtility#getRecentTraces()}.</p>
+ *
+ * <table style="border=1;">
+ *     <tr>
+ *         <th>Property</th>
+ *         <th>Description</th>
+ *         <th>Default</th>
+ *         <th>Required</th>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.trace.rate</td>
+ *         <td>The fraction of calls that are traced, for example 0.001. Zero
+ *         turns tracing off.</td>
+ *         <td>0</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr>
+ *         <td>cache.trace.keep</td>
+ *         <td>The number of recent traces kept.</td>
+ *         <td>100</td>
+ *         <td>No</td>
+ *     </tr>
+ * </table>
+ */
+
+public class XmlCacheTracer {
+
+	private static Logger logger = Logger.getLogger(XmlCacheTracer.class.getName());
+
+	/** Number of histogram buckets, the last holding everything larger **/
+	private static final int BUCKETS = 32;
+
+	/** The trace of the call in progress on each thread **/
+	private static ThreadLocal <Trace> active = new ThreadLocal <Trace> ();
+
+	private long interval;
+	private int keep;
+	/** Calls left on each thread until its next sampled call **/
+	private ThreadLocal <long[]> countdown = new ThreadLocal <long[]> () {
+		@Override
+		protected long[] initialValue() {
+			return new long[] {1 + (long) (Math.random() * interval)};
+		}
+	};
+	private ConcurrentMap <String, Histogram> histograms = new ConcurrentHashMap <String, Histogram> ();
+
+	/** Most recent traces, oldest first, guarded by itself **/
+	private LinkedList <String> recent = new LinkedList <String> ();
+
+	/**
+	 * Create a tracer
+	 *
+	 * @param rate	The fraction of calls traced, from 0 (none) to 1 (all)
+	 * @param keep	The number of recent traces kept
+	 */
+
+	public XmlCacheTracer(double rate, int keep) {
+		this.interval = rate <= 0 ? 0 : Math.max(1, Math.round(1 / Math.min(rate, 1)));
+		this.keep = keep;
+	}
+
+	/**
+	 * Start tracing a call on this thread, if it is sampled and no call is
+	 * already being traced
+	 *
+	 * @param key	The key the call is for
+	 * @return		True if the call is traced, in which case
+	 * {@link #finish()} must be called
+	 */
+
+	public boolean start(String key) {
+		if (interval == 0 || active.get() != null)
+			return false;
+		long[] left = countdown.get();
+		if (--left[0] > 0)
+			return false;
+		left[0] = interval;
+		active.set(new Trace(this, key));
+		return true;
+	}
+
+	/**
+	 * Finish the call being traced on this thread
+	 */
+
+	public void finish() {
+		Trace trace = active.get();
+		active.remove();
+		if (trace == null)
+			return;
+		long total = System.nanoTime() - trace.start;
+		record("total", total);
+		trace.text.append(" total=").append(total / 1000).append("us");
+		String text = trace.text.toString();
+		logger.fine(text);
+		synchronized (recent) {
+			recent.add(text);
+			while (recent.size() > keep) {
+				recent.removeFirst();
+			}
+		}
+	}
+
+	/**
+	 * Begin a span
+	 *
+	 * @return	The start time, or 0 if no call is being traced on this thread
+	 */
+
+	public static long begin() {
+		return active.get() == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * End a span
+	 *
+	 * @param phase	The name of the phase the span timed
+	 * @param start	The time returned by {@link #begin()}
+	 */
+
+	public static void end(String phase, long start) {
+		if (start == 0)
+			return;
+		Trace trace = active.get();
+		if (trace == null)
+			return;
+		long elapsed = System.nanoTime() - start;
+		trace.tracer.record(phase, elapsed);
+		trace.text.append(' ').append(phase).append('=').append(elapsed / 1000).append("us");
+	}
+
+	private void record(String phase, long nanos) {
+		Histogram histogram = histograms.get(phase);
+		if (histogram == null) {
+			histograms.putIfAbsent(phase, new Histogram());
+			histogram = histograms.get(phase);
+		}
+		histogram.add(nanos / 1000);
+	}
+
+	/**
+	 * @return	The number of spans recorded for each phase, with "total" for
+	 * whole calls
+	 */
+
+	public Map <String, Long> getCounts() {
+		Map <String, Long> counts = new TreeMap <String, Long> ();
+		for (Map.Entry <String, Histogram> e: histograms.entrySet()) {
+			counts.put(e.getKey(), e.getValue().count.get());
+		}
+		return counts;
+	}
+
+	/**
+	 * Get an upper bound on a percentile of a phase
+	 *
+	 * @param phase			The phase
+	 * @param percentile	The percentile, from 0 to 100
+	 * @return				The upper bound in microseconds of the bucket that
+	 * holds the percentile, or -1 if the phase has not been recorded
+	 */
+
+	public long getPercentile(String phase, double percentile) {
+		Histogram histogram = histograms.get(phase);
+		return histogram == null ? -1 : histogram.percentile(percentile);
+	}
+
+	/**
+	 * @return	The most recent traces, oldest first
+	 */
+
+	public List <String> getRecentTraces() {
+		synchronized (recent) {
+			return new ArrayList <String> (recent);
+		}
+	}
+
+	public String getHistogramString() {
+		StringBuilder text = new StringBuilder("TRACE");
+		for (Map.Entry <String, Histogram> e: new TreeMap <String, Histogram> (histograms).entrySet()) {
+			Histogram histogram = e.getValue();
+			long count = histogram.count.get();
+			text.append(String.format(" | %s COUNT=%d AVG=%dus P50<=%dus P99<=%dus", e.getKey(), count,
+					count == 0 ? 0 : histogram.total.get() / count,
+					histogram.percentile(50), histogram.percentile(99)));
+		}
+		return text.toString();
+	}
+
+	public void reset() {
+		histograms.clear();
+		synchronized (recent) {
+			recent.clear();
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Inner Classes
+	///////////////////////////////////////////////////////////////////////////
+
+	private static class Trace {
+
+		private XmlCacheTracer	tracer;
+		private long			start = System.nanoTime();
+		private StringBuilder	text = new StringBuilder();
+
+		private Trace(XmlCacheTracer tracer, String key) {
+			this.tracer = tracer;
+			text.append("TRACE ").append(key).append(':');
+		}
+	}
+
+	private static class Histogram {
+
+		private AtomicLongArray	buckets = new AtomicLongArray(BUCKETS);
+		private AtomicLong		count = new AtomicLong();
+		private AtomicLong		total = new AtomicLong();
+
+		private void add(long micros) {
+			int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+			buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+			count.incrementAndGet();
+			total.addAndGet(micros);
+		}
+
+		private long percentile(double percentile) {
+			long target = (long) Math.ceil(count.get() * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= target && seen > 0)
+					return i == 0 ? 0 : (1L << i) - 1;
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+}
@@ -14,19 +14,57 @@
 
 package com.oracle.uk.ocs.osbutil.xmlcache;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import org.apache.xmlbeans.SchemaType;
+import org.apache.xmlbeans.SchemaTypeLoader;
+import org.apache.xmlbeans.XmlBeans;
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlError;
+import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
+import org.apache.xmlbeans.XmlOptions;
 
 /**
  * Main Cache Utility
@@ -64,8 +102,108 @@ import org.apache.xmlbeans.XmlObject;
  *          For performance statistics should be turned off.</td>
  *          <td>
  *     </tr>
+ *     <tr class="odd">
+ *         <td>expiry.<i>name</i>.prefix<br/>expiry.<i>name</i>.pattern</td>
+ *         <td>The key prefix, or regular expression matching the whole key,
+ *         that the expiry policy <i>name</i> applies to. Policies are
+ *         checked in order of name and the first that matches applies. The
+ *         expiry supplied by an {@link XmlCacheExpirySource} takes precedence
+ *         over every policy.</td>
+ *         <td></td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr class="even">
+ *         <td>expiry.<i>name</i>.ttl</td>
+ *         <td>The number of milliseconds that items matched by the expiry
+ *         policy <i>name</i> remain in the cache. -1 means they never
+ *         expire.</td>
+ *         <td>cache.expiry</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr class="odd">
+ *         <td>cache.refresh</td>
+ *         <td>How expired entries are refreshed: <code>sync</code> reloads
+ *         the entry on the request that finds it expired, <code>async</code>
+ *         returns the expired entry and reloads it in the background.</td>
+ *         <td>sync</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr class="even">
+ *         <td>cache.maxentries</td>
+ *         <td>The maximum number of entries held in memory. When the limit is
+ *         reached the least recently used entry is evicted (to the L2 store
+ *         if it is enabled). Zero means no limit.</td>
+ *         <td>0</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr class="odd">
+ *         <td>cache.maxweight</td>
+ *         <td>The maximum total size in bytes of the serialized form of the
+ *         entries held in memory, taken from the source where it knows the
+ *         size of its documents (see XmlCacheSizeSource). When the limit is
+ *         reached least recently used entries are evicted until the cache is
+ *         back within it. Zero means no limit.</td>
+ *         <td>0</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr class="even">
+ *         <td>projection.<i>name</i>.prefix<br/>projection.<i>name</i>.pattern</td>
+ *         <td>The key prefix, or regular expression matching the whole key,
+ *         of the documents that the projection <i>name</i> applies to. Only
+ *         the projection of such a document is cached: its root element
+ *         holding copies of the nodes selected. Projections are checked in
+ *         order of name and the first that matches applies.</td>
+ *         <td></td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr class="odd">
+ *         <td>projection.<i>name</i>.paths<br/>projection.<i>name</i>.query</td>
+ *         <td>Semicolon separated XPaths, or an XQuery, selecting the parts
+ *         of the document that are cached. Plain element paths from the root
+ *         are applied as the document is read from an
+ *         {@link XmlCacheStreamSource}.</td>
+ *         <td></td>
+ *         <td>Yes, for a projection</td>
+ *     </tr>
+ *     <tr class="even">
+ *         <td>cache.dedup</td>
+ *         <td>Flag to control whether keys with identical content share one
+ *         cached document, counted once towards the weight limit.</td>
+ *         <td>false</td>
+ *         <td>No</td>
+ *     </tr>
+ *     <tr class="odd">
+ *         <td>cache.regions</td>
+ *         <td>Comma separated list of the names of the cache regions (see
+ *         {@link #getXmlCacheUtility(String)}). Only read from the main
+ *         configuration.</td>
+ *         <td></td>
+ *         <td>No</td>
+ *     </tr>
  * </table>
- *
+ * 
+ * <p>The other features of the cache are configured with the properties
+ * described where they are implemented:</p>
+ * <ul>
+ *     <li>Per-thread caching: {@link #clearLocalCaches()}</li>
+ *     <li>Read-only XML: {@link #getXmlCopy(String)}</li>
+ *     <li>Indexes: {@link #lookup(String, String, String)}</li>
+ *     <li>Typed XML: {@link #setSchemaTypeLoader(SchemaTypeLoader, boolean)}</li>
+ *     <li>Reloading the configuration: {@link #reloadConfiguration()}</li>
+ *     <li>Two-tier caching: {@link XmlCacheDiskStore}</li>
+ *     <li>Cold entry compression: {@link XmlCacheCompressedPayload}</li>
+ *     <li>Off-heap storage: {@link XmlCacheOffHeapStore}</li>
+ *     <li>Lazy loading: {@link XmlCacheLazyPayload}</li>
+ *     <li>Memory pressure: {@link XmlCacheMemoryMonitor}</li>
+ *     <li>Snapshots: {@link XmlCacheSnapshot}</li>
+ *     <li>Cluster invalidation: {@link XmlCacheInvalidationChannel}</li>
+ *     <li>Sharing between processes: {@link XmlCacheSharedSegment}</li>
+ *     <li>Top keys: {@link XmlCacheHeavyHitters}</li>
+ *     <li>Tracing: {@link XmlCacheTracer}</li>
+ *     <li>Metrics: {@link XmlCacheMetricsExporter}</li>
+ *     <li>Simulation: {@link XmlCacheAccessRecorder}</li>
+ * </ul>
+ * 
  * <h2>Logging</h2>
  * 
  * <p>Logging is implemented using the Java (JDK) logging. Using Java logging
@@ -153,6 +291,160 @@ public class XmlCacheUtility {
 	/** The configuration key to turn statistics gathering on/off **/
 	public static String CFGKEY_CACHE_STATS  = "cache.statistics";
 	
+	/** The configuration key to set the maximum number of in-memory entries **/
+	public static String CFGKEY_CACHE_MAXENTRIES = "cache.maxentries";
+	
+	/** The configuration key to turn the L2 disk store on/off **/
+	public static String CFGKEY_CACHE_L2 = "cache.l2.enabled";
+	
+	/** The configuration key to set the L2 directory **/
+	public static String CFGKEY_CACHE_L2_DIR = "cache.l2.dir";
+	
+	/** The configuration key to set the L2 segment size **/
+	public static String CFGKEY_CACHE_L2_SEGMENTSIZE = "cache.l2.segmentsize";
+	
+	/** The configuration key to set the maximum size of the L2 store **/
+	public static String CFGKEY_CACHE_L2_CAPACITY = "cache.l2.capacity";
+	
+	/** The configuration key to set the age after which entries are cold **/
+	public static String CFGKEY_CACHE_COLD_THRESHOLD = "cache.cold.threshold";
+	
+	/** The configuration key to set the interval between cold sweeps **/
+	public static String CFGKEY_CACHE_COLD_SWEEP = "cache.cold.sweep";
+	
+	/** The configuration key to choose heap or off-heap storage **/
+	public static String CFGKEY_CACHE_STORAGE = "cache.storage";
+	
+	/** The configuration key to set the off-heap slab size **/
+	public static String CFGKEY_CACHE_OFFHEAP_SLABSIZE = "cache.offheap.slabsize";
+	
+	/** The configuration key to set the off-heap capacity **/
+	public static String CFGKEY_CACHE_OFFHEAP_CAPACITY = "cache.offheap.capacity";
+	
+	/** The configuration key to turn lazy parsing on/off **/
+	public static String CFGKEY_CACHE_LAZY = "cache.lazy";
+	
+	/** The configuration key to set the snapshot file **/
+	public static String CFGKEY_CACHE_SNAPSHOT_FILE = "cache.snapshot.file";
+	
+	/** The configuration key to set the interval between snapshots **/
+	public static String CFGKEY_CACHE_SNAPSHOT_INTERVAL = "cache.snapshot.interval";
+	
+	/** The configuration key to set the number of snapshot restore threads **/
+	public static String CFGKEY_CACHE_SNAPSHOT_THREADS = "cache.snapshot.threads";
+	
+	/** The configuration key to turn revalidation of restored entries on/off **/
+	public static String CFGKEY_CACHE_SNAPSHOT_REVALIDATE = "cache.snapshot.revalidate";
+	
+	/** The configuration key to set the invalidation channel port **/
+	public static String CFGKEY_CLUSTER_PORT = "cluster.port";
+	
+	/** The configuration key to set the invalidation channel peers **/
+	public static String CFGKEY_CLUSTER_PEERS = "cluster.peers";
+	
+	/** The configuration key to set the invalidation batch interval **/
+	public static String CFGKEY_CLUSTER_BATCH_INTERVAL = "cluster.batch.interval";
+	
+	/** The configuration key to set the shared segment file to publish **/
+	public static String CFGKEY_CACHE_SHARED_FILE = "cache.shared.file";
+	
+	/** The configuration key to set the interval between publications **/
+	public static String CFGKEY_CACHE_SHARED_INTERVAL = "cache.shared.interval";
+	
+	/** Configuration key: maximum total weight of the in-memory entries **/
+	public static String CFGKEY_CACHE_MAXWEIGHT = "cache.maxweight";
+	
+	/** Configuration key: refresh policy for expired entries **/
+	public static String CFGKEY_CACHE_REFRESH = "cache.refresh";
+	
+	/** Configuration key: names of the cache regions **/
+	public static String CFGKEY_CACHE_REGIONS = "cache.regions";
+	
+	/** Prefix of the configuration properties of a region **/
+	public static String CFGKEY_REGION_PREFIX = "region.";
+	
+	/** Prefix of the configuration properties of the expiry policies **/
+	public static String CFGKEY_EXPIRY_PREFIX = "expiry.";
+	
+	/** Configuration key: number of entries in each per-thread cache **/
+	public static String CFGKEY_CACHE_L0_SIZE = "cache.l0.size";
+	
+	/** Configuration key: whether cached XML is checked for modification **/
+	public static String CFGKEY_CACHE_READONLY = "cache.readonly";
+	
+	/** Configuration key: XSD files used to type the cached XML **/
+	public static String CFGKEY_CACHE_SCHEMA_FILES = "cache.schema.files";
+	
+	/** Configuration key: whether compiled XMLBeans types on the classpath are used **/
+	public static String CFGKEY_CACHE_SCHEMA_COMPILED = "cache.schema.compiled";
+	
+	/** Configuration key: whether typed XML is validated on load **/
+	public static String CFGKEY_CACHE_SCHEMA_VALIDATE = "cache.schema.validate";
+	
+	/** Configuration key: whether keys with identical content share one document **/
+	public static String CFGKEY_CACHE_DEDUP = "cache.dedup";
+	
+	/** Configuration key: old generation occupancy levels at which entries are shed **/
+	public static String CFGKEY_CACHE_MEMORY_LEVELS = "cache.memory.levels";
+	
+	/** Configuration key: fraction of the entries shed at each level **/
+	public static String CFGKEY_CACHE_MEMORY_SHED = "cache.memory.shed";
+	
+	/** Configuration key: interval between checks for memory pressure being relieved **/
+	public static String CFGKEY_CACHE_MEMORY_CHECKINTERVAL = "cache.memory.checkinterval";
+	
+	/** Configuration key: number of keys tracked with the most requests, misses and load time **/
+	public static String CFGKEY_CACHE_STATS_TOPK = "cache.statistics.topk";
+	
+	/** Configuration key: interval between reports of the top keys **/
+	public static String CFGKEY_CACHE_STATS_REPORT = "cache.statistics.report";
+	
+	/** Configuration key: fraction of calls that are traced **/
+	public static String CFGKEY_CACHE_TRACE_RATE = "cache.trace.rate";
+	
+	/** Configuration key: number of recent traces kept **/
+	public static String CFGKEY_CACHE_TRACE_KEEP = "cache.trace.keep";
+	
+	/** Configuration key: file the metrics are written to **/
+	public static String CFGKEY_METRICS_FILE = "metrics.file";
+	
+	/** Configuration key: interval between writes of the metrics file **/
+	public static String CFGKEY_METRICS_INTERVAL = "metrics.interval";
+	
+	/** Configuration key: local port the metrics are served on **/
+	public static String CFGKEY_METRICS_PORT = "metrics.port";
+	
+	/** Configuration key: patterns of the MBeans exported with the metrics **/
+	public static String CFGKEY_METRICS_MBEANS = "metrics.mbeans";
+	
+	/** Configuration key: file the requested keys are recorded to **/
+	public static String CFGKEY_CACHE_RECORD_FILE = "cache.record.file";
+	
+	/** Configuration key: number of requests that can wait to be recorded **/
+	public static String CFGKEY_CACHE_RECORD_BUFFER = "cache.record.buffer";
+	
+	/** Configuration key: interval between checks of the file for changes **/
+	public static String CFGKEY_CONFIG_CHECKINTERVAL = "cache.config.checkinterval";
+	
+	/** Prefixes of the settings that only take effect on restart **/
+	private static final String[] RESTART_SETTINGS = {
+		CFGKEY_CACHE_L2, CFGKEY_CACHE_L2_DIR, CFGKEY_CACHE_L2_SEGMENTSIZE, CFGKEY_CACHE_L2_CAPACITY, CFGKEY_CACHE_STORAGE,
+		"cache.offheap.", "cache.cold.", "cache.memory.", "cache.statistics.report", "cache.snapshot.", "cache.shared.", "cluster.",
+		"metrics.", "cache.record."
+	};
+	
+	/** Prefix of the configuration properties of the indexes **/
+	public static String CFGKEY_INDEX_PREFIX = "index.";
+	
+	/** Prefix of the configuration properties of the projections **/
+	public static String CFGKEY_PROJECTION_PREFIX = "projection.";
+	
+	/** Expiry meaning the configured expiry policy applies **/
+	public static final long EXPIRY_DEFAULT = -2;
+	
+	/** Expiry meaning the XML never expires **/
+	public static final long EXPIRY_NEVER = -1;
+	
 	/** General logger **/
 	private static Logger logger
 		= Logger.getLogger(XmlCacheUtility.class.getName());
@@ -161,6 +453,29 @@ public class XmlCacheUtility {
 	private static Logger statsLogger
 		= Logger.getLogger(XmlCacheUtility.class.getName() + ".STATS");
 	
+	/** Number of compiled XPaths kept **/
+	private static final int MAX_COMPILED_PATHS = 1024;
+	
+	/** Number of XPath results memoized for each entry **/
+	private static final int MAX_FRAGMENTS = 64;
+	
+	/** Number of per-thread cache hits between refreshes of the LRU order **/
+	private static final int L0_LRU_SAMPLE = 16;
+	
+	/** A projection path of element names below the root that can be streamed **/
+	private static final Pattern ELEMENT_PATH = Pattern.compile("(?:\\$this)?((?:/[\\w.-]+){2,})");
+	
+	/** Recently used XPaths compiled by XMLBeans, by XPath **/
+	private static Map <String, String> compiledPaths
+		= Collections.synchronizedMap(new BoundedMap <String, String> (MAX_COMPILED_PATHS));
+	
+	/** Instances whose snapshots are written at shutdown, guarded by itself **/
+	private static Set <XmlCacheUtility> snapshotOnShutdown
+		= Collections.newSetFromMap(new WeakHashMap <XmlCacheUtility, Boolean> ());
+	
+	/** Whether the shutdown hook writing the snapshots has been added **/
+	private static boolean snapshotHookAdded = false;
+	
 	/** Singleton instance **/
 	private static XmlCacheUtility instance = new XmlCacheUtility();
 	
@@ -168,19 +483,122 @@ public class XmlCacheUtility {
 	// Instance Members
 	///////////////////////////////////////////////////////////////////////////
 	
-	/** Cache is backed by a Map. Synchronised for thread-safety **/
-	private Map <String, XmlCacheEntry> xmlCache
-		= Collections.synchronizedMap(new HashMap <String, XmlCacheEntry> ());
+	/** The current generation of cache entries and XML sources **/
+	private volatile CacheGeneration generation
+		= new CacheGeneration(0, new ArrayList <XmlCacheSource> ());
+	
+	/** The generation replaced by the last swap, kept for rollback **/
+	private CacheGeneration previousGeneration = null;
+	
+	/** A generation that has been built but not yet swapped in **/
+	private CacheGeneration pendingGeneration = null;
+	
+	/** Executor for building generations, created on first use **/
+	private ExecutorService generationExecutor = null;
 	
-	/** XML Sources, probably doesn't need to be synchronised **/
-	private List <XmlCacheSource> xmlSources
-		= Collections.synchronizedList(new ArrayList <XmlCacheSource> ());
+	/** Second level disk store, null unless enabled **/
+	private XmlCacheDiskStore l2Store = null;
+	
+	/** Held to promote to or demote from L2, and exclusively to change generation **/
+	private final ReadWriteLock l2Fence = new ReentrantReadWriteLock();
+	
+	/** Off-heap store, null unless off-heap storage is configured, dropped at shutdown **/
+	private volatile XmlCacheOffHeapStore offHeapStore = null;
 	
 	/** Configuration properties **/
 	private Properties configuration = new Properties();
 	
+	/** Configuration file, null unless loaded from a file **/
+	private File configFile = null;
+	
+	/** Last modified time of the configuration file when it was loaded **/
+	private long configLastModified = 0;
+	
 	/** Configurable: Cache item maximum age (expiry) **/
 	private long cacheExpiry = 30000;
+	
+	/** Configurable: Expiry policies by key, checked in order **/
+	private List <ExpiryPolicy> expiryPolicies = new ArrayList <ExpiryPolicy> ();
+	
+	/** Configurable: Index definitions by name **/
+	private volatile Map <String, IndexDefinition> indexDefinitions = new HashMap <String, IndexDefinition> ();
+	
+	/** Configurable: Projections, checked in order **/
+	private volatile List <ProjectionDefinition> projections = new ArrayList <ProjectionDefinition> ();
+	
+	/** Configurable: Maximum number of in-memory entries, 0 for no limit **/
+	private int maxEntries = 0;
+	
+	/** Configurable: Maximum total weight of in-memory entries, 0 for no limit **/
+	private long maxWeight = 0;
+	
+	/** Configurable: Whether expired entries are refreshed in the background **/
+	private boolean asyncRefresh = false;
+	
+	/** Configurable: Number of entries in each per-thread cache, 0 for off **/
+	private volatile int l0Size = 0;
+	
+	/** Advanced whenever a change could make every per-thread cache entry stale **/
+	private AtomicLong version = new AtomicLong();
+	
+	/** Per-thread caches of recently returned entries **/
+	private ThreadLocal <LocalCache> l0 = new ThreadLocal <LocalCache> () {
+		@Override
+		protected LocalCache initialValue() {
+			return new LocalCache();
+		}
+	};
+	
+	/** Configurable: Whether cached XML is checked for modification **/
+	private volatile boolean readOnly = false;
+	
+	/** Configurable: Loader of the types of the cached XML, null for untyped **/
+	private volatile SchemaTypeLoader schemaTypeLoader = null;
+	
+	/** Configurable: Whether typed XML is validated on load **/
+	private volatile boolean validate = false;
+	
+	/** Configurable: Whether keys with identical content share one document **/
+	private volatile boolean dedup = false;
+	
+	/** Content shared between entries, by hash **/
+	private Map <String, SharedContent> sharedContents = new HashMap <String, SharedContent> ();
+	
+	/** Named regions, only held by the main instance **/
+	private Map <String, XmlCacheUtility> regions = new ConcurrentHashMap <String, XmlCacheUtility> ();
+	
+	/** Configurable: Fraction of the entries shed at each memory pressure level **/
+	private double shedFraction = 0.25;
+	
+	/** Listener registered with the memory monitor, if any **/
+	private XmlCacheMemoryMonitor.Listener memoryListener;
+	
+	/** Limit on the number of entries whilst under memory pressure, 0 for none **/
+	private volatile int pressureLimit = 0;
+	
+	/** Number of entries when memory pressure started, guarded by this **/
+	private int pressureCeiling = 0;
+	
+	/** Configurable: Age since last access for an entry to be cold, 0 for off **/
+	private long coldThreshold = 0;
+	
+	/** Configurable: Whether raw source bytes are cached and parsed lazily **/
+	private boolean lazy = false;
+	
+	/** Configurable: Snapshot file, null if snapshots are off **/
+	private File snapshotFile = null;
+	
+	/** Configurable: Shared segment file to publish, null if not publishing **/
+	private File sharedFile = null;
+	
+	/** Invalidation channel to the peer servers, null unless configured **/
+	private XmlCacheInvalidationChannel channel = null;
+	
+	/** Executor for reloads requested by peers, created on first use **/
+	private ExecutorService reloadExecutor = null;
+	
+	/** Timer for background maintenance tasks, created on first use **/
+	private Timer maintenanceTimer = null;
 	 
 	/** Configurable: Whether or not statistics gathering is on **/
 	private boolean statisticsIsOn = true;
@@ -196,6 +614,45 @@ public class XmlCacheUtility {
 	private long missMinTime	= 0;
 	private long missMaxTime	= 0;
 	private long missAvgTime	= 0;	
+	private long l2HitTotal		= 0;
+	private long inflateTotal	= 0;
+	private long inflateMinTime	= 0;
+	private long inflateMaxTime	= 0;
+	private long inflateAvgTime	= 0;
+	private long compressTotal	= 0;
+	private long lazyParseTotal	= 0;
+	
+	/** Configurable: Tracer of sampled calls, null if tracing is off **/
+	private volatile XmlCacheTracer tracer = null;
+	
+	/** Configurable: Fraction of calls traced and number of traces kept **/
+	private double configuredTraceRate = 0;
+	private int configuredTraceKeep = 0;
+	
+	/** Configurable: Number of keys tracked by the per-key totals **/
+	private int configuredTopK = 0;
+	
+	/** Configurable: Per-key totals, null if per-key tracking is off **/
+	private volatile XmlCacheHeavyHitters topRequests	= null;
+	private volatile XmlCacheHeavyHitters topMisses		= null;
+	private volatile XmlCacheHeavyHitters topLoadTimes	= null;
+	
+	/** Counts exported as metrics, kept whether or not statistics are on **/
+	private final XmlCacheMetrics.Counter hitCount			= new XmlCacheMetrics.Counter();
+	private final XmlCacheMetrics.Counter missCount			= new XmlCacheMetrics.Counter();
+	private final XmlCacheMetrics.Counter notFoundCount		= new XmlCacheMetrics.Counter();
+	private final XmlCacheMetrics.Counter loadMillis		= new XmlCacheMetrics.Counter();
+	private final XmlCacheMetrics.Counter promoteCount		= new XmlCacheMetrics.Counter();
+	private final XmlCacheMetrics.Counter evictionCount		= new XmlCacheMetrics.Counter();
+	
+	/** Metrics of this instance and its regions, created on first use **/
+	private XmlCacheMetrics metrics = null;
+	
+	/** Configurable: Publisher of the metrics, null if they are not published **/
+	private XmlCacheMetricsExporter metricsExporter = null;
+	
+	/** Configurable: Recorder of the requested keys, null if they are not recorded **/
+	private XmlCacheAccessRecorder recorder = null;
 	
 	///////////////////////////////////////////////////////////////////////////
 	// Constructors
@@ -204,6 +661,21 @@ public class XmlCacheUtility {
 	protected XmlCacheUtility() {
 		configure();
 		createXmlSources();
+		restoreSnapshot();
+		createRegions();
+	}
+	
+	/**
+	 * Create a cache utility from configuration that has already been loaded
+	 * 
+	 * @param configuration	The configuration properties
+	 */
+	
+	protected XmlCacheUtility(Properties configuration) {
+		this.configuration = configuration;
+		applyConfiguration();
+		createXmlSources();
+		restoreSnapshot();
 	}
 	
 	protected void configure() {
@@ -217,10 +689,9 @@ public class XmlCacheUtility {
 		configuration.setProperty(CFGKEY_CACHE_STATS,		"true");
 		
 		String filepath = System.getProperty(CFG_SYSPROP_NAME, "xmlcache.properties");
+		configFile = new File(filepath);
 		try {
-			Properties userConfiguration = new Properties();
-			userConfiguration.load(new FileInputStream(filepath));
-			configuration = userConfiguration;
+			configuration = readConfigurationFile();
 			logger.info("Successfully loaded configuration from: " + filepath);
 		} catch (FileNotFoundException e) {
 			logger.info("No configuration found from: "
@@ -231,151 +702,2707 @@ public class XmlCacheUtility {
 			e.printStackTrace();
 		}
 		
-		try {
-			cacheExpiry = Long.parseLong(configuration.getProperty(CFGKEY_CACHE_EXPIRY, "30000"));
-			logger.info("Using cache expiry of " + cacheExpiry + "ms.");
-			statisticsIsOn = Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_STATS, "true"));
-			logger.info("Cache statistics are on? "  + statisticsIsOn);
-		} catch (NumberFormatException e) {
-			logger.severe("Configuration property 'expire' is not a valid integer. Using default of " + cacheExpiry);
-		}
+		applyConfiguration();
 		
+		long interval = getLongProperty(configuration, CFGKEY_CONFIG_CHECKINTERVAL, 0);
+		if (interval > 0) {
+			logger.info("Checking " + filepath + " for changes every " + interval + "ms");
+			getMaintenanceTimer().schedule(new TimerTask() {
+				@Override
+				public void run() {
+					if (configFile.lastModified() != configLastModified) {
+						reloadConfiguration();
+					}
+				}
+			}, interval, interval);
+		}
 	}
 	
 	/**
-	 * Get the Singleton instance
-	 * @return	The Singleton instance of XMLCacheUtility
+	 * Read the configuration file, recording when it was last modified
+	 * 
+	 * @return	The configuration properties from the file
+	 * @throws IOException	If the file cannot be read
 	 */
 	
-	public static XmlCacheUtility getXmlCacheUtility() {
-		return instance;
+	private Properties readConfigurationFile() throws IOException {
+		long lastModified = configFile.lastModified();
+		Properties userConfiguration = new Properties();
+		FileInputStream in = new FileInputStream(configFile);
+		try {
+			userConfiguration.load(in);
+		} finally {
+			in.close();
+		}
+		configLastModified = lastModified;
+		return userConfiguration;
 	}
 	
 	/**
-	 * Add an XML source to the cache
-	 * @param source	The XmlCacheSource instance to add
+	 * Reload the configuration file and apply it to the running cache and
+	 * its regions
+	 * 
+	 * The file is also reloaded automatically when it changes if
+	 * <code>cache.config.checkinterval</code> is set to the number of
+	 * milliseconds between checks (default 0, which turns the check off).
+	 * 
+	 * The expiry, expiry policies, statistics flag, entry and weight limits,
+	 * refresh policy and lazy flag are applied to the running cache and
+	 * existing entries are kept: their deadlines are recalculated from the
+	 * new policies (unless supplied by their source) and the cache is
+	 * trimmed to the new limits. Sources are reconciled by name: unchanged
+	 * sources are kept, changed sources are replaced in place and removed
+	 * sources are dropped. Regions are reloaded too, new regions are created
+	 * and regions no longer named in <code>cache.regions</code> are shut down
+	 * and dropped. Changes to the L2 store, off-heap storage, cold
+	 * compression, snapshots, shared segment and cluster settings only take
+	 * effect on restart.
+	 * 
+	 * @return	True if the configuration was reloaded
 	 */
 	
-	public void addXmlCacheSource(XmlCacheSource source) {
-		xmlSources.add(source);
+	public synchronized boolean reloadConfiguration() {
+		if (configFile == null) {
+			logger.warning("Configuration was not loaded from a file and cannot be reloaded");
+			return false;
+		}
+		
+		Properties reloaded;
+		try {
+			reloaded = readConfigurationFile();
+		} catch (IOException e) {
+			logger.severe("Unable to reload configuration from " + configFile
+					+ ". The current configuration is kept: " + e.getLocalizedMessage());
+			return false;
+		}
+		logger.info("Reloading configuration from: " + configFile);
+		reconfigure(reloaded);
+		createRegions();
+		for (Map.Entry <String, XmlCacheUtility> region: regions.entrySet()) {
+			region.getValue().reconfigure(getRegionConfiguration(region.getKey()));
+		}
+		return true;
 	}
 	
 	/**
-	 * Remove an XML source from the cache
+	 * Apply new configuration to the running cache, keeping the existing
+	 * entries
 	 * 
-	 * Does not invalidate any cache entries that have already been loaded
-	 * into the cache.
-	 * 
-	 * @param source
+	 * @param updated	The new configuration properties
 	 */
 	
-	public void removeXmlCacheSource(XmlCacheSource source) {
-		xmlSources.remove(source);
+	public synchronized void reconfigure(Properties updated) {
+		for (String setting: RESTART_SETTINGS) {
+			if (!getSettings(configuration, setting).equals(getSettings(updated, setting))) {
+				logger.warning("Changes to " + setting + " settings take effect on restart");
+			}
+		}
+		configuration = updated;
+		applySettings();
+		
+		CacheGeneration current = generation;
+		reconcileSources(current);
+		
+		// Existing entries are brought into line with the new policies
+		List <Map.Entry <String, XmlCacheEntry>> entries;
+		synchronized (current.entries) {
+			entries = new ArrayList <Map.Entry <String, XmlCacheEntry>> (current.entries.entrySet());
+		}
+		for (Map.Entry <String, XmlCacheEntry> e: entries) {
+			XmlCacheEntry entry = e.getValue();
+			if (!entry.sourceExpiry) {
+				entry.deadline = getDeadline(e.getKey(), EXPIRY_DEFAULT, entry.timestamp);
+			}
+			if (maxWeight > 0 && entry.weight < 0) {
+				long weight = weigh(entry);
+				synchronized (current.entries) {
+					if (entry.weight < 0 && current.entries.get(e.getKey()) == entry) {
+						entry.weight = weight;
+						current.weight += weight;
+					}
+				}
+			}
+		}
+		current.trim();
+		version.incrementAndGet();
 	}
 	
 	/**
-	 * Search all the XML sources for XML identified by the key
-	 * 
-	 * The search will terminate with the first item that is found. The
-	 * order of the sources in the list determines the search order.
-	 * 
-	 * To keep sources from colliding it is recommended that an appropriate
-	 * naming strategy is used for keys such that the key prefix is unique
-	 * to a particular source.
+	 * Reconcile the configured sources of a generation with the
+	 * configuration, keeping the sources whose settings have not changed
 	 * 
-	 * @param key		The key to identify the XML
-	 * @return			The XML associated with the given key
+	 * @param target	The generation
 	 */
 	
-	private XmlObject searchXmlSources (String key) {
-		logger.finer("searching for item with key: " + key);
-		for (XmlCacheSource source: xmlSources) {
-			logger.finer("searching source: " + source);
-			XmlObject xmlObject = source.readSource(key);
-			if (xmlObject != null) {
-				logger.fine("found item with key '" + key + "' in source " + source);
-				return xmlObject;
+	private void reconcileSources(CacheGeneration target) {
+		Map <String, ConfiguredSource> reconciled = new HashMap <String, ConfiguredSource> ();
+		Map <XmlCacheSource, XmlCacheSource> replaced = new HashMap <XmlCacheSource, XmlCacheSource> ();
+		List <XmlCacheSource> added = new ArrayList <XmlCacheSource> ();
+		for (String sourceKey: getSourceKeys(configuration)) {
+			Properties settings = getSettings(configuration, "source." + sourceKey + ".");
+			ConfiguredSource existing = target.configured.get(sourceKey);
+			if (existing != null && existing.settings.equals(settings)) {
+				reconciled.put(sourceKey, existing);
+				continue;
+			}
+			
+			XmlCacheSource source = createXmlSource(configuration, sourceKey);
+			if (source == null) {
+				if (existing != null) reconciled.put(sourceKey, existing);
+				continue;
+			}
+			reconciled.put(sourceKey, new ConfiguredSource(source, settings));
+			if (existing != null) {
+				logger.info("Replacing cache source: " + sourceKey);
+				replaced.put(existing.source, source);
+			} else {
+				logger.info("Adding cache source: " + sourceKey);
+				added.add(source);
 			}
 		}
-		logger.fine("missed item with key: " + key);
-		return null;
+		for (Map.Entry <String, ConfiguredSource> e: target.configured.entrySet()) {
+			if (!reconciled.containsKey(e.getKey())) {
+				logger.info("Removing cache source: " + e.getKey());
+				replaced.put(e.getValue().source, null);
+			}
+		}
+		
+		List <XmlCacheSource> sources = new ArrayList <XmlCacheSource> ();
+		for (XmlCacheSource source: target.sources) {
+			if (!replaced.containsKey(source)) {
+				sources.add(source);
+			} else if (replaced.get(source) != null) {
+				sources.add(replaced.get(source));
+			}
+		}
+		sources.addAll(added);
+		target.sources = new CopyOnWriteArrayList <XmlCacheSource> (sources);
+		target.configured = reconciled;
 	}
 	
 	/**
-	 * Fetch the XML identified by the key
+	 * Get the configuration properties that start with a prefix
 	 * 
-	 * @param key		The key the identifies some XML
-	 * @return			The XML identified by the given key
-	 * @throws XmlCacheException	If no XML is found
+	 * @param properties	The configuration properties
+	 * @param prefix		The prefix
+	 * @return				The matching properties
 	 */
 	
-	public XmlObject getXml(String key) throws XmlCacheException {
-		long s = System.currentTimeMillis();
-		if (xmlCache.containsKey(key)) {
-			XmlCacheEntry entry = xmlCache.get(key);
-			if (entry.timestamp + cacheExpiry >= System.currentTimeMillis()) {
-				if (statisticsIsOn) {
-					long time = System.currentTimeMillis() - s;
-					updateHitStatistics(time);
-				}
-				return entry.xml;
+	private static Properties getSettings(Properties properties, String prefix) {
+		Properties settings = new Properties();
+		for (String key: properties.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				settings.setProperty(key, properties.getProperty(key));
 			}
 		}
+		return settings;
+	}
+	
+	/**
+	 * Apply the configuration properties to the settings that can be changed
+	 * whilst the cache is running
+	 */
+	
+	private void applySettings() {
+		try {
+			cacheExpiry = Long.parseLong(configuration.getProperty(CFGKEY_CACHE_EXPIRY, "30000"));
+			logger.info("Using cache expiry of " + cacheExpiry + "ms.");
+			statisticsIsOn = Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_STATS, "true"));
+			logger.info("Cache statistics are on? "  + statisticsIsOn);
+		} catch (NumberFormatException e) {
+			logger.severe("Configuration property 'expire' is not a valid integer. Using default of " + cacheExpiry);
+		}
 		
-		XmlObject xmlObject = searchXmlSources(key);
-		if (xmlObject != null) {
-			XmlCacheEntry cacheEntry = new XmlCacheEntry(xmlObject);
-			xmlCache.put(key, cacheEntry);
-			if (statisticsIsOn) {
-				long time = System.currentTimeMillis() - s;
-				updateMissStatistics(time);
+		int topK = (int) getLongProperty(configuration, CFGKEY_CACHE_STATS_TOPK, 0);
+		if (topK <= 0) {
+			topRequests = topMisses = topLoadTimes = null;
+		} else if (topRequests == null || topK != configuredTopK) {
+			topRequests = new XmlCacheHeavyHitters(topK);
+			topMisses = new XmlCacheHeavyHitters(topK);
+			topLoadTimes = new XmlCacheHeavyHitters(topK);
+			logger.info("Tracking the top " + topK + " keys");
+		}
+		configuredTopK = topK;
+		
+		String rate = configuration.getProperty(CFGKEY_CACHE_TRACE_RATE, "0");
+		try {
+			double traceRate = Double.parseDouble(rate);
+			int traceKeep = (int) getLongProperty(configuration, CFGKEY_CACHE_TRACE_KEEP, 100);
+			if (traceRate <= 0) {
+				tracer = null;
+			} else if (tracer == null || traceRate != configuredTraceRate || traceKeep != configuredTraceKeep) {
+				// The kept traces survive a reload that does not change tracing
+				tracer = new XmlCacheTracer(traceRate, traceKeep);
+				logger.info("Tracing " + rate + " of the calls");
 			}
-			return xmlObject;
+			configuredTraceRate = traceRate;
+			configuredTraceKeep = traceKeep;
+		} catch (NumberFormatException e) {
+			logger.severe("Configuration property '" + CFGKEY_CACHE_TRACE_RATE + "' is not a valid number. Tracing is off");
+			tracer = null;
 		}
 		
-		throw new XmlCacheException("Unable to load XML for key: " + key);	
+		expiryPolicies = createExpiryPolicies();
+		indexDefinitions = createIndexDefinitions();
+		projections = createProjections();
+		
+		maxEntries = (int) getLongProperty(configuration, CFGKEY_CACHE_MAXENTRIES, 0);
+		logger.info("Maximum in-memory entries: " + (maxEntries > 0 ? String.valueOf(maxEntries) : "unlimited"));
+		maxWeight = getLongProperty(configuration, CFGKEY_CACHE_MAXWEIGHT, 0);
+		if (maxWeight > 0) {
+			logger.info("Maximum in-memory weight: " + maxWeight + " bytes");
+		}
+		asyncRefresh = "async".equalsIgnoreCase(configuration.getProperty(CFGKEY_CACHE_REFRESH, "sync"));
+		logger.info("Expired entries are refreshed in the background? " + asyncRefresh);
+		l0Size = (int) getLongProperty(configuration, CFGKEY_CACHE_L0_SIZE, 0);
+		logger.info("Per-thread cache entries: " + l0Size);
+		readOnly = Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_READONLY, "false"));
+		logger.info("Cached XML is checked for modification? " + readOnly);
+		schemaTypeLoader = createSchemaTypeLoader();
+		validate = schemaTypeLoader != null
+			&& Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_SCHEMA_VALIDATE, "false"));
+		logger.info("Typed XML is validated on load? " + validate);
+		dedup = Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_DEDUP, "false"));
+		logger.info("Identical content is shared between keys? " + dedup);
 		
+		lazy = Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_LAZY, "false"));
+		logger.info("Lazy parsing is on? " + lazy);
 	}
 	
-	public static long getLongProperty(Properties properties, String key, long defaultValue) {
-		String s = properties.getProperty(key);
-		if (s != null) {
+	/**
+	 * Apply the loaded configuration properties to the cache settings
+	 */
+	
+	protected void applyConfiguration() {
+		applySettings();
+		
+		if (Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_L2, "false"))) {
+			File dir = new File(configuration.getProperty(CFGKEY_CACHE_L2_DIR, "xmlcache-l2"));
+			int segmentSize = (int) getLongProperty(configuration, CFGKEY_CACHE_L2_SEGMENTSIZE, 16 * 1024 * 1024);
 			try {
-				return Long.parseLong(s);
-			} catch (NumberFormatException e) {
-				logger.warning("Property '" + key + "' is not a valid long.");
+				l2Store = new XmlCacheDiskStore(dir, segmentSize,
+						getLongProperty(configuration, CFGKEY_CACHE_L2_CAPACITY, 1024L * 1024 * 1024));
+			} catch (IOException e) {
+				logger.severe("Unable to open L2 store in " + dir + ". L2 is disabled: " + e.getLocalizedMessage());
+				l2Store = null;
 			}
 		}
-		return defaultValue;
-	}
-	
-	
-	///////////////////////////////////////////////////////////////////////////
-	// Statistics Methods
-	///////////////////////////////////////////////////////////////////////////
-	
-	private void updateHitStatistics (long time) {
-		synchronized (statsSynchObject) {
-			hitAvgTime = ((hitAvgTime * hitTotal) + time) / (hitTotal + 1);
-			hitTotal++;
-			if (time < hitMinTime) hitMinTime = time;
-			if (time > hitMaxTime) hitMaxTime = time;
-			statsLogger.info(getStatisticsString());
+		
+		if ("offheap".equalsIgnoreCase(configuration.getProperty(CFGKEY_CACHE_STORAGE, "heap"))) {
+			offHeapStore = new XmlCacheOffHeapStore(
+					(int) getLongProperty(configuration, CFGKEY_CACHE_OFFHEAP_SLABSIZE, 1024 * 1024),
+					getLongProperty(configuration, CFGKEY_CACHE_OFFHEAP_CAPACITY, 256L * 1024 * 1024));
 		}
-	}
-	
-	private void updateMissStatistics (long time) {
-		synchronized (statsSynchObject) {
-			missAvgTime = ((missAvgTime * missTotal) + time) / (missTotal + 1);
-			missTotal++;
-			if (time < missMinTime) missMinTime = time;
-			if (time > missMaxTime) missMaxTime = time;
-			statsLogger.info(getStatisticsString());
+		
+		coldThreshold = getLongProperty(configuration, CFGKEY_CACHE_COLD_THRESHOLD, 0);
+		if (coldThreshold > 0) {
+			long sweep = getLongProperty(configuration, CFGKEY_CACHE_COLD_SWEEP, 60000);
+			logger.info("Compressing entries not accessed for " + coldThreshold + "ms, sweeping every " + sweep + "ms");
+			getMaintenanceTimer().schedule(new TimerTask() {
+				@Override
+				public void run() {
+					compressColdEntries();
+				}
+			}, sweep, sweep);
+		}
+		
+		String levels = configuration.getProperty(CFGKEY_CACHE_MEMORY_LEVELS, "").trim();
+		if (levels.length() > 0) {
+			try {
+				String[] split = levels.split(";");
+				double[] fractions = new double[split.length];
+				for (int i = 0; i < split.length; i++) {
+					fractions[i] = Double.parseDouble(split[i].trim());
+					if (!(fractions[i] > 0 && fractions[i] <= 1))
+						throw new NumberFormatException("level " + fractions[i] + " is not above 0 and at most 1");
+				}
+				double shed = Double.parseDouble(configuration.getProperty(CFGKEY_CACHE_MEMORY_SHED, "0.25"));
+				if (!(shed > 0 && shed < 1))
+					throw new NumberFormatException("shed fraction " + shed + " is not between 0 and 1");
+				shedFraction = shed;
+				if (memoryListener != null) {
+					XmlCacheMemoryMonitor.unregister(memoryListener);
+				}
+				memoryListener = new XmlCacheMemoryMonitor.Listener() {
+					public void memoryPressure(int level) {
+						shed();
+					}
+					public boolean memoryRelieved() {
+						return growBack();
+					}
+				};
+				XmlCacheMemoryMonitor.register(fractions,
+						getLongProperty(configuration, CFGKEY_CACHE_MEMORY_CHECKINTERVAL, 10000), memoryListener);
+				logger.info("Shedding " + shedFraction + " of the entries at memory levels " + levels);
+			} catch (NumberFormatException e) {
+				logger.severe("Invalid memory pressure levels or shed fraction. Memory pressure is ignored: "
+						+ e.getLocalizedMessage());
+			}
+		}
+		
+		long report = getLongProperty(configuration, CFGKEY_CACHE_STATS_REPORT, 0);
+		if (report > 0) {
+			getMaintenanceTimer().schedule(new TimerTask() {
+				@Override
+				public void run() {
+					if (statisticsIsOn && topRequests != null) {
+						statsLogger.info(getTopKeysString());
+					}
+					if (statisticsIsOn && tracer != null) {
+						statsLogger.info(getTraceHistogramString());
+					}
+				}
+			}, report, report);
+		}
+		
+		String metricsFile = configuration.getProperty(CFGKEY_METRICS_FILE, "").trim();
+		int metricsPort = (int) getLongProperty(configuration, CFGKEY_METRICS_PORT, 0);
+		if (metricsFile.length() > 0 || metricsPort > 0) {
+			XmlCacheMetrics registry = getMetrics();
+			for (String pattern: configuration.getProperty(CFGKEY_METRICS_MBEANS, "com.oracle.ukps.wls.logging:*").split(";")) {
+				if (pattern.trim().length() > 0) {
+					registry.registerMBeans(pattern.trim());
+				}
+			}
+			metricsExporter = new XmlCacheMetricsExporter(registry);
+			if (metricsFile.length() > 0) {
+				metricsExporter.writeTo(new File(metricsFile),
+						getLongProperty(configuration, CFGKEY_METRICS_INTERVAL, 15000));
+			}
+			if (metricsPort > 0) {
+				try {
+					metricsExporter.serve(metricsPort);
+				} catch (IOException e) {
+					logger.severe("Unable to serve metrics on port " + metricsPort + ": " + e.getLocalizedMessage());
+				}
+			}
+		}
+		
+		String record = configuration.getProperty(CFGKEY_CACHE_RECORD_FILE, "").trim();
+		if (record.length() > 0) {
+			try {
+				recorder = new XmlCacheAccessRecorder(new File(record),
+						(int) getLongProperty(configuration, CFGKEY_CACHE_RECORD_BUFFER, 65536));
+			} catch (IOException e) {
+				logger.severe("Unable to record requests to " + record + ": " + e.getLocalizedMessage());
+			}
+		}
+		
+		String snapshot = configuration.getProperty(CFGKEY_CACHE_SNAPSHOT_FILE);
+		if (snapshot != null && snapshot.trim().length() > 0) {
+			snapshotFile = new File(snapshot.trim());
+			logger.info("Cache snapshots are written to " + snapshotFile);
+			addSnapshotOnShutdown(this);
+			long interval = getLongProperty(configuration, CFGKEY_CACHE_SNAPSHOT_INTERVAL, 0);
+			if (interval > 0) {
+				getMaintenanceTimer().schedule(new TimerTask() {
+					@Override
+					public void run() {
+						writeSnapshot();
+					}
+				}, interval, interval);
+			}
+		}
+		
+		String shared = configuration.getProperty(CFGKEY_CACHE_SHARED_FILE);
+		if (shared != null && shared.trim().length() > 0) {
+			sharedFile = new File(shared.trim());
+			long interval = getLongProperty(configuration, CFGKEY_CACHE_SHARED_INTERVAL, 60000);
+			logger.info("Publishing shared segment to " + sharedFile + " every " + interval + "ms");
+			getMaintenanceTimer().schedule(new TimerTask() {
+				@Override
+				public void run() {
+					publishSharedSegment();
+				}
+			}, interval, interval);
+		}
+		
+		int port = (int) getLongProperty(configuration, CFGKEY_CLUSTER_PORT, 0);
+		if (port > 0) {
+			try {
+				channel = new XmlCacheInvalidationChannel(port,
+						XmlCacheInvalidationChannel.parsePeers(configuration.getProperty(CFGKEY_CLUSTER_PEERS, "")),
+						getLongProperty(configuration, CFGKEY_CLUSTER_BATCH_INTERVAL, 100),
+						new XmlCacheInvalidationChannel.Listener() {
+							public void invalidate(String key) {
+								invalidateLocally(key);
+							}
+							public void invalidatePrefix(String prefix) {
+								invalidatePrefixLocally(prefix);
+							}
+							public void reload(final String key) {
+								invalidateLocally(key);
+								getReloadExecutor().execute(new Runnable() {
+									public void run() {
+										preload(key);
+									}
+								});
+							}
+						});
+			} catch (SocketException e) {
+				logger.severe("Unable to open invalidation channel on port " + port
+						+ ". Invalidations will not be shared: " + e.getLocalizedMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Create the expiry policies from the <code>expiry.*</code> properties
+	 * 
+	 * @return	The policies in order of name
+	 */
+	
+	private List <ExpiryPolicy> createExpiryPolicies() {
+		List <ExpiryPolicy> policies = new ArrayList <ExpiryPolicy> ();
+		for (String name: getDefinitionNames(CFGKEY_EXPIRY_PREFIX)) {
+			String base = CFGKEY_EXPIRY_PREFIX + name + ".";
+			long ttl = getLongProperty(configuration, base + "ttl", cacheExpiry);
+			try {
+				KeyMatcher matcher = new KeyMatcher(configuration, base);
+				policies.add(new ExpiryPolicy(matcher, ttl));
+				logger.info("Expiry policy '" + name + "': " + matcher + " for " + ttl + "ms");
+			} catch (PatternSyntaxException e) {
+				logger.severe("Expiry policy '" + name + "' has an invalid pattern and is ignored: "
+						+ e.getLocalizedMessage());
+			}
+		}
+		return policies;
+	}
+	
+	/**
+	 * Create the index definitions from the <code>index.*</code> properties
+	 * 
+	 * @return	The definitions by name
+	 */
+	
+	private Map <String, IndexDefinition> createIndexDefinitions() {
+		Map <String, IndexDefinition> definitions = new HashMap <String, IndexDefinition> ();
+		for (String name: getDefinitionNames(CFGKEY_INDEX_PREFIX)) {
+			String base = CFGKEY_INDEX_PREFIX + name + ".";
+			String records = configuration.getProperty(base + "records");
+			String key = configuration.getProperty(base + "key");
+			if (records == null || key == null) {
+				logger.severe("Index '" + name + "' needs both a records and a key XPath and is ignored");
+				continue;
+			}
+			try {
+				KeyMatcher matcher = new KeyMatcher(configuration, base);
+				definitions.put(name, new IndexDefinition(name, matcher, compilePath(records), compilePath(key)));
+				logger.info("Index '" + name + "': " + matcher + " records " + records + " by " + key);
+			} catch (PatternSyntaxException e) {
+				logger.severe("Index '" + name + "' has an invalid pattern and is ignored: "
+						+ e.getLocalizedMessage());
+			} catch (XmlCacheException e) {
+				logger.severe("Index '" + name + "' is ignored: " + e.getLocalizedMessage());
+			}
+		}
+		return definitions;
+	}
+	
+	/**
+	 * Create the projections from the <code>projection.*</code> properties
+	 * 
+	 * @return	The projections in order of name
+	 */
+	
+	private List <ProjectionDefinition> createProjections() {
+		List <ProjectionDefinition> definitions = new ArrayList <ProjectionDefinition> ();
+		for (String name: getDefinitionNames(CFGKEY_PROJECTION_PREFIX)) {
+			String base = CFGKEY_PROJECTION_PREFIX + name + ".";
+			String paths = configuration.getProperty(base + "paths");
+			String query = configuration.getProperty(base + "query");
+			try {
+				KeyMatcher matcher = new KeyMatcher(configuration, base);
+				List <String> compiled = new ArrayList <String> ();
+				List <String> elementPaths = null;
+				if (query != null) {
+					compiled.add(XmlBeans.compileQuery(query));
+				} else if (paths != null) {
+					elementPaths = new ArrayList <String> ();
+					for (String path: paths.split(";")) {
+						path = path.trim();
+						if (path.length() > 0) {
+							compiled.add(compilePath(path));
+							Matcher element = ELEMENT_PATH.matcher(path);
+							if (elementPaths != null && element.matches()) {
+								elementPaths.add(element.group(1));
+							} else {
+								elementPaths = null;
+							}
+						}
+					}
+				}
+				if (compiled.isEmpty()) {
+					logger.severe("Projection '" + name + "' needs paths or a query and is ignored");
+					continue;
+				}
+				definitions.add(new ProjectionDefinition(matcher, compiled, query != null, elementPaths));
+				logger.info("Projection '" + name + "': " + matcher + " to " + (query != null ? query : paths));
+			} catch (PatternSyntaxException e) {
+				logger.severe("Projection '" + name + "' has an invalid pattern and is ignored: "
+						+ e.getLocalizedMessage());
+			} catch (XmlCacheException e) {
+				logger.severe("Projection '" + name + "' is ignored: " + e.getLocalizedMessage());
+			} catch (XmlException e) {
+				logger.severe("Projection '" + name + "' has an invalid query and is ignored: "
+						+ e.getLocalizedMessage());
+			} catch (RuntimeException e) {
+				logger.severe("Projection '" + name + "' has an unsupported query and is ignored: "
+						+ e.getLocalizedMessage());
+			}
+		}
+		return definitions;
+	}
+	
+	/**
+	 * Create the schema type loader from the <code>cache.schema.*</code>
+	 * properties
+	 * 
+	 * @return	The loader or null if the cached XML is untyped
+	 */
+	
+	private SchemaTypeLoader createSchemaTypeLoader() {
+		List <SchemaTypeLoader> loaders = new ArrayList <SchemaTypeLoader> ();
+		String files = configuration.getProperty(CFGKEY_CACHE_SCHEMA_FILES);
+		if (files != null) {
+			List <XmlObject> schemas = new ArrayList <XmlObject> ();
+			try {
+				for (String file: files.split(";")) {
+					if (file.trim().length() > 0) {
+						schemas.add(XmlObject.Factory.parse(new File(file.trim()),
+								new XmlOptions().setLoadLineNumbers().setLoadMessageDigest()));
+					}
+				}
+				loaders.add(XmlBeans.compileXsd(schemas.toArray(new XmlObject[schemas.size()]),
+						XmlBeans.getBuiltinTypeSystem(), null));
+				logger.info("Compiled " + schemas.size() + " schemas to type the cached XML");
+			} catch (XmlException e) {
+				logger.severe("Unable to compile the schemas " + files + ". They are ignored: "
+						+ e.getLocalizedMessage());
+			} catch (IOException e) {
+				logger.severe("Unable to read the schemas " + files + ". They are ignored: "
+						+ e.getLocalizedMessage());
+			}
+		}
+		if (Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_SCHEMA_COMPILED, "false"))) {
+			loaders.add(XmlBeans.getContextTypeLoader());
+			logger.info("Using compiled types on the classpath to type the cached XML");
+		}
+		if (loaders.isEmpty())
+			return null;
+		loaders.add(XmlBeans.getBuiltinTypeSystem());
+		return XmlBeans.typeLoaderUnion(loaders.toArray(new SchemaTypeLoader[loaders.size()]));
+	}
+	
+	/**
+	 * Set the loader of the types of the cached XML, in place of any that is
+	 * configured
+	 * 
+	 * By default cached XML is untyped. With a loader, configured from the
+	 * semicolon separated XSD files in <code>cache.schema.files</code>, from
+	 * the XMLBeans types compiled on to the classpath when
+	 * <code>cache.schema.compiled</code> is set or with this method, each
+	 * document whose root element is a global element of the schema is
+	 * cached as its XMLBeans document type, so callers can cast the returned
+	 * XML rather than parse it again. Each region has its own loader. With
+	 * validation, or <code>cache.schema.validate</code>, the typed document
+	 * is also validated once when it is loaded from its source, and an
+	 * invalid document is rejected with the errors logged rather than
+	 * cached. Validated documents are always parsed on load, and documents
+	 * from a shared segment are typed but not validated again.
+	 * 
+	 * Applies to XML loaded from now on, until the configuration is next
+	 * reloaded.
+	 * 
+	 * @param loader	The loader or null for untyped XML
+	 * @param validate	Whether typed XML is validated on load
+	 */
+	
+	public void setSchemaTypeLoader(SchemaTypeLoader loader, boolean validate) {
+		this.schemaTypeLoader = loader;
+		this.validate = loader != null && validate;
+	}
+	
+	/**
+	 * Set the loader of the types of the cached XML, leaving validation as
+	 * configured
+	 * 
+	 * @param loader	The loader or null for untyped XML
+	 */
+	
+	public void setSchemaTypeLoader(SchemaTypeLoader loader) {
+		setSchemaTypeLoader(loader, Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_SCHEMA_VALIDATE, "false")));
+	}
+	
+	/**
+	 * Change untyped XML to the document type of its root element, if the
+	 * schema type loader has one
+	 * 
+	 * @param xml	The XML
+	 * @return		The typed XML, or the XML unchanged if there is no loader
+	 * or no matching type
+	 */
+	
+	private XmlObject type(XmlObject xml) {
+		SchemaTypeLoader loader = schemaTypeLoader;
+		if (loader == null || !xml.schemaType().isNoType())
+			return xml;
+		XmlCursor cursor = xml.newCursor();
+		try {
+			if (!cursor.toFirstChild())
+				return xml;
+			SchemaType type = loader.findDocumentType(cursor.getName());
+			return type == null ? xml : xml.changeType(type);
+		} finally {
+			cursor.dispose();
+		}
+	}
+	
+	/**
+	 * Type XML loaded from a source and, if configured, validate it
+	 * 
+	 * @param key	The key
+	 * @param xml	The XML as loaded
+	 * @return		The typed XML or null if it is invalid
+	 */
+	
+	private XmlObject typeAndValidate(String key, XmlObject xml) {
+		xml = type(xml);
+		if (!validate)
+			return xml;
+		List <XmlError> errors = new ArrayList <XmlError> ();
+		if (xml.schemaType().isNoType()) {
+			logger.severe("XML for key '" + key + "' has no schema type and is rejected");
+			return null;
+		}
+		long span = XmlCacheTracer.begin();
+		boolean valid = xml.validate(new XmlOptions().setErrorListener(errors));
+		XmlCacheTracer.end("validate", span);
+		if (!valid) {
+			logger.severe("XML for key '" + key + "' is invalid and is rejected: " + errors);
+			return null;
+		}
+		return xml;
+	}
+	
+	/**
+	 * Get the projection that applies to a key
+	 * 
+	 * @param key	The key
+	 * @return		The projection or null if none applies
+	 */
+	
+	private ProjectionDefinition getProjection(String key) {
+		for (ProjectionDefinition projection: projections) {
+			if (projection.matcher.matches(key))
+				return projection;
+		}
+		return null;
+	}
+	
+	/**
+	 * Apply the projection, if any, for a key to XML loaded from a source
+	 * 
+	 * @param key	The key
+	 * @param xml	The XML as loaded
+	 * @return		The projected XML, or the XML as loaded if no projection
+	 * applies or the projection fails
+	 */
+	
+	private XmlObject project(String key, XmlObject xml) {
+		ProjectionDefinition projection = getProjection(key);
+		if (projection == null)
+			return xml;
+		long span = XmlCacheTracer.begin();
+		try {
+			return projection.apply(xml);
+		} catch (RuntimeException e) {
+			logger.warning("Unable to project XML for key '" + key + "'. Caching the whole document: "
+					+ e.getLocalizedMessage());
+			return xml;
+		} finally {
+			XmlCacheTracer.end("project", span);
+		}
+	}
+	
+	/**
+	 * Get the names of the definitions configured with a property prefix,
+	 * in order
+	 * 
+	 * @param prefix	The property prefix, for example <code>expiry.</code>
+	 * @return			The names between the prefix and the last dot
+	 */
+	
+	private TreeSet <String> getDefinitionNames(String prefix) {
+		TreeSet <String> names = new TreeSet <String> ();
+		for (String key: configuration.stringPropertyNames()) {
+			if (key.startsWith(prefix) && key.lastIndexOf('.') > prefix.length()) {
+				names.add(key.substring(prefix.length(), key.lastIndexOf('.')));
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Get the time that entries are stamped with and expire by, which the
+	 * simulator replaces with the time of each recorded request
+	 * 
+	 * @return	The current time in milliseconds
+	 */
+	
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+	
+	/**
+	 * Get the deadline for XML that has been loaded
+	 * 
+	 * @param key		The key of the XML
+	 * @param ttl		The expiry supplied by the source of the XML or
+	 * {@link #EXPIRY_DEFAULT} to use the configured policy
+	 * @param timestamp	The time the XML was loaded
+	 * @return			The time the XML expires
+	 */
+	
+	private long getDeadline(String key, long ttl, long timestamp) {
+		if (ttl == EXPIRY_DEFAULT) {
+			ttl = cacheExpiry;
+			for (ExpiryPolicy policy: expiryPolicies) {
+				if (policy.matcher.matches(key)) {
+					ttl = policy.ttl;
+					break;
+				}
+			}
+		}
+		if (ttl < 0 || timestamp > Long.MAX_VALUE - ttl)
+			return Long.MAX_VALUE;
+		return timestamp + ttl;
+	}
+	
+	private synchronized ExecutorService getReloadExecutor() {
+		if (reloadExecutor == null) {
+			reloadExecutor = newExecutor("XmlCacheUtility-reload", 1);
+		}
+		return reloadExecutor;
+	}
+	
+	/**
+	 * Get the timer used to run background maintenance tasks
+	 * 
+	 * @return	The maintenance timer, which runs as a daemon thread
+	 */
+	
+	protected synchronized Timer getMaintenanceTimer() {
+		if (maintenanceTimer == null) {
+			maintenanceTimer = new Timer("XmlCacheUtility-maintenance", true);
+		}
+		return maintenanceTimer;
+	}
+	
+	/**
+	 * Empty the calling thread's per-thread cache. Threads that are pooled
+	 * can call this at the end of each task so that they do not keep XML
+	 * alive whilst they are idle. The caches of other threads are not
+	 * affected.
+	 * 
+	 * When <code>cache.l0.size</code> is set (default 0) each thread keeps
+	 * that many of the entries it was most recently returned in a small front
+	 * cache (L0) of its own, so repeated requests for the hottest keys on a
+	 * thread do not touch the shared cache. An L0 entry is only used whilst
+	 * the shared entry it was taken from has not been replaced, removed or
+	 * evicted and has not expired. A hit in L0 still counts as an access of
+	 * the shared entry, so that it does not go cold, and every few hits
+	 * refreshes the entry's place in the shared cache's LRU order. Each
+	 * thread empties its L0 on its next request after a generation is
+	 * swapped or the configuration is reloaded. For the full benefit
+	 * statistics should be turned off, since recording them is itself shared
+	 * between threads.
+	 */
+	
+	public void clearLocalCaches() {
+		l0.remove();
+	}
+	
+	/**
+	 * Write the snapshot of an instance when the JVM shuts down, unless it
+	 * has been shut down or discarded by then. One hook is shared by every
+	 * instance, and it does not keep discarded instances reachable.
+	 * 
+	 * @param cache	The instance
+	 */
+	
+	private static void addSnapshotOnShutdown(XmlCacheUtility cache) {
+		synchronized (snapshotOnShutdown) {
+			snapshotOnShutdown.add(cache);
+			if (snapshotHookAdded)
+				return;
+			snapshotHookAdded = true;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("XmlCacheUtility-snapshot") {
+			@Override
+			public void run() {
+				List <XmlCacheUtility> caches;
+				synchronized (snapshotOnShutdown) {
+					caches = new ArrayList <XmlCacheUtility> (snapshotOnShutdown);
+				}
+				for (XmlCacheUtility cache: caches) {
+					cache.writeSnapshot();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Stop the background work of this instance and its regions, writing
+	 * their snapshots and deleting their L2 segment files. The cache can still be read afterwards, but is no
+	 * longer maintained, so this is for instances that are being discarded
+	 * and for the end of an application's life.
+	 */
+	
+	public void shutdown() {
+		for (XmlCacheUtility region: regions.values()) {
+			region.shutdown();
+		}
+		synchronized (snapshotOnShutdown) {
+			snapshotOnShutdown.remove(this);
+		}
+		writeSnapshot();
+		version.incrementAndGet();
+		clearLocalCaches();
+		synchronized (this) {
+			if (maintenanceTimer != null) {
+				maintenanceTimer.cancel();
+				maintenanceTimer = null;
+			}
+			if (reloadExecutor != null) {
+				reloadExecutor.shutdown();
+				reloadExecutor = null;
+			}
+			if (generationExecutor != null) {
+				generationExecutor.shutdown();
+				generationExecutor = null;
+			}
+		}
+		if (l2Store != null) {
+			l2Store.close();
+		}
+		offHeapStore = null;
+		if (memoryListener != null) {
+			XmlCacheMemoryMonitor.unregister(memoryListener);
+			memoryListener = null;
+		}
+		if (channel != null) {
+			channel.close();
+		}
+		if (metricsExporter != null) {
+			metricsExporter.close();
+		}
+		if (recorder != null) {
+			recorder.close();
+		}
+	}
+	
+	/**
+	 * Get the Singleton instance
+	 * @return	The Singleton instance of XMLCacheUtility
+	 */
+	
+	public static XmlCacheUtility getXmlCacheUtility() {
+		return instance;
+	}
+	
+	/**
+	 * Get a named region
+	 * 
+	 * Data with very different characteristics, for example volatile pricing
+	 * data and static code lists, can be held in separate named regions, each
+	 * with its own sources, expiry, size and weight limits and refresh policy.
+	 * Each region named in <code>cache.regions</code> is configured with the
+	 * properties prefixed with <code>region.<i>name</i>.</code>, which take
+	 * the same form as the main configuration, for example:
+	 * 
+	 * <pre>
+	 * cache.regions=pricing,codes
+	 * region.pricing.cache.expiry=5000
+	 * region.pricing.cache.refresh=async
+	 * region.pricing.source.prices.class=com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheFileSource
+	 * region.pricing.source.prices.basedir=prices
+	 * region.codes.cache.expiry=86400000
+	 * region.codes.source.codes.class=com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheFileSource
+	 * region.codes.source.codes.basedir=codes
+	 * </pre>
+	 * 
+	 * A region does not inherit any of the main configuration.
+	 * 
+	 * @param region	The name of the region
+	 * @return	The region or null if no region has that name
+	 */
+	
+	public static XmlCacheUtility getXmlCacheUtility(String region) {
+		return instance.getRegion(region);
+	}
+	
+	/**
+	 * Get a region created by this instance
+	 * @param name	The name of the region
+	 * @return	The region or null if no region has that name
+	 */
+	
+	public XmlCacheUtility getRegion(String name) {
+		return regions.get(name);
+	}
+	
+	/**
+	 * Create the regions named in the configuration, each configured with
+	 * the properties prefixed with its name, and shut down and drop the
+	 * regions that are no longer named
+	 */
+	
+	protected void createRegions() {
+		Set <String> names = getRegionNames();
+		for (Iterator <Map.Entry <String, XmlCacheUtility>> i = regions.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry <String, XmlCacheUtility> region = i.next();
+			if (!names.contains(region.getKey())) {
+				logger.info("Dropping cache region: " + region.getKey());
+				i.remove();
+				region.getValue().shutdown();
+			}
+		}
+		for (String name: names) {
+			if (regions.containsKey(name))
+				continue;
+			
+			logger.info("Creating cache region: " + name);
+			regions.put(name, new XmlCacheUtility(getRegionConfiguration(name)));
+		}
+	}
+	
+	/**
+	 * @return	The names of the regions in the configuration
+	 */
+	
+	private Set <String> getRegionNames() {
+		Set <String> names = new LinkedHashSet <String> ();
+		for (String name: configuration.getProperty(CFGKEY_CACHE_REGIONS, "").split(",")) {
+			name = name.trim();
+			if (name.length() > 0)
+				names.add(name);
+		}
+		return names;
+	}
+	
+	/**
+	 * Get the configuration of a region, the properties prefixed with its
+	 * name with the prefix removed
+	 * 
+	 * @param name	The name of the region
+	 * @return		The configuration properties of the region
+	 */
+	
+	private Properties getRegionConfiguration(String name) {
+		String prefix = CFGKEY_REGION_PREFIX + name + ".";
+		Properties regionConfiguration = new Properties();
+		for (String key: configuration.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				regionConfiguration.setProperty(key.substring(prefix.length()), configuration.getProperty(key));
+			}
+		}
+		return regionConfiguration;
+	}
+	
+	/**
+	 * Add an XML source to the cache
+	 * @param source	The XmlCacheSource instance to add
+	 */
+	
+	public void addXmlCacheSource(XmlCacheSource source) {
+		generation.sources.add(source);
+	}
+	
+	/**
+	 * Remove an XML source from the cache
+	 * 
+	 * Does not invalidate any cache entries that have already been loaded
+	 * into the cache.
+	 * 
+	 * @param source
+	 */
+	
+	public void removeXmlCacheSource(XmlCacheSource source) {
+		generation.sources.remove(source);
+	}
+	
+	/**
+	 * Search all the XML sources for XML identified by the key
+	 * 
+	 * The search will terminate with the first item that is found. The
+	 * order of the sources in the list determines the search order.
+	 * 
+	 * To keep sources from colliding it is recommended that an appropriate
+	 * naming strategy is used for keys such that the key prefix is unique
+	 * to a particular source.
+	 * 
+	 * When lazy parsing or sharing of identical content is on, sources that
+	 * can supply raw bytes are asked for those rather than for parsed XML.
+	 * 
+	 * @param sources	The sources to search
+	 * @param key		The key to identify the XML
+	 * @return			A new cache entry for the XML associated with the
+	 * given key or null if it is not found
+	 */
+	
+	private XmlCacheEntry searchXmlSources (List <XmlCacheSource> sources, String key) {
+		logger.finer("searching for item with key: " + key);
+		for (XmlCacheSource source: sources) {
+			logger.finer("searching source: " + source);
+			long span = XmlCacheTracer.begin();
+			XmlCacheEntry entry = null;
+			if (source instanceof XmlCachePayloadSource) {
+				XmlCachePayload payload = ((XmlCachePayloadSource) source).readPayload(key);
+				if (payload != null) {
+					logger.fine("found item with key '" + key + "' in source " + source);
+					entry = new XmlCacheEntry(null, payload, currentTimeMillis());
+				}
+			} else if (dedup && source instanceof XmlCacheRawSource && getProjection(key) == null) {
+				byte[] data = ((XmlCacheRawSource) source).readRawSource(key);
+				if (data != null) {
+					logger.fine("found raw item with key '" + key + "' in source " + source);
+					entry = createSharedEntry(key, data, source.toString(), currentTimeMillis());
+				}
+			} else if (lazy && source instanceof XmlCacheRawSource && getProjection(key) == null && !validate) {
+				byte[] data = ((XmlCacheRawSource) source).readRawSource(key);
+				if (data != null) {
+					logger.fine("found raw item with key '" + key + "' in source " + source);
+					entry = createLazyEntry(data, source.toString(), currentTimeMillis());
+				}
+			} else {
+				// Projections of plain element paths are applied as the source is read
+				ProjectionDefinition projection = getProjection(key);
+				boolean streamed = projection != null && projection.elementPaths != null
+						&& source instanceof XmlCacheStreamSource;
+				XmlObject xmlObject = streamed ? ((XmlCacheStreamSource) source).readSource(key, projection.elementPaths)
+						: source.readSource(key);
+				if (xmlObject != null) {
+					logger.fine("found item with key '" + key + "' in source " + source);
+					xmlObject = typeAndValidate(key, streamed ? xmlObject : project(key, xmlObject));
+					if (xmlObject != null) {
+						entry = createEntry(xmlObject, currentTimeMillis());
+						if ((maxWeight > 0 || recorder != null) && entry.weight < 0 && source instanceof XmlCacheSizeSource
+								&& getProjection(key) == null) {
+							entry.weight = ((XmlCacheSizeSource) source).getSize(key);
+						}
+					}
+				}
+			}
+			if (span != 0) {
+				XmlCacheTracer.end("probe " + source, span);
+			}
+			if (entry != null) {
+				long ttl = EXPIRY_DEFAULT;
+				if (source instanceof XmlCacheExpirySource) {
+					ttl = ((XmlCacheExpirySource) source).getExpiry(key);
+				}
+				entry.sourceExpiry = ttl != EXPIRY_DEFAULT;
+				entry.deadline = getDeadline(key, ttl, entry.timestamp);
+				return entry;
+			}
+		}
+		logger.fine("missed item with key: " + key);
+		return null;
+	}
+	
+	/**
+	 * Load the XML identified by the key into the cache without parsing it,
+	 * if lazy parsing is on
+	 * 
+	 * Does nothing if the key is already cached and has not expired.
+	 * 
+	 * @param key		The key the identifies some XML
+	 * @return			True if the XML is in the cache
+	 */
+	
+	public boolean preload(String key) {
+		CacheGeneration current = generation;
+		XmlCacheEntry entry = current.entries.get(key);
+		if (entry != null && entry.deadline >= currentTimeMillis())
+			return true;
+		
+		entry = searchXmlSources(current.sources, key);
+		if (entry == null)
+			return false;
+		putEntry(current, key, entry);
+		return true;
+	}
+	
+	/**
+	 * Invalidate the XML identified by the key, here and on the peer servers
+	 * 
+	 * @param key		The key the identifies some XML
+	 */
+	
+	public void invalidate(String key) {
+		invalidateLocally(key);
+		if (channel != null)
+			channel.publishInvalidate(key);
+	}
+	
+	/**
+	 * Invalidate all XML with keys that start with the prefix, here and on
+	 * the peer servers
+	 * 
+	 * @param prefix	The prefix of the keys to invalidate
+	 */
+	
+	public void invalidatePrefix(String prefix) {
+		invalidatePrefixLocally(prefix);
+		if (channel != null)
+			channel.publishInvalidatePrefix(prefix);
+	}
+	
+	/**
+	 * Reload the XML identified by the key from the sources, here and on the
+	 * peer servers
+	 * 
+	 * @param key		The key the identifies some XML
+	 * @return			True if the XML was found in a source
+	 */
+	
+	public boolean reload(String key) {
+		invalidateLocally(key);
+		if (channel != null)
+			channel.publishReload(key);
+		return preload(key);
+	}
+	
+	/**
+	 * Invalidate an entry in this server only
+	 * 
+	 * Holds the L2 fence exclusively so that the entry cannot be promoted or
+	 * demoted whilst it is invalidated, and a demotion of the entry that
+	 * has not started yet is cancelled.
+	 * 
+	 * @param key		The key the identifies some XML
+	 */
+	
+	private void invalidateLocally(String key) {
+		XmlCacheEntry entry;
+		l2Fence.writeLock().lock();
+		try {
+			entry = generation.remove(key);
+			if (l2Store != null)
+				l2Store.remove(key);
+		} finally {
+			l2Fence.writeLock().unlock();
+		}
+		if (entry != null)
+			release(entry);
+		logger.fine("invalidated item with key: " + key);
+	}
+	
+	private void invalidatePrefixLocally(String prefix) {
+		List <XmlCacheEntry> removed = new ArrayList <XmlCacheEntry> ();
+		List <String> keys = new ArrayList <String> ();
+		l2Fence.writeLock().lock();
+		try {
+			CacheGeneration generation = this.generation;
+			Map <String, XmlCacheEntry> entries = generation.entries;
+			synchronized (entries) {
+				for (Iterator <Map.Entry <String, XmlCacheEntry>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+					Map.Entry <String, XmlCacheEntry> e = i.next();
+					if (e.getKey().startsWith(prefix)) {
+						keys.add(e.getKey());
+						removed.add(e.getValue());
+						i.remove();
+						generation.unweigh(e.getValue());
+						e.getValue().retired = true;
+					}
+				}
+				for (Iterator <String> i = generation.demoting.keySet().iterator(); i.hasNext(); ) {
+					if (i.next().startsWith(prefix))
+						i.remove();
+				}
+			}
+			if (l2Store != null) {
+				for (String key: l2Store.keys()) {
+					if (key.startsWith(prefix)) {
+						l2Store.remove(key);
+					}
+				}
+			}
+		} finally {
+			l2Fence.writeLock().unlock();
+		}
+		for (XmlCacheEntry entry: removed) {
+			release(entry);
+		}
+		logger.fine("invalidated " + keys.size() + " items with prefix: " + prefix);
+	}
+	
+	/**
+	 * Fetch the XML identified by the key
+	 * 
+	 * The XML is shared with every other caller and must not be modified
+	 * (see {@link #getXmlCopy(String)}).
+	 * 
+	 * @param key		The key the identifies some XML
+	 * @return			The XML identified by the given key
+	 * @throws XmlCacheException	If no XML is found
+	 */
+	
+	public XmlObject getXml(String key) throws XmlCacheException {
+		if (recorder != null) {
+			recorder.record(currentTimeMillis(), key);
+		}
+		XmlCacheTracer calls = tracer;
+		if (calls == null || !calls.start(key))
+			return fetchXml(key);
+		try {
+			return fetchXml(key);
+		} finally {
+			calls.finish();
+		}
+	}
+	
+	/**
+	 * Fetch the XML identified by the key, whether or not the call is traced
+	 * 
+	 * @param key		The key the identifies some XML
+	 * @return			The XML identified by the given key
+	 * @throws XmlCacheException	If no XML is found
+	 */
+	
+	private XmlObject fetchXml(String key) throws XmlCacheException {
+		long s = System.currentTimeMillis();
+		long span = XmlCacheTracer.begin();
+		LocalCache local = null;
+		if (l0Size > 0) {
+			local = l0.get();
+			long current = version.get();
+			if (local.version != current) {
+				local.clear();
+				local.version = current;
+			}
+			L0Entry recent = local.get(key);
+			long now = currentTimeMillis();
+			if (recent != null && !recent.entry.retired && recent.entry.deadline >= now
+					&& (!readOnly || checkUnmodified(key, recent.entry, recent.xml))) {
+				// Keep the entry from going cold, writing the shared field at
+				// most once a millisecond, and now and then refresh its place
+				// in the least recently used order of the shared cache
+				if (recent.entry.lastAccess != now) {
+					recent.entry.lastAccess = now;
+				}
+				if (++local.hits % L0_LRU_SAMPLE == 0) {
+					generation.entries.get(key);
+				}
+				hitCount.inc();
+				if (statisticsIsOn) {
+					updateHitStatistics(key, System.currentTimeMillis() - s);
+				}
+				XmlCacheTracer.end("lookup", span);
+				return recent.xml;
+			}
+		}
+		
+		CacheGeneration current = generation;
+		XmlCacheEntry entry = current.entries.get(key);
+		XmlCacheTracer.end("lookup", span);
+		if (entry == null && l2Store != null) {
+			span = XmlCacheTracer.begin();
+			entry = promote(key);
+			XmlCacheTracer.end("l2.promote", span);
+		}
+		if (entry != null) {
+			boolean expired = entry.deadline < currentTimeMillis();
+			if (!expired || asyncRefresh) {
+				XmlObject xml = null;
+				try {
+					xml = resolve(entry);
+				} catch (XmlCacheException e) {
+					// The entry was replaced and released whilst being read
+					logger.fine("Unable to resolve item with key '" + key + "': " + e.getLocalizedMessage());
+				}
+				if (xml != null && readOnly && !checkUnmodified(key, entry, xml)) {
+					// Discarded, so reloaded from the sources below
+					xml = null;
+				}
+				if (xml != null) {
+					if (expired) {
+						refresh(key, entry);
+					} else if (local != null) {
+						local.put(key, new L0Entry(entry, xml));
+					}
+					hitCount.inc();
+					if (statisticsIsOn) {
+						long time = System.currentTimeMillis() - s;
+						updateHitStatistics(key, time);
+					}
+					return xml;
+				}
+			}
+		}
+		
+		XmlCacheEntry cacheEntry = searchXmlSources(current.sources, key);
+		if (cacheEntry != null) {
+			XmlObject xmlObject = resolve(cacheEntry);
+			if (readOnly) {
+				checkUnmodified(key, cacheEntry, xmlObject);
+			}
+			putEntry(current, key, cacheEntry);
+			if (local != null) {
+				local.put(key, new L0Entry(cacheEntry, xmlObject));
+			}
+			if (recorder != null) {
+				recorder.recordLoad(currentTimeMillis(), key, cacheEntry.weight >= 0 ? cacheEntry.weight : weigh(cacheEntry));
+			}
+			long time = System.currentTimeMillis() - s;
+			missCount.inc();
+			loadMillis.add(time);
+			if (statisticsIsOn) {
+				updateMissStatistics(key, time);
+			}
+			return xmlObject;
+		}
+		
+		notFoundCount.inc();
+		throw new XmlCacheException("Unable to load XML for key: " + key);	
+		
+	}
+	
+	/**
+	 * Fetch the result of an XPath over the XML identified by the key
+	 * 
+	 * Each XPath is compiled once, and the result is memoized with the cache
+	 * entry so that repeated requests for the same fragment of the same
+	 * document do not evaluate the XPath again. The memo is discarded with
+	 * its entry when the entry is replaced, invalidated or goes cold, and
+	 * results are only memoized for documents that are held live. The most
+	 * recently used 1024 compiled XPaths, and 64 results for each entry, are
+	 * kept, so that callers building XPaths from request data cannot grow
+	 * either without limit. The XPaths supported are those of the XMLBeans
+	 * path engines on the classpath; predicates need Saxon.
+	 * 
+	 * @param key		The key the identifies some XML
+	 * @param xpath		The XPath to select, relative to the document
+	 * @return			The selected XML, shared with other callers
+	 * @throws XmlCacheException	If no XML is found or the XPath is not valid
+	 */
+	
+	public XmlObject[] getXmlFragment(String key, String xpath) throws XmlCacheException {
+		XmlObject xml = getXml(key);
+		String path = compilePath(xpath);
+		XmlCacheEntry entry = generation.entries.get(key);
+		if (entry == null || entry.xml != xml) {
+			// Not held live, so there is nothing to memoize against
+			return xml.selectPath(path);
+		}
+		
+		Map <String, XmlObject[]> fragments;
+		synchronized (entry) {
+			if (entry.fragments == null) {
+				entry.fragments = Collections.synchronizedMap(new BoundedMap <String, XmlObject[]> (MAX_FRAGMENTS));
+			}
+			fragments = entry.fragments;
+		}
+		XmlObject[] selected = fragments.get(path);
+		if (selected == null) {
+			selected = xml.selectPath(path);
+			fragments.put(path, selected);
+		}
+		return selected.clone();
+	}
+	
+	/**
+	 * Compile an XPath, once
+	 * 
+	 * @param xpath	The XPath
+	 * @return		The compiled XPath
+	 * @throws XmlCacheException	If the XPath is not valid
+	 */
+	
+	private static String compilePath(String xpath) throws XmlCacheException {
+		String path = compiledPaths.get(xpath);
+		if (path == null) {
+			try {
+				path = XmlBeans.compilePath(xpath);
+			} catch (XmlException e) {
+				throw new XmlCacheException("Invalid XPath '" + xpath + "': " + e.getLocalizedMessage());
+			} catch (RuntimeException e) {
+				// Thrown when none of the available XPath engines can compile it
+				throw new XmlCacheException("Unsupported XPath '" + xpath + "': " + e.getLocalizedMessage());
+			}
+			compiledPaths.put(xpath, path);
+		}
+		return path;
+	}
+	
+	/**
+	 * Look up a record in an index over the XML identified by the key
+	 * 
+	 * Documents that are lookup tables can be indexed so that a record is
+	 * found with a hash lookup rather than an XPath scan of the whole tree.
+	 * An index is declared for the keys that match a prefix or pattern, with
+	 * an XPath selecting the records and an XPath, relative to a record,
+	 * selecting the value each record is indexed by, for example:
+	 * 
+	 * <pre>
+	 * index.country.prefix=codes/country
+	 * index.country.records=$this//country
+	 * index.country.key=@code
+	 * </pre>
+	 * 
+	 * The index is built when a live document is put into the cache, or on
+	 * the first lookup otherwise, and belongs to its cache entry, so a
+	 * reloaded document comes with a complete new index. Where several
+	 * records have the same value the first is indexed.
+	 * 
+	 * @param key		The key the identifies some XML
+	 * @param indexName	The name of the index
+	 * @param value		The value of the record to find
+	 * @return			The record, shared with other callers, or null if
+	 * no record has the value
+	 * @throws XmlCacheException	If no XML is found or there is no such
+	 * index for the key
+	 */
+	
+	public XmlObject lookup(String key, String indexName, String value) throws XmlCacheException {
+		IndexDefinition definition = indexDefinitions.get(indexName);
+		if (definition == null || !definition.matcher.matches(key))
+			throw new XmlCacheException("No index '" + indexName + "' for key: " + key);
+		
+		XmlObject xml = getXml(key);
+		XmlCacheEntry entry = generation.entries.get(key);
+		if (entry == null || entry.xml != xml) {
+			// Not held live, so the index would not outlive this request
+			return definition.build(xml).get(value);
+		}
+		
+		Map <IndexDefinition, Map <String, XmlObject>> indexes;
+		synchronized (entry) {
+			indexes = getIndexes(entry);
+		}
+		Map <String, XmlObject> index = indexes.get(definition);
+		if (index == null) {
+			index = definition.build(xml);
+			indexes.put(definition, index);
+		}
+		return index.get(value);
+	}
+	
+	private Map <IndexDefinition, Map <String, XmlObject>> getIndexes(XmlCacheEntry entry) {
+		if (entry.indexes == null) {
+			entry.indexes = new ConcurrentHashMap <IndexDefinition, Map <String, XmlObject>> ();
+		}
+		return entry.indexes;
+	}
+	
+	/**
+	 * Fetch a private copy of the XML identified by the key, which the
+	 * caller is free to modify
+	 * 
+	 * XMLBeans cannot make a parsed tree immutable, so when
+	 * <code>cache.readonly</code> is set (default false) the cache instead
+	 * records the change stamp of each document when it is first handed out
+	 * and checks it every time the document is returned. If the document has
+	 * been modified the modification is logged as severe, the entry is
+	 * discarded and the request is given the document reloaded from its
+	 * source. The change stamp covers every document in the same XMLBeans
+	 * synchronization domain, so copies that are to be modified must be made
+	 * with this method, which gives the copy a domain of its own, rather than
+	 * with <code>XmlObject.copy()</code>.
+	 * 
+	 * @param key		The key the identifies some XML
+	 * @return			A copy of the XML identified by the given key
+	 * @throws XmlCacheException	If no XML is found
+	 */
+	
+	public XmlObject getXmlCopy(String key) throws XmlCacheException {
+		// A copy in the same synchronization domain would share its change stamp
+		return getXml(key).copy(new XmlOptions().setCopyUseNewSynchronizationDomain(true));
+	}
+	
+	/**
+	 * Check that the shared XML of an entry has not been modified by a
+	 * caller since it was first handed out
+	 * 
+	 * The first check of a document records its change stamp. XML that is
+	 * parsed afresh for each request is not shared and is not checked.
+	 * 
+	 * @param key	The key to identify the XML
+	 * @param entry	The cache entry
+	 * @param xml	The XML about to be returned
+	 * @return		False if the XML has been modified, in which case the
+	 * entry is discarded and the XML must not be returned
+	 */
+	
+	private boolean checkUnmodified(String key, XmlCacheEntry entry, XmlObject xml) {
+		XmlCursor.ChangeStamp stamp;
+		synchronized (entry) {
+			if (entry.xml != xml)
+				return true;
+			if (entry.stamped != xml) {
+				XmlCursor cursor = xml.newCursor();
+				entry.stamp = cursor.getDocChangeStamp();
+				entry.stamped = xml;
+				cursor.dispose();
+				return true;
+			}
+			stamp = entry.stamp;
+		}
+		if (stamp.hasChanged()) {
+			logger.severe("Cached XML for key '" + key + "' has been modified by a caller and is reloaded."
+					+ " Cached XML is read-only");
+			invalidateLocally(key);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Reload an expired entry in the background, unless a reload of the
+	 * entry is already under way
+	 * 
+	 * @param key	The key to identify the XML
+	 * @param entry	The expired entry
+	 */
+	
+	private void refresh(final String key, final XmlCacheEntry entry) {
+		synchronized (entry) {
+			if (entry.refreshing)
+				return;
+			entry.refreshing = true;
+		}
+		getReloadExecutor().execute(new Runnable() {
+			public void run() {
+				revalidate(key, entry);
+			}
+		});
+	}
+	
+	/**
+	 * Create a cache entry for XML loaded from a source
+	 * 
+	 * With off-heap storage the XML is copied into the off-heap store and is
+	 * only kept live if cold entry tracking is on.
+	 * 
+	 * @param xml		The XML
+	 * @param timestamp	The time the XML was loaded from its source
+	 * @return			The cache entry
+	 */
+	
+	private XmlCacheEntry createEntry(XmlObject xml, long timestamp) {
+		return createEntry(xml, null, null, timestamp);
+	}
+	
+	/**
+	 * Create a cache entry for XML loaded from a source, whose content may
+	 * already have been hashed
+	 * 
+	 * @param xml		The XML
+	 * @param data		The bytes that were hashed or null to serialize the
+	 * XML to hash it
+	 * @param hash		The hash of the bytes or null
+	 * @param timestamp	The time the XML was loaded from its source
+	 * @return			The cache entry
+	 */
+	
+	private XmlCacheEntry createEntry(XmlObject xml, byte[] data, String hash, long timestamp) {
+		if (dedup && hash == null) {
+			try {
+				data = XmlCacheSerializer.toBytes(xml);
+				hash = hash(data);
+				XmlCacheEntry entry = share(hash, timestamp);
+				if (entry != null)
+					return entry;
+			} catch (IOException e) {
+				logger.warning("Unable to serialize entry for hashing: " + e.getLocalizedMessage());
+			}
+		}
+		
+		XmlCacheEntry entry = null;
+		XmlCacheOffHeapStore store = offHeapStore;
+		if (store != null) {
+			try {
+				XmlCachePayload slot = store.allocate(data != null ? data : XmlCacheSerializer.toBytes(xml));
+				if (slot != null) {
+					entry = new XmlCacheEntry(coldThreshold > 0 ? xml : null, slot, timestamp);
+				} else {
+					logger.fine("Off-heap store is full, holding entry on the heap");
+				}
+			} catch (IOException e) {
+				logger.warning("Unable to serialize entry for off-heap storage: " + e.getLocalizedMessage());
+			}
+		}
+		if (entry == null) {
+			entry = new XmlCacheEntry(xml, timestamp);
+		}
+		if (hash != null) {
+			// Already serialized or read to hash it
+			entry.weight = data.length;
+			addSharedContent(hash, entry);
+		}
+		return entry;
+	}
+	
+	/**
+	 * Create a cache entry for XML read from a raw source when identical
+	 * content is shared, hashing the bytes as read so that a document that
+	 * is already cached under another key is neither parsed nor serialized
+	 * 
+	 * @param key		The key of the XML
+	 * @param data		The raw bytes of the XML
+	 * @param origin	A description of the source, for errors
+	 * @param timestamp	The time the XML was loaded from its source
+	 * @return			The cache entry or null if the XML is invalid
+	 */
+	
+	private XmlCacheEntry createSharedEntry(String key, byte[] data, String origin, long timestamp) {
+		String hash = hash(data);
+		XmlCacheEntry entry = share(hash, timestamp);
+		if (entry != null)
+			return entry;
+		
+		if (lazy && !validate) {
+			entry = createLazyEntry(data, origin, timestamp);
+			entry.weight = data.length;
+			addSharedContent(hash, entry);
+			return entry;
+		}
+		XmlObject xml;
+		try {
+			xml = typeAndValidate(key, XmlCacheSerializer.parse(data));
+		} catch (XmlCacheException e) {
+			logger.severe("Unable to parse XML for key '" + key + "' from " + origin + ": " + e.getLocalizedMessage());
+			return null;
+		}
+		return xml == null ? null : createEntry(xml, data, hash, timestamp);
+	}
+	
+	/**
+	 * Record an entry's content as shared under its hash, unless another
+	 * entry has recorded the same content in the meantime
+	 * 
+	 * @param hash	The hash of the content
+	 * @param entry	The entry holding the content
+	 */
+	
+	private void addSharedContent(String hash, XmlCacheEntry entry) {
+		synchronized (sharedContents) {
+			if (!sharedContents.containsKey(hash)) {
+				// Off-heap content is parsed by each entry as it needs it
+				entry.shared = new SharedContent(hash, entry.payload == null ? entry.xml : null, entry.payload,
+						entry.weight);
+				sharedContents.put(hash, entry.shared);
+			}
+		}
+	}
+	
+	/**
+	 * Create an entry that shares the content already cached with a hash
+	 * 
+	 * @param hash		The hash of the serialized content
+	 * @param timestamp	The time the content was loaded from its source
+	 * @return			The entry or null if no content has the hash
+	 */
+	
+	private XmlCacheEntry share(String hash, long timestamp) {
+		synchronized (sharedContents) {
+			SharedContent content = sharedContents.get(hash);
+			if (content == null)
+				return null;
+			content.refs++;
+			XmlCacheEntry entry = new XmlCacheEntry(content.xml, content.payload, timestamp);
+			entry.shared = content;
+			entry.weight = content.weight;
+			logger.finer("sharing content " + hash + " between " + content.refs + " entries");
+			return entry;
+		}
+	}
+	
+	/**
+	 * Drop a reference to shared content, releasing it if it was the last
+	 * 
+	 * @param content	The shared content
+	 */
+	
+	private void unshare(SharedContent content) {
+		synchronized (sharedContents) {
+			if (--content.refs > 0)
+				return;
+			sharedContents.remove(content.hash);
+		}
+		if (content.payload != null) {
+			content.payload.release();
+		}
+	}
+	
+	/**
+	 * @return	The number of distinct documents shared between keys
+	 */
+	
+	public int getSharedContentCount() {
+		synchronized (sharedContents) {
+			return sharedContents.size();
+		}
+	}
+	
+	/**
+	 * Hash serialized XML
+	 * 
+	 * @param data	The serialized XML
+	 * @return		The hex SHA-1 hash of the data
+	 */
+	
+	private static String hash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b: digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+	
+	/**
+	 * Create a lazy cache entry for raw bytes read from a source
+	 * 
+	 * @param data		The raw bytes
+	 * @param origin	A description of the source
+	 * @param timestamp	The time the bytes were read from the source
+	 * @return			The cache entry
+	 */
+	
+	private XmlCacheEntry createLazyEntry(byte[] data, String origin, long timestamp) {
+		XmlCacheOffHeapStore store = offHeapStore;
+		if (store != null) {
+			XmlCachePayload slot = store.allocate(data);
+			if (slot != null) {
+				return new XmlCacheEntry(null, slot, timestamp);
+			}
+			logger.fine("Off-heap store is full, holding entry on the heap");
+		}
+		return new XmlCacheEntry(null, new XmlCacheLazyPayload(data, origin), timestamp);
+	}
+	
+	/**
+	 * Put an entry into the in-memory cache, releasing any entry it replaces
+	 * 
+	 * @param key	The key to identify the XML
+	 * @param entry	The new entry
+	 */
+	
+	private void putEntry(String key, XmlCacheEntry entry) {
+		putEntry(generation, key, entry);
+	}
+	
+	/**
+	 * Put an entry into a generation, releasing any entry it replaces
+	 * 
+	 * @param target	The generation to put the entry into
+	 * @param key		The key to identify the XML
+	 * @param entry		The new entry
+	 */
+	
+	private void putEntry(CacheGeneration target, String key, XmlCacheEntry entry) {
+		putEntry(target, key, entry, null);
+	}
+	
+	/**
+	 * Put an entry into a generation if the key still holds an expected
+	 * entry, releasing the entry it replaces
+	 * 
+	 * @param target	The generation to put the entry into
+	 * @param key		The key to identify the XML
+	 * @param entry		The new entry
+	 * @param expected	The entry the key must still hold, or null to put
+	 * the entry regardless
+	 * @return			True if the entry was put, false if the key no
+	 * longer holds the expected entry
+	 */
+	
+	private boolean putEntry(CacheGeneration target, String key, XmlCacheEntry entry, XmlCacheEntry expected) {
+		if (dedup) {
+			key = key.intern();
+		}
+		if (maxWeight > 0 && entry.weight < 0) {
+			entry.weight = weigh(entry);
+		}
+		XmlObject xml = entry.xml;
+		if (xml != null) {
+			// Indexes are complete before the entry can be seen
+			for (IndexDefinition definition: indexDefinitions.values()) {
+				if (definition.matcher.matches(key)) {
+					long span = XmlCacheTracer.begin();
+					getIndexes(entry).put(definition, definition.build(xml));
+					if (span != 0) {
+						XmlCacheTracer.end("index " + definition.name, span);
+					}
+				}
+			}
+		}
+		XmlCacheEntry replaced;
+		synchronized (target.entries) {
+			if (expected != null && target.entries.get(key) != expected)
+				return false;
+			replaced = target.put(key, entry);
+		}
+		if (replaced != null && replaced != entry) {
+			release(replaced);
+		}
+		if (maxEntries > 0 || maxWeight > 0 || pressureLimit > 0) {
+			target.trim();
+		}
+		return true;
+	}
+	
+	/**
+	 * Shed entries because the heap is under pressure
+	 * 
+	 * Cold entries are compressed first, if cold entry compression is on,
+	 * then the number of entries is limited to the shed fraction fewer than
+	 * are held and the least recently used entries are evicted.
+	 * 
+	 * @return	The number of entries evicted
+	 */
+	
+	public int shed() {
+		if (coldThreshold > 0) {
+			compressColdEntries();
+		}
+		CacheGeneration current = generation;
+		int size = current.entries.size();
+		synchronized (this) {
+			if (pressureCeiling == 0)
+				pressureCeiling = Math.max(size, 1);
+			pressureLimit = Math.max(1, (int) (size * (1 - shedFraction)));
+		}
+		current.trim();
+		int evicted = size - current.entries.size();
+		logger.warning("Shed " + evicted + " entries under memory pressure, limited to " + pressureLimit + " entries");
+		return evicted;
+	}
+	
+	/**
+	 * Raise the limit imposed by {@link #shed()} by one step, removing it
+	 * once the cache may be as large as it was when the pressure started
+	 * 
+	 * @return	True if the cache is still limited
+	 */
+	
+	public synchronized boolean growBack() {
+		if (pressureLimit == 0)
+			return false;
+		int next = (int) Math.ceil(pressureLimit / (1 - shedFraction)) + 1;
+		if (next >= pressureCeiling) {
+			pressureLimit = 0;
+			pressureCeiling = 0;
+			logger.info("Memory pressure relieved, the cache is no longer limited");
+			return false;
+		}
+		pressureLimit = next;
+		logger.info("Memory pressure relieved, the cache is limited to " + next + " entries");
+		return true;
+	}
+	
+	/**
+	 * @return	The limit on the number of entries imposed under memory
+	 * pressure, or 0 for none
+	 */
+	
+	public int getPressureLimit() {
+		return pressureLimit;
+	}
+	
+	/**
+	 * Weigh an entry by the size of its serialized form
+	 * 
+	 * Entries held in serialized form are weighed by the size of that. Live
+	 * XML is only serialized to weigh it when its source could not give its
+	 * size (see {@link XmlCacheSizeSource}).
+	 * 
+	 * @param entry	The entry
+	 * @return		The weight of the entry in bytes
+	 */
+	
+	private long weigh(XmlCacheEntry entry) {
+		synchronized (entry) {
+			if (entry.payload != null)
+				return entry.payload.size();
+		}
+		try {
+			return serialize(entry).length;
+		} catch (Exception e) {
+			logger.fine("Unable to weigh entry: " + e.getLocalizedMessage());
+			return 0;
+		}
+	}
+	
+	/**
+	 * Release any storage held outside of the live XmlObject by an entry
+	 * 
+	 * @param entry	The entry that is no longer in the cache
+	 */
+	
+	private void release(XmlCacheEntry entry) {
+		SharedContent shared;
+		synchronized (entry) {
+			shared = entry.shared;
+			entry.shared = null;
+			if (entry.payload != null) {
+				// Shared payloads are released with the last reference
+				if (shared == null || entry.payload != shared.payload)
+					entry.payload.release();
+				entry.payload = null;
+			}
+		}
+		if (shared != null) {
+			unshare(shared);
+		}
+	}
+	
+	/**
+	 * Get the live XML for an entry, parsing its payload if it is not live
+	 * 
+	 * The payload is parsed outside of the entry lock so that a long parse
+	 * does not hold up eviction, which locks the entry whilst holding the
+	 * cache lock. Lazy payloads guarantee that they are parsed only once.
+	 * 
+	 * @param entry	The cache entry
+	 * @return		The XML held by the entry
+	 * @throws XmlCacheException	If the payload cannot be parsed
+	 */
+	
+	private XmlObject resolve(XmlCacheEntry entry) throws XmlCacheException {
+		entry.lastAccess = currentTimeMillis();
+		XmlObject xml = entry.xml;
+		if (xml != null)
+			return xml;
+		
+		XmlCachePayload payload;
+		synchronized (entry) {
+			if (entry.xml != null)
+				return entry.xml;
+			payload = entry.payload;
+			if (payload == null)
+				throw new XmlCacheException("Entry has been released");
+		}
+		
+		long s = System.currentTimeMillis();
+		long span = XmlCacheTracer.begin();
+		xml = type(payload.parse());
+		XmlCacheTracer.end("parse", span);
+		long time = System.currentTimeMillis() - s;
+		
+		synchronized (entry) {
+			if (entry.xml != null)
+				return entry.xml;
+			if (entry.payload == payload && (coldThreshold > 0 || !(payload instanceof XmlCacheOffHeapStore.Slot))) {
+				// Held live until the cold sweep drops it again. Without a
+				// sweep off-heap entries are parsed for each request instead,
+				// so that they are not held both on and off the heap
+				entry.xml = xml;
+				if (!payload.keepAfterParse()) {
+					// The serialized form is no longer needed, unless other
+					// entries share it, in which case it goes with the last
+					entry.payload = null;
+					if (entry.shared == null || entry.shared.payload != payload)
+						payload.release();
+				}
+			}
+		}
+		
+		if (statisticsIsOn) {
+			if (payload instanceof XmlCacheLazyPayload) {
+				// Only the thread that installed the XML counts the parse,
+				// not those that waited for it
+				synchronized (statsSynchObject) {
+					lazyParseTotal++;
+				}
+			} else {
+				updateInflateStatistics(time);
+			}
+		}
+		return xml;
+	}
+	
+	/**
+	 * Get the serialized form of an entry
+	 * 
+	 * The entry is only locked to read its fields, so that serializing a
+	 * large document does not hold up other requests for it. A payload
+	 * that is released meanwhile fails to read rather than give bad data.
+	 * 
+	 * @param entry	The cache entry
+	 * @return		The serialized XML
+	 * @throws IOException	If the entry cannot be serialized
+	 */
+	
+	private byte[] serialize(XmlCacheEntry entry) throws IOException {
+		XmlObject xml;
+		XmlCachePayload payload;
+		synchronized (entry) {
+			xml = entry.xml;
+			payload = entry.payload;
+		}
+		if (payload == null) {
+			if (xml == null)
+				throw new IOException("Entry has been released");
+			return XmlCacheSerializer.toBytes(xml);
+		}
+		try {
+			return payload.getBytes();
+		} catch (XmlCacheException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Compress every entry that has not been accessed within the cold
+	 * threshold
+	 * 
+	 * @return	The number of entries that were compressed
+	 */
+	
+	public int compressColdEntries() {
+		long cutoff = currentTimeMillis() - coldThreshold;
+		List <XmlCacheEntry> entries;
+		Map <String, XmlCacheEntry> current = generation.entries;
+		synchronized (current) {
+			entries = new ArrayList <XmlCacheEntry> (current.values());
+		}
+		
+		int compressed = 0;
+		for (XmlCacheEntry entry: entries) {
+			XmlObject xml;
+			synchronized (entry) {
+				xml = entry.xml;
+				if (xml == null || entry.lastAccess >= cutoff)
+					continue;
+				if (entry.shared != null && entry.payload == null)
+					continue;
+				if (entry.payload != null) {
+					// Already held off-heap so the live XML can just be dropped
+					entry.xml = null;
+					entry.fragments = null;
+					entry.indexes = null;
+					compressed++;
+					continue;
+				}
+			}
+			
+			// Serialized and compressed outside of the entry lock, and only
+			// installed if the entry has not been used or changed meanwhile
+			XmlCachePayload payload;
+			try {
+				payload = new XmlCacheCompressedPayload(XmlCacheSerializer.toBytes(xml));
+			} catch (IOException e) {
+				logger.warning("Unable to compress cold entry: " + e.getLocalizedMessage());
+				continue;
+			}
+			synchronized (entry) {
+				if (entry.xml == xml && entry.payload == null && entry.shared == null
+						&& entry.lastAccess < cutoff) {
+					entry.payload = payload;
+					entry.xml = null;
+					entry.fragments = null;
+					entry.indexes = null;
+					compressed++;
+				}
+			}
+		}
+		
+		if (compressed > 0) {
+			logger.fine("compressed " + compressed + " cold entries");
+			synchronized (statsSynchObject) {
+				compressTotal += compressed;
+			}
+		}
+		return compressed;
+	}
+	
+	/**
+	 * Write a snapshot of the unexpired cache entries to the snapshot file
+	 * 
+	 * @return	The number of entries written, or -1 if snapshots are off or
+	 * the snapshot could not be written
+	 */
+	
+	public int writeSnapshot() {
+		if (snapshotFile == null)
+			return -1;
+		
+		List <XmlCacheSnapshot.Record> records = getSerializedEntries();
+		try {
+			XmlCacheSnapshot.write(snapshotFile, records);
+			logger.info("Wrote snapshot of " + records.size() + " entries to " + snapshotFile);
+			return records.size();
+		} catch (IOException e) {
+			logger.severe("Unable to write snapshot to " + snapshotFile + ": " + e.getLocalizedMessage());
+			return -1;
+		}
+	}
+	
+	/**
+	 * Publish the unexpired cache entries to the shared segment file
+	 * 
+	 * @return	The number of entries published, or -1 if publishing is off or
+	 * the segment could not be written
+	 */
+	
+	public int publishSharedSegment() {
+		if (sharedFile == null)
+			return -1;
+		
+		List <XmlCacheSnapshot.Record> records = getSerializedEntries();
+		try {
+			XmlCacheSharedSegment.write(sharedFile, records);
+			logger.info("Published " + records.size() + " entries to shared segment " + sharedFile);
+			return records.size();
+		} catch (IOException e) {
+			logger.severe("Unable to publish shared segment to " + sharedFile + ": " + e.getLocalizedMessage());
+			return -1;
+		}
+	}
+	
+	/**
+	 * Serialize the unexpired cache entries
+	 * 
+	 * @return	The key, version, deadline and serialized XML of each entry
+	 */
+	
+	private List <XmlCacheSnapshot.Record> getSerializedEntries() {
+		List <Map.Entry <String, XmlCacheEntry>> entries;
+		Map <String, XmlCacheEntry> current = generation.entries;
+		synchronized (current) {
+			entries = new ArrayList <Map.Entry <String, XmlCacheEntry>> (current.entrySet());
+		}
+		
+		long now = currentTimeMillis();
+		List <XmlCacheSnapshot.Record> records = new ArrayList <XmlCacheSnapshot.Record> (entries.size());
+		for (Map.Entry <String, XmlCacheEntry> e: entries) {
+			XmlCacheEntry entry = e.getValue();
+			if (entry.deadline < now)
+				continue;
+			try {
+				records.add(new XmlCacheSnapshot.Record(e.getKey(), entry.timestamp, entry.deadline, serialize(entry)));
+			} catch (IOException ex) {
+				logger.fine("Skipping key '" + e.getKey() + "': " + ex.getLocalizedMessage());
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Restore the cache from the snapshot file, if there is one
+	 * 
+	 * Entries are deserialized in parallel and this method returns once they
+	 * are all in the cache. Revalidation against the sources carries on in
+	 * the background.
+	 * 
+	 * @return	The number of entries restored
+	 */
+	
+	protected int restoreSnapshot() {
+		if (snapshotFile == null || !XmlCacheSnapshot.exists(snapshotFile))
+			return 0;
+		
+		long s = System.currentTimeMillis();
+		final List <XmlCacheSnapshot.Record> records;
+		try {
+			records = XmlCacheSnapshot.read(snapshotFile);
+		} catch (IOException e) {
+			logger.severe("Unable to read snapshot from " + snapshotFile + ": " + e.getLocalizedMessage());
+			return 0;
+		}
+		
+		int threads = (int) getLongProperty(configuration, CFGKEY_CACHE_SNAPSHOT_THREADS,
+				Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = newExecutor("XmlCacheUtility-restore", Math.max(1, threads));
+		
+		final long now = currentTimeMillis();
+		final Map <String, XmlCacheEntry> restored
+			= Collections.synchronizedMap(new LinkedHashMap <String, XmlCacheEntry> ());
+		List <Callable <Object>> tasks = new ArrayList <Callable <Object>> (records.size());
+		for (final XmlCacheSnapshot.Record record: records) {
+			tasks.add(new Callable <Object> () {
+				public Object call() throws Exception {
+					long loaded = record.getVersion();
+					long deadline = record.getDeadline();
+					if (deadline < now)
+						return null;
+					XmlCacheEntry entry = lazy
+						? createLazyEntry(record.getData(), snapshotFile.getName(), loaded)
+						: createEntry(type(XmlCacheSerializer.parse(record.getData())), loaded);
+					entry.deadline = deadline;
+					putEntry(record.getKey(), entry);
+					restored.put(record.getKey(), entry);
+					return null;
+				}
+			});
+		}
+		
+		try {
+			for (Future <Object> future: executor.invokeAll(tasks)) {
+				try {
+					future.get();
+				} catch (Exception e) {
+					logger.warning("Unable to restore snapshot entry: " + e.getLocalizedMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.info("Restored " + restored.size() + " of " + records.size() + " entries from snapshot "
+				+ snapshotFile + " in " + (System.currentTimeMillis() - s) + "ms");
+		
+		if (Boolean.parseBoolean(configuration.getProperty(CFGKEY_CACHE_SNAPSHOT_REVALIDATE, "true"))) {
+			for (final Map.Entry <String, XmlCacheEntry> e: restored.entrySet()) {
+				executor.submit(new Runnable() {
+					public void run() {
+						revalidate(e.getKey(), e.getValue());
+					}
+				});
+			}
+		}
+		executor.shutdown();
+		return restored.size();
+	}
+	
+	/**
+	 * Reload an entry restored from a snapshot from its source
+	 * 
+	 * The entry is only replaced if it has not already been replaced in the
+	 * meantime. If no source has it any longer an entry that has not yet
+	 * expired is kept until it does, like any other cached entry.
+	 * 
+	 * @param key		The key of the restored entry
+	 * @param restored	The restored entry
+	 */
+	
+	private void revalidate(String key, XmlCacheEntry restored) {
+		CacheGeneration current = generation;
+		XmlCacheEntry fresh = searchXmlSources(current.sources, key);
+		if (fresh != null) {
+			if (!putEntry(current, key, fresh, restored))
+				release(fresh);
+			return;
+		}
+		if (restored.deadline >= currentTimeMillis()) {
+			logger.fine("Restored key '" + key + "' is no longer in any source. Keeping it until it expires");
+			return;
+		}
+		synchronized (current.entries) {
+			if (current.entries.get(key) != restored)
+				return;
+			current.remove(key);
+			logger.fine("Restored key '" + key + "' is no longer in any source");
+		}
+		release(restored);
+	}
+	
+	/**
+	 * Create an executor with daemon threads
+	 * 
+	 * @param name		The prefix of the thread names
+	 * @param threads	The number of threads
+	 * @return			The executor
+	 */
+	
+	protected static ExecutorService newExecutor(final String name, int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Build a new generation in the background from a new source
+	 * configuration
+	 * 
+	 * The cache entries and the sources they are loaded from form a
+	 * generation. A complete new generation, for example for a new release
+	 * of reference data in a new base directory, is built in the background
+	 * and then made current with {@link #swapGeneration()} through a single
+	 * reference update, so a request never sees a mix of old and new
+	 * documents. The L2 store only ever holds entries from the current
+	 * generation.
+	 * 
+	 * The sources are created from the <code>source.*</code> properties of
+	 * the given configuration, exactly as at startup. The new generation is
+	 * loaded with every key that is in the current generation, in memory or
+	 * in the L2 store.
+	 * 
+	 * @param sourceConfiguration	Configuration properties for the sources
+	 * @return	The number of entries loaded into the new generation, once it
+	 * is ready to be swapped in
+	 */
+	
+	public Future <Integer> buildGeneration(Properties sourceConfiguration) {
+		Map <String, XmlCacheEntry> current = generation.entries;
+		List <String> keys;
+		synchronized (current) {
+			keys = new ArrayList <String> (current.keySet());
+		}
+		XmlCacheDiskStore store = l2Store;
+		if (store != null) {
+			Set <String> inMemory = new HashSet <String> (keys);
+			for (String key: store.keys()) {
+				if (!inMemory.contains(key))
+					keys.add(key);
+			}
+		}
+		Map <String, ConfiguredSource> configured = createConfiguredSources(sourceConfiguration);
+		List <XmlCacheSource> sources = new ArrayList <XmlCacheSource> ();
+		for (ConfiguredSource source: configured.values()) {
+			sources.add(source.source);
+		}
+		return buildGeneration(sources, configured, keys);
+	}
+	
+	/**
+	 * Build a new generation in the background
+	 * 
+	 * Once built the generation is pending and is made current by
+	 * {@link #swapGeneration()}. Building another generation before then
+	 * discards the pending one.
+	 * 
+	 * @param sources	The sources for the new generation
+	 * @param keys		The keys to load into the new generation
+	 * @return	The number of entries loaded into the new generation, once it
+	 * is ready to be swapped in
+	 */
+	
+	public Future <Integer> buildGeneration(List <XmlCacheSource> sources, Collection <String> keys) {
+		return buildGeneration(sources, new HashMap <String, ConfiguredSource> (), keys);
+	}
+	
+	private Future <Integer> buildGeneration(final List <XmlCacheSource> sources,
+			final Map <String, ConfiguredSource> configured, final Collection <String> keys) {
+		synchronized (this) {
+			if (generationExecutor == null) {
+				generationExecutor = newExecutor("XmlCacheUtility-generation", 1);
+			}
+		}
+		return generationExecutor.submit(new Callable <Integer> () {
+			public Integer call() {
+				long s = System.currentTimeMillis();
+				CacheGeneration built = new CacheGeneration(nextGenerationId(), sources);
+				built.configured = configured;
+				int loaded = 0;
+				for (String key: keys) {
+					XmlCacheEntry entry = searchXmlSources(sources, key);
+					if (entry != null) {
+						putEntry(built, key, entry);
+						loaded++;
+					} else {
+						logger.warning("Key '" + key + "' was not found whilst building generation " + built.id);
+					}
+				}
+				
+				CacheGeneration discarded;
+				synchronized (XmlCacheUtility.this) {
+					discarded = pendingGeneration;
+					pendingGeneration = built;
+				}
+				if (discarded != null) {
+					discarded.release();
+				}
+				logger.info("Built generation " + built.id + " with " + loaded + " of " + keys.size()
+						+ " entries in " + (System.currentTimeMillis() - s) + "ms");
+				return loaded;
+			}
+		});
+	}
+	
+	/**
+	 * Make the pending generation current
+	 * 
+	 * The current generation is kept for {@link #rollbackGeneration()} and
+	 * any generation kept from an earlier swap is discarded.
+	 * 
+	 * @return	True if there was a pending generation to swap in
+	 */
+	
+	public boolean swapGeneration() {
+		CacheGeneration discarded;
+		l2Fence.writeLock().lock();
+		try {
+			synchronized (this) {
+				if (pendingGeneration == null)
+					return false;
+				if (l2Store != null)
+					l2Store.clear();
+				discarded = previousGeneration;
+				previousGeneration = generation;
+				generation = pendingGeneration;
+				version.incrementAndGet();
+				pendingGeneration = null;
+				logger.info("Swapped in generation " + generation.id + " replacing " + previousGeneration.id);
+			}
+		} finally {
+			l2Fence.writeLock().unlock();
+		}
+		if (discarded != null)
+			discarded.release();
+		return true;
+	}
+	
+	/**
+	 * Reinstate the generation replaced by the last swap, discarding the
+	 * current generation
+	 * 
+	 * @return	True if there was a generation to roll back to
+	 */
+	
+	public boolean rollbackGeneration() {
+		CacheGeneration discarded;
+		l2Fence.writeLock().lock();
+		try {
+			synchronized (this) {
+				if (previousGeneration == null)
+					return false;
+				if (l2Store != null)
+					l2Store.clear();
+				discarded = generation;
+				generation = previousGeneration;
+				version.incrementAndGet();
+				previousGeneration = null;
+				logger.info("Rolled back to generation " + generation.id + " from " + discarded.id);
+			}
+		} finally {
+			l2Fence.writeLock().unlock();
+		}
+		discarded.release();
+		return true;
+	}
+	
+	/**
+	 * @return	The id of the current generation
+	 */
+	
+	public long getGenerationId() {
+		return generation.id;
+	}
+	
+	private synchronized long nextGenerationId() {
+		long id = generation.id;
+		if (previousGeneration != null) id = Math.max(id, previousGeneration.id);
+		if (pendingGeneration != null) id = Math.max(id, pendingGeneration.id);
+		return id + 1;
+	}
+	
+	/**
+	 * Promote an entry from the L2 store back into memory
+	 * 
+	 * The entry is removed from the L2 store. It is only put back into the
+	 * in-memory cache if it has not yet expired.
+	 * 
+	 * @param key	The key to identify the XML
+	 * @return		The promoted entry or null if the key is not in L2
+	 */
+	
+	private XmlCacheEntry promote(String key) {
+		l2Fence.readLock().lock();
+		try {
+			return promoteFenced(key);
+		} finally {
+			l2Fence.readLock().unlock();
+		}
+	}
+	
+	private XmlCacheEntry promoteFenced(String key) {
+		XmlCacheDiskStore.Record record = l2Store.get(key);
+		if (record == null)
+			return null;
+		
+		l2Store.remove(key);
+		if (record.getDeadline() < currentTimeMillis()) {
+			logger.fine("L2 entry for key '" + key + "' has expired");
+			return null;
+		}
+		
+		try {
+			XmlCacheEntry entry = createEntry(type(XmlCacheSerializer.parse(record.getData())), record.getTimestamp());
+			entry.deadline = record.getDeadline();
+			putEntry(key, entry);
+			logger.fine("promoted item with key '" + key + "' from L2");
+			promoteCount.inc();
+			if (statisticsIsOn) {
+				synchronized (statsSynchObject) {
+					l2HitTotal++;
+				}
+			}
+			return entry;
+		} catch (XmlCacheException e) {
+			logger.warning("Unable to promote key '" + key + "' from L2: " + e.getLocalizedMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Called when an entry is evicted from the in-memory cache
+	 * 
+	 * The entry is demoted to the L2 store if it is enabled and the entry has
+	 * not yet expired.
+	 * 
+	 * @param key	The key of the evicted entry
+	 * @param entry	The evicted entry
+	 */
+	
+	protected void evicted(String key, XmlCacheEntry entry) {
+		logger.finer("evicted item with key: " + key);
+		evictionCount.inc();
+		if (l2Store != null && entry.deadline >= currentTimeMillis()) {
+			try {
+				l2Store.put(key, entry.timestamp, entry.deadline, serialize(entry));
+				logger.finer("demoted item with key '" + key + "' to L2");
+			} catch (IOException e) {
+				logger.warning("Unable to demote key '" + key + "' to L2: " + e.getLocalizedMessage());
+			}
+		}
+		release(entry);
+	}
+	
+	public static long getLongProperty(Properties properties, String key, long defaultValue) {
+		String s = properties.getProperty(key);
+		if (s != null) {
+			try {
+				return Long.parseLong(s);
+			} catch (NumberFormatException e) {
+				logger.warning("Property '" + key + "' is not a valid long.");
+			}
+		}
+		return defaultValue;
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////
+	// Statistics Methods
+	///////////////////////////////////////////////////////////////////////////
+	
+	private void updateHitStatistics (String key, long time) {
+		XmlCacheHeavyHitters requests = topRequests;
+		if (requests != null) {
+			requests.add(key, 1);
+		}
+		String statistics = null;
+		synchronized (statsSynchObject) {
+			hitAvgTime = ((hitAvgTime * hitTotal) + time) / (hitTotal + 1);
+			hitTotal++;
+			if (time < hitMinTime) hitMinTime = time;
+			if (time > hitMaxTime) hitMaxTime = time;
+			if (statsLogger.isLoggable(Level.INFO))
+				statistics = getStatisticsString();
+		}
+		if (statistics != null)
+			statsLogger.info(statistics);
+	}
+	
+	private void updateMissStatistics (String key, long time) {
+		XmlCacheHeavyHitters requests = topRequests;
+		XmlCacheHeavyHitters misses = topMisses;
+		XmlCacheHeavyHitters loadTimes = topLoadTimes;
+		if (requests != null && misses != null && loadTimes != null) {
+			requests.add(key, 1);
+			misses.add(key, 1);
+			loadTimes.add(key, time);
+		}
+		String statistics = null;
+		synchronized (statsSynchObject) {
+			missAvgTime = ((missAvgTime * missTotal) + time) / (missTotal + 1);
+			missTotal++;
+			if (time < missMinTime) missMinTime = time;
+			if (time > missMaxTime) missMaxTime = time;
+			if (statsLogger.isLoggable(Level.INFO))
+				statistics = getStatisticsString();
+		}
+		if (statistics != null)
+			statsLogger.info(statistics);
+	}	
+	
+	private void updateInflateStatistics (long time) {
+		synchronized (statsSynchObject) {
+			inflateAvgTime = ((inflateAvgTime * inflateTotal) + time) / (inflateTotal + 1);
+			if (inflateTotal == 0 || time < inflateMinTime) inflateMinTime = time;
+			if (time > inflateMaxTime) inflateMaxTime = time;
+			inflateTotal++;
+		}
+	}
+	
+	public int getCacheSize() {
+		return generation.entries.size();
+	}
+	
+	/**
+	 * @return	The total weight in bytes of the in-memory entries, only
+	 * tracked when a weight limit is set
+	 */
+	
+	public long getCacheWeight() {
+		CacheGeneration current = generation;
+		synchronized (current.entries) {
+			return current.weight;
+		}
+	}
+	
+	public int getL2Size() {
+		return l2Store == null ? 0 : l2Store.size();
+	}
+	
+	public long getL2HitTotal() {
+		return l2HitTotal;
+	}
+	
+	public long getOffHeapReserved() {
+		XmlCacheOffHeapStore store = offHeapStore;
+		return store == null ? 0 : store.getReserved();
+	}
+	
+	public long getOffHeapUsed() {
+		XmlCacheOffHeapStore store = offHeapStore;
+		return store == null ? 0 : store.getUsed();
+	}
+	
+	public int getColdEntryCount() {
+		int cold = 0;
+		Map <String, XmlCacheEntry> current = generation.entries;
+		synchronized (current) {
+			for (XmlCacheEntry entry: current.values()) {
+				if (entry.xml == null) cold++;
+			}
 		}
-	}	
+		return cold;
+	}
 	
-	public int getCacheSize() {
-		return xmlCache.size();
+	public long getLazyParseTotal() {
+		return lazyParseTotal;
+	}
+	
+	public long getCompressTotal() {
+		return compressTotal;
+	}
+	
+	public long getInflateTotal() {
+		return inflateTotal;
+	}
+	
+	public long getInflateMinTime() {
+		return inflateMinTime;
+	}
+	
+	public long getInflateMaxTime() {
+		return inflateMaxTime;
+	}
+	
+	public long getInflateAvgTime() {
+		return inflateAvgTime;
 	}
 	
 	public long getHitTotal() {
@@ -419,6 +3446,161 @@ public class XmlCacheUtility {
 		missMinTime		= 0;
 		missMaxTime		= 0;
 		missAvgTime		= 0;
+		l2HitTotal		= 0;
+		inflateTotal	= 0;
+		inflateMinTime	= 0;
+		inflateMaxTime	= 0;
+		inflateAvgTime	= 0;
+		compressTotal	= 0;
+		lazyParseTotal	= 0;
+		for (XmlCacheHeavyHitters hitters: new XmlCacheHeavyHitters[] {topRequests, topMisses, topLoadTimes}) {
+			if (hitters != null) hitters.reset();
+		}
+		XmlCacheTracer current = tracer;
+		if (current != null) current.reset();
+	}
+	
+	/**
+	 * @return	The keys with the most requests, most first, or an empty list
+	 * if per-key tracking is off
+	 */
+	
+	public List <XmlCacheHeavyHitters.Count> getTopRequestedKeys() {
+		return getTop(topRequests);
+	}
+	
+	/**
+	 * @return	The keys with the most misses, most first, or an empty list
+	 * if per-key tracking is off
+	 */
+	
+	public List <XmlCacheHeavyHitters.Count> getTopMissedKeys() {
+		return getTop(topMisses);
+	}
+	
+	/**
+	 * @return	The keys with the most total milliseconds spent on misses,
+	 * most first, or an empty list if per-key tracking is off
+	 */
+	
+	public List <XmlCacheHeavyHitters.Count> getTopLoadTimeKeys() {
+		return getTop(topLoadTimes);
+	}
+	
+	private List <XmlCacheHeavyHitters.Count> getTop(XmlCacheHeavyHitters hitters) {
+		if (hitters == null)
+			return Collections.emptyList();
+		return hitters.getTop();
+	}
+	
+	/**
+	 * @return	The per-phase histograms of the traced calls, or an empty
+	 * string if tracing is off
+	 */
+	
+	public String getTraceHistogramString() {
+		XmlCacheTracer current = tracer;
+		return current == null ? "" : current.getHistogramString();
+	}
+	
+	/**
+	 * @return	The most recent traced calls, oldest first, or an empty list
+	 * if tracing is off
+	 */
+	
+	public List <String> getRecentTraces() {
+		XmlCacheTracer current = tracer;
+		if (current == null)
+			return Collections.emptyList();
+		return current.getRecentTraces();
+	}
+	
+	/**
+	 * @return	The tracer of sampled calls, or null if tracing is off
+	 */
+	
+	public XmlCacheTracer getTracer() {
+		return tracer;
+	}
+	
+	/**
+	 * Get the metrics of this instance and of its regions, creating the
+	 * registry on first use
+	 * 
+	 * @return	The metrics registry
+	 */
+	
+	public synchronized XmlCacheMetrics getMetrics() {
+		if (metrics == null) {
+			metrics = new XmlCacheMetrics();
+			metrics.register(new XmlCacheMetrics.Collector() {
+				public void collect(XmlCacheMetrics.Sink sink) {
+					collectMetrics(sink, "default");
+					Map <String, XmlCacheUtility> current;
+					synchronized (XmlCacheUtility.this) {
+						current = new TreeMap <String, XmlCacheUtility> (regions);
+					}
+					for (Map.Entry <String, XmlCacheUtility> region: current.entrySet()) {
+						region.getValue().collectMetrics(sink, region.getKey());
+					}
+				}
+			});
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Report the metrics of this instance
+	 * 
+	 * @param sink		Receives the samples
+	 * @param region	The value of the region label
+	 */
+	
+	public void collectMetrics(XmlCacheMetrics.Sink sink, String region) {
+		StringBuilder labels = new StringBuilder();
+		XmlCacheMetrics.label(labels, "region", region);
+		String base = labels.toString();
+		
+		String requests = "Calls to getXml by result";
+		sink.counter("xmlcache_requests_total", requests, base + ",result=\"hit\"", hitCount.get());
+		sink.counter("xmlcache_requests_total", requests, base + ",result=\"miss\"", missCount.get());
+		sink.counter("xmlcache_requests_total", requests, base + ",result=\"not_found\"", notFoundCount.get());
+		sink.sample("xmlcache_load_seconds_total", "Time spent loading missed keys from the sources", "counter",
+				base, loadMillis.get() / 1000.0);
+		sink.counter("xmlcache_l2_promotions_total", "Entries promoted from the L2 store", base, promoteCount.get());
+		sink.counter("xmlcache_evictions_total", "Entries evicted from memory", base, evictionCount.get());
+		sink.gauge("xmlcache_entries", "Entries held in memory", base, getCacheSize());
+		sink.gauge("xmlcache_weight_bytes", "Weight of the entries held in memory", base, getCacheWeight());
+		sink.gauge("xmlcache_l2_entries", "Entries held in the L2 store", base, getL2Size());
+		sink.gauge("xmlcache_offheap_reserved_bytes", "Off-heap memory reserved", base, getOffHeapReserved());
+		sink.gauge("xmlcache_offheap_used_bytes", "Off-heap memory used", base, getOffHeapUsed());
+		sink.gauge("xmlcache_shared_contents", "Distinct documents shared between keys", base, getSharedContentCount());
+		sink.gauge("xmlcache_pressure_limit_entries", "Entry limit imposed by memory pressure, 0 for none", base,
+				getPressureLimit());
+		sink.gauge("xmlcache_generation", "Identifier of the current cache generation", base, getGenerationId());
+	}
+	
+	/**
+	 * @return	The publisher of the metrics, or null if they are not published
+	 */
+	
+	public XmlCacheMetricsExporter getMetricsExporter() {
+		return metricsExporter;
+	}
+	
+	/**
+	 * @return	The recorder of the requested keys, or null if they are not
+	 * recorded
+	 */
+	
+	public XmlCacheAccessRecorder getAccessRecorder() {
+		return recorder;
+	}
+	
+	public String getTopKeysString() {
+		return "TOP-KEYS REQUESTS=" + getTopRequestedKeys()
+			+ " | MISSES=" + getTopMissedKeys()
+			+ " | LOAD-TIME=" + getTopLoadTimeKeys();
 	}
 	
 	public String getStatisticsString() {
@@ -442,6 +3624,49 @@ public class XmlCacheUtility {
 	///////////////////////////////////////////////////////////////////////////
 	
 	protected void createXmlSources() {
+		CacheGeneration current = generation;
+		for (Map.Entry <String, ConfiguredSource> e: createConfiguredSources(configuration).entrySet()) {
+			current.configured.put(e.getKey(), e.getValue());
+			addXmlCacheSource(e.getValue().source);
+		}
+	}
+	
+	/**
+	 * Create the XML sources described by the <code>source.*</code>
+	 * properties of a configuration
+	 * 
+	 * @param configuration	The configuration properties
+	 * @return				The configured sources
+	 */
+	
+	protected List <XmlCacheSource> createXmlSources(Properties configuration) {
+		List <XmlCacheSource> sources = new ArrayList <XmlCacheSource> ();
+		for (ConfiguredSource configured: createConfiguredSources(configuration).values()) {
+			sources.add(configured.source);
+		}
+		return sources;
+	}
+	
+	private Map <String, ConfiguredSource> createConfiguredSources(Properties configuration) {
+		Map <String, ConfiguredSource> sources = new LinkedHashMap <String, ConfiguredSource> ();
+		for (String sourceKey: getSourceKeys(configuration)) {
+			XmlCacheSource source = createXmlSource(configuration, sourceKey);
+			if (source != null) {
+				sources.put(sourceKey, new ConfiguredSource(source,
+						getSettings(configuration, "source." + sourceKey + ".")));
+			}
+		}
+		return sources;
+	}
+	
+	/**
+	 * Get the names of the sources in a configuration
+	 * 
+	 * @param configuration	The configuration properties
+	 * @return				The source names
+	 */
+	
+	private static List <String> getSourceKeys(Properties configuration) {
 		ArrayList <String> sourceKeys = new ArrayList <String> ();
 		for (Object o: configuration.keySet()) {
 			String propKey = (String) o;
@@ -451,29 +3676,37 @@ public class XmlCacheUtility {
 					sourceKeys.add(sourceKey);
 			}
 		}
+		return sourceKeys;
+	}
+	
+	/**
+	 * Create a source from its <code>source.<i>name</i>.*</code> properties
+	 * 
+	 * @param configuration	The configuration properties
+	 * @param sourceKey		The name of the source
+	 * @return				The source or null if it cannot be created
+	 */
+	
+	private XmlCacheSource createXmlSource(Properties configuration, String sourceKey) {
+		String name = configuration.getProperty("source." + sourceKey + ".class");
 		
-		for (String sourceKey: sourceKeys) {
-			if (configuration.containsKey("source." + sourceKey + ".class")) {
-				String name = configuration.getProperty("source." + sourceKey + ".class");
-				
-				if (name == null)
-					continue;
-				
-				try {
-					// Use the magic of reflection to load the class
-					Class clazz = this.getClass().getClassLoader().loadClass(name);
-					Constructor cstr = clazz.getConstructor(new Class[0]);
-					XmlCacheSource source = (XmlCacheSource) cstr.newInstance(new Object[0]);
-					
-					// Get the source to configure itself! 
-					source.configure(configuration, "source." + sourceKey);
-					
-					addXmlCacheSource(source);
-				} catch (Exception e) {
-					logger.severe("Unable to create cache source: " + sourceKey);
-					e.printStackTrace();
-				}
-			}
+		if (name == null)
+			return null;
+		
+		try {
+			// Use the magic of reflection to load the class
+			Class clazz = this.getClass().getClassLoader().loadClass(name);
+			Constructor cstr = clazz.getConstructor(new Class[0]);
+			XmlCacheSource source = (XmlCacheSource) cstr.newInstance(new Object[0]);
+			
+			// Get the source to configure itself! 
+			source.configure(configuration, "source." + sourceKey);
+			
+			return source;
+		} catch (Exception e) {
+			logger.severe("Unable to create cache source: " + sourceKey);
+			e.printStackTrace();
+			return null;
 		}
 	}
 	
@@ -481,18 +3714,445 @@ public class XmlCacheUtility {
 	// Inner Classes
 	///////////////////////////////////////////////////////////////////////////
 	
+	/**
+	 * A generation of the cache: its entries and the sources they are loaded
+	 * from
+	 */
+	
+	protected class CacheGeneration {
+		
+		private long id;
+		
+		/**
+		 * Entries are held in an access-ordered Map so that the least
+		 * recently used entry can be evicted. Synchronised for thread-safety.
+		 * Evictions are made by {@link #trim()}, which demotes evicted
+		 * entries to L2 after releasing the lock
+		 */
+		private Map <String, XmlCacheEntry> entries
+			= Collections.synchronizedMap(new LinkedHashMap <String, XmlCacheEntry> (16, 0.75f, true));
+		
+		/** XML Sources, replaced as a whole when reconciled with the configuration **/
+		private volatile List <XmlCacheSource> sources;
+		
+		/** Sources created from the configuration, by name **/
+		private Map <String, ConfiguredSource> configured = new HashMap <String, ConfiguredSource> ();
+		
+		/** Total weight of the entries, guarded by the entries lock **/
+		private long weight = 0;
+		
+		/**
+		 * Number of entries holding each shared content, so that the content
+		 * is weighed once however many keys share it. Guarded by the entries
+		 * lock
+		 */
+		private Map <SharedContent, Integer> sharedHolders = new IdentityHashMap <SharedContent, Integer> ();
+	
+		/**
+		 * Entries trimmed from the generation that have yet to be demoted to
+		 * L2, by key. An invalidation removes the key so that the demotion is
+		 * cancelled. Guarded by the entries lock
+		 */
+		private Map <String, XmlCacheEntry> demoting = new HashMap <String, XmlCacheEntry> ();
+	
+		private CacheGeneration(long id, List <XmlCacheSource> sources) {
+			this.id = id;
+			this.sources = new CopyOnWriteArrayList <XmlCacheSource> (sources);
+		}
+		
+		private XmlCacheEntry put(String key, XmlCacheEntry entry) {
+			synchronized (entries) {
+				XmlCacheEntry replaced = entries.put(key, entry);
+				weigh(entry);
+				if (replaced != null) {
+					unweigh(replaced);
+					replaced.retired = true;
+				}
+				return replaced;
+			}
+		}
+		
+		private XmlCacheEntry remove(String key) {
+			synchronized (entries) {
+				XmlCacheEntry removed = entries.remove(key);
+				demoting.remove(key);
+				if (removed != null) {
+					unweigh(removed);
+					removed.retired = true;
+				}
+				return removed;
+			}
+		}
+		
+		private void weigh(XmlCacheEntry entry) {
+			SharedContent shared = entry.shared;
+			if (shared != null) {
+				Integer holders = sharedHolders.get(shared);
+				sharedHolders.put(shared, holders == null ? 1 : holders + 1);
+				if (holders != null)
+					return;
+			}
+			weight += Math.max(entry.weight, 0);
+		}
+		
+		private void unweigh(XmlCacheEntry entry) {
+			SharedContent shared = entry.shared;
+			if (shared != null) {
+				Integer holders = sharedHolders.remove(shared);
+				if (holders != null && holders > 1) {
+					sharedHolders.put(shared, holders - 1);
+					return;
+				}
+			}
+			weight -= Math.max(entry.weight, 0);
+		}
+		
+		/**
+		 * Evict least recently used entries until the generation is within
+		 * the entry, weight and memory pressure limits, always keeping the
+		 * most recently used entry
+		 */
+		
+		private void trim() {
+			Map <String, XmlCacheEntry> trimmed = new LinkedHashMap <String, XmlCacheEntry> ();
+			synchronized (entries) {
+				Iterator <Map.Entry <String, XmlCacheEntry>> i = entries.entrySet().iterator();
+				while (((maxWeight > 0 && weight > maxWeight) || (maxEntries > 0 && entries.size() > maxEntries)
+						|| (pressureLimit > 0 && entries.size() > pressureLimit))
+						&& entries.size() > 1 && i.hasNext()) {
+					Map.Entry <String, XmlCacheEntry> eldest = i.next();
+					trimmed.put(eldest.getKey(), eldest.getValue());
+					i.remove();
+					unweigh(eldest.getValue());
+					eldest.getValue().retired = true;
+					demoting.put(eldest.getKey(), eldest.getValue());
+				}
+			}
+			for (Map.Entry <String, XmlCacheEntry> e: trimmed.entrySet()) {
+				evict(e.getKey(), e.getValue());
+			}
+		}
+	
+		private void evict(String key, XmlCacheEntry entry) {
+			// Only the current generation demotes to L2, and only entries that
+			// have not been invalidated since they were trimmed
+			l2Fence.readLock().lock();
+			try {
+				boolean demote;
+				synchronized (entries) {
+					demote = demoting.get(key) == entry;
+					if (demote)
+						demoting.remove(key);
+				}
+				if (demote && generation == this) {
+					evicted(key, entry);
+					return;
+				}
+			} finally {
+				l2Fence.readLock().unlock();
+			}
+			XmlCacheUtility.this.release(entry);
+		}
+		
+		/**
+		 * Release every entry in a generation that has been discarded
+		 */
+		
+		private void release() {
+			List <XmlCacheEntry> discarded;
+			synchronized (entries) {
+				discarded = new ArrayList <XmlCacheEntry> (entries.values());
+				entries.clear();
+				weight = 0;
+				sharedHolders.clear();
+				demoting.clear();
+			}
+			for (XmlCacheEntry entry: discarded) {
+				XmlCacheUtility.this.release(entry);
+			}
+		}
+	}
+	
+	/**
+	 * A per-thread cache, with the version of the cache it was last emptied
+	 * at
+	 */
+	
+	private class LocalCache extends LinkedHashMap <String, L0Entry> {
+		
+		private static final long serialVersionUID = -2380254312733405712L;
+		
+		private long version = XmlCacheUtility.this.version.get();
+		
+		/** Number of hits, for sampling **/
+		private int hits = 0;
+		
+		private LocalCache() {
+			super(16, 0.75f, true);
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry <String, L0Entry> eldest) {
+			return size() > l0Size;
+		}
+	}
+	
+	/**
+	 * A map that keeps its most recently used entries up to a limit
+	 */
+	
+	private static class BoundedMap <K, V> extends LinkedHashMap <K, V> {
+		
+		private static final long serialVersionUID = 4437155311208493614L;
+		
+		private int limit;
+		
+		private BoundedMap(int limit) {
+			super(16, 0.75f, true);
+			this.limit = limit;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry <K, V> eldest) {
+			return size() > limit;
+		}
+	}
+	
+	/**
+	 * An entry in a per-thread cache
+	 */
+	
+	private static class L0Entry {
+		
+		private XmlCacheEntry	entry;
+		private XmlObject		xml;
+		
+		private L0Entry(XmlCacheEntry entry, XmlObject xml) {
+			this.entry = entry;
+			this.xml = xml;
+		}
+	}
+	
+	/**
+	 * A source created from the configuration, with the settings it was
+	 * created from
+	 */
+	
+	private static class ConfiguredSource {
+		
+		private XmlCacheSource	source;
+		private Properties		settings;
+		
+		private ConfiguredSource(XmlCacheSource source, Properties settings) {
+			this.source = source;
+			this.settings = settings;
+		}
+	}
+	
+	/**
+	 * An expiry policy for the keys that start with a prefix or match a
+	 * pattern
+	 */
+	
+	private static class ExpiryPolicy {
+		
+		private KeyMatcher	matcher;
+		private long		ttl;
+		
+		private ExpiryPolicy(KeyMatcher matcher, long ttl) {
+			this.matcher = matcher;
+			this.ttl = ttl;
+		}
+	}
+	
+	/**
+	 * An index over the records of the documents with matching keys
+	 */
+	
+	private static class IndexDefinition {
+		
+		private String		name;
+		private KeyMatcher	matcher;
+		private String		recordPath;
+		private String		keyPath;
+		
+		private IndexDefinition(String name, KeyMatcher matcher, String recordPath, String keyPath) {
+			this.name = name;
+			this.matcher = matcher;
+			this.recordPath = recordPath;
+			this.keyPath = keyPath;
+		}
+		
+		/**
+		 * Build the index over a document
+		 * 
+		 * @param xml	The document
+		 * @return		The first record for each value
+		 */
+		
+		private Map <String, XmlObject> build(XmlObject xml) {
+			Map <String, XmlObject> index = new HashMap <String, XmlObject> ();
+			for (XmlObject record: xml.selectPath(recordPath)) {
+				XmlObject[] values = record.selectPath(keyPath);
+				if (values.length == 0)
+					continue;
+				XmlCursor cursor = values[0].newCursor();
+				String value = cursor.getTextValue();
+				cursor.dispose();
+				if (!index.containsKey(value)) {
+					index.put(value, record);
+				} else {
+					logger.finer("Index '" + name + "' has more than one record for value: " + value);
+				}
+			}
+			return index;
+		}
+	}
+	
+	/**
+	 * A projection of the documents with matching keys
+	 */
+	
+	private static class ProjectionDefinition {
+		
+		private KeyMatcher		matcher;
+		private List <String>	paths;
+		private boolean			query;
+		private List <String>	elementPaths;
+		
+		private ProjectionDefinition(KeyMatcher matcher, List <String> paths, boolean query,
+				List <String> elementPaths) {
+			this.matcher = matcher;
+			this.paths = paths;
+			this.query = query;
+			this.elementPaths = elementPaths;
+		}
+		
+		/**
+		 * Apply the projection to a document
+		 * 
+		 * @param xml	The document
+		 * @return		A new document with the same root element, namespace
+		 * declarations and attributes holding copies of the selected nodes
+		 */
+		
+		private XmlObject apply(XmlObject xml) {
+			XmlObject projected = XmlObject.Factory.newInstance();
+			XmlCursor target = projected.newCursor();
+			XmlCursor source = xml.newCursor();
+			try {
+				target.toNextToken();
+				if (source.toFirstChild()) {
+					target.beginElement(source.getName());
+					while (source.toNextToken().isAnyAttr()) {
+						if (source.isNamespace()) {
+							// The local part of a namespace token's name is its prefix
+							target.insertNamespace(source.getName().getLocalPart(), source.getName().getNamespaceURI());
+						} else if (source.isAttr()) {
+							target.insertAttributeWithValue(source.getName(), source.getTextValue());
+						}
+					}
+				}
+				for (String path: paths) {
+					XmlObject[] selected = query ? xml.execQuery(path) : xml.selectPath(path);
+					for (XmlObject node: selected) {
+						XmlCursor cursor = node.newCursor();
+						cursor.copyXml(target);
+						cursor.dispose();
+					}
+				}
+			} finally {
+				source.dispose();
+				target.dispose();
+			}
+			return projected;
+		}
+	}
+	
+	/**
+	 * Matches keys that start with a prefix or match a pattern, configured
+	 * with the <code>prefix</code> or <code>pattern</code> property of a
+	 * definition
+	 */
+	
+	private static class KeyMatcher {
+		
+		private String	prefix;
+		private Pattern	pattern;
+		
+		private KeyMatcher(Properties configuration, String base) throws PatternSyntaxException {
+			this.prefix = configuration.getProperty(base + "prefix");
+			String pattern = configuration.getProperty(base + "pattern");
+			this.pattern = pattern != null ? Pattern.compile(pattern) : null;
+		}
+		
+		private boolean matches(String key) {
+			if (pattern != null)
+				return pattern.matcher(key).matches();
+			return prefix != null && key.startsWith(prefix);
+		}
+		
+		@Override
+		public String toString() {
+			return pattern != null ? "pattern " + pattern.pattern() : "prefix " + prefix;
+		}
+	}
+	
+	/**
+	 * Content shared between the entries of keys with identical documents
+	 */
+	
+	private static class SharedContent {
+		
+		private String			hash;
+		private XmlObject		xml;
+		private XmlCachePayload	payload;
+		private long			weight;
+		private int				refs = 1;
+		
+		private SharedContent(String hash, XmlObject xml, XmlCachePayload payload, long weight) {
+			this.hash = hash;
+			this.xml = xml;
+			this.payload = payload;
+			this.weight = weight;
+		}
+	}
+	
 	/**
 	 * Represents an entry in the cache
 	 */
 	
 	public static class XmlCacheEntry {
 		
-		private long		timestamp;
-		private XmlObject	xml;
+		private long				timestamp;
+		private volatile long		deadline;
+		private boolean				sourceExpiry = false;
+		private volatile long		lastAccess;
+		private volatile XmlObject	xml;
+		private XmlCachePayload		payload;
+		private volatile long		weight = -1;
+		private boolean				refreshing = false;
+		private Map <String, XmlObject[]>	fragments;
+		private Map <IndexDefinition, Map <String, XmlObject>>	indexes;
+		private XmlObject			stamped;
+		private XmlCursor.ChangeStamp	stamp;
+		private SharedContent		shared;
+		private volatile boolean	retired = false;
 		
 		public XmlCacheEntry(XmlObject xml) {
-			timestamp = System.currentTimeMillis();
+			this(xml, System.currentTimeMillis());
+		}
+		
+		public XmlCacheEntry(XmlObject xml, long timestamp) {
+			this(xml, null, timestamp);
+		}
+		
+		public XmlCacheEntry(XmlObject xml, XmlCachePayload payload, long timestamp) {
+			this.timestamp = timestamp;
+			this.deadline = Long.MAX_VALUE;
+			this.lastAccess = System.currentTimeMillis();
 			this.xml = xml;
+			this.payload = payload;
 		}
 		
 	}
@@ -25,6 +25,154 @@ public class XmlCacheUtilityOSBFacade {
 		return XmlCacheUtility.getXmlCacheUtility().getXml(key);
 	}
 	
+	/**
+	 * Get some XML from a named cache region
+	 * @param region	The name of the region
+	 * @param key		The key used to identify some XML in the region
+	 * @return			The XML from the region
+	 */
+	public static XmlObject getXml(String region, String key) throws XmlCacheException {
+		return getRegion(region).getXml(key);
+	}
+	
+	/**
+	 * Get the result of an XPath over some XML in the cache
+	 * @param key	The key used to identify some XML in the cache
+	 * @param xpath	The XPath to select
+	 * @return		The selected XML from the cache
+	 */
+	public static XmlObject[] getXmlFragment(String key, String xpath) throws XmlCacheException {
+		return XmlCacheUtility.getXmlCacheUtility().getXmlFragment(key, xpath);
+	}
+	
+	/**
+	 * Get the result of an XPath over some XML in a named cache region
+	 * @param region	The name of the region
+	 * @param key		The key used to identify some XML in the region
+	 * @param xpath		The XPath to select
+	 * @return			The selected XML from the region
+	 */
+	public static XmlObject[] getXmlFragment(String region, String key, String xpath) throws XmlCacheException {
+		return getRegion(region).getXmlFragment(key, xpath);
+	}
+	
+	/**
+	 * Look up a record in an index over some XML in the cache
+	 * @param key		The key used to identify some XML in the cache
+	 * @param indexName	The name of the index
+	 * @param value		The value of the record to find
+	 * @return			The record or null if no record has the value
+	 */
+	public static XmlObject lookup(String key, String indexName, String value) throws XmlCacheException {
+		return XmlCacheUtility.getXmlCacheUtility().lookup(key, indexName, value);
+	}
+	
+	/**
+	 * Look up a record in an index over some XML in a named cache region
+	 * @param region	The name of the region
+	 * @param key		The key used to identify some XML in the region
+	 * @param indexName	The name of the index
+	 * @param value		The value of the record to find
+	 * @return			The record or null if no record has the value
+	 */
+	public static XmlObject lookup(String region, String key, String indexName, String value)
+			throws XmlCacheException {
+		return getRegion(region).lookup(key, indexName, value);
+	}
+	
+	/**
+	 * Get a private copy of some XML from the cache, which may be modified
+	 * @param key	The key used to identify some XML in the cache
+	 * @return		A copy of the XML from the cache
+	 */
+	public static XmlObject getXmlCopy(String key) throws XmlCacheException {
+		return XmlCacheUtility.getXmlCacheUtility().getXmlCopy(key);
+	}
+	
+	/**
+	 * Get a private copy of some XML from a named cache region, which may be
+	 * modified
+	 * @param region	The name of the region
+	 * @param key		The key used to identify some XML in the region
+	 * @return			A copy of the XML from the region
+	 */
+	public static XmlObject getXmlCopy(String region, String key) throws XmlCacheException {
+		return getRegion(region).getXmlCopy(key);
+	}
+	
+	/**
+	 * Invalidate some XML in the cache, on this server and its peers
+	 * @param key	The key used to identify some XML in the cache
+	 */
+	
+	public static void invalidate(String key) {
+		XmlCacheUtility.getXmlCacheUtility().invalidate(key);
+	}
+	
+	/**
+	 * Invalidate some XML in a named cache region, on this server and its
+	 * peers
+	 * @param region	The name of the region
+	 * @param key		The key used to identify some XML in the region
+	 */
+	
+	public static void invalidate(String region, String key) throws XmlCacheException {
+		getRegion(region).invalidate(key);
+	}
+	
+	/**
+	 * Invalidate all XML in the cache with keys starting with the prefix, on
+	 * this server and its peers
+	 * @param prefix	The prefix of the keys to invalidate
+	 */
+	
+	public static void invalidatePrefix(String prefix) {
+		XmlCacheUtility.getXmlCacheUtility().invalidatePrefix(prefix);
+	}
+	
+	/**
+	 * Invalidate all XML in a named cache region with keys starting with the
+	 * prefix, on this server and its peers
+	 * @param region	The name of the region
+	 * @param prefix	The prefix of the keys to invalidate
+	 */
+	
+	public static void invalidatePrefix(String region, String prefix) throws XmlCacheException {
+		getRegion(region).invalidatePrefix(prefix);
+	}
+	
+	/**
+	 * Reload some XML into the cache from its source, on this server and its
+	 * peers
+	 * @param key	The key used to identify some XML in the cache
+	 * @return		True if the XML was found in a source
+	 */
+	
+	public static boolean reload(String key) {
+		return XmlCacheUtility.getXmlCacheUtility().reload(key);
+	}
+	
+	/**
+	 * Reload some XML into a named cache region from its source, on this
+	 * server and its peers
+	 * @param region	The name of the region
+	 * @param key		The key used to identify some XML in the region
+	 * @return			True if the XML was found in a source
+	 */
+	
+	public static boolean reload(String region, String key) throws XmlCacheException {
+		return getRegion(region).reload(key);
+	}
+	
+	/**
+	 * Reload the cache configuration file and apply it to the running cache
+	 * @return	True if the configuration was reloaded
+	 */
+	
+	public static boolean reloadConfiguration() {
+		return XmlCacheUtility.getXmlCacheUtility().reloadConfiguration();
+	}
+	
 	/**
 	 * Reset the cache statistics
 	 */
@@ -33,5 +181,30 @@ public class XmlCacheUtilityOSBFacade {
 		XmlCacheUtility.getXmlCacheUtility().resetStatistics();
 	}
 	
+	/**
+	 * Get the keys with the most requests, misses and load time
+	 * @return	The top keys as text
+	 */
+	
+	public static String getTopKeys() {
+		return XmlCacheUtility.getXmlCacheUtility().getTopKeysString();
+	}
+	
+	/**
+	 * Get the metrics of the cache and its regions
+	 * @return	The metrics in the Prometheus text format
+	 */
+	
+	public static String getMetrics() {
+		return XmlCacheUtility.getXmlCacheUtility().getMetrics().scrape();
+	}
+	
+	private static XmlCacheUtility getRegion(String region) throws XmlCacheException {
+		XmlCacheUtility utility = XmlCacheUtility.getXmlCacheUtility(region);
+		if (utility == null)
+			throw new XmlCacheException("Unknown cache region: " + region);
+		return utility;
+	}
+	
 
 }
@@ -0,0 +1,56 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.util.Properties;
+
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheRawSource;
+
+/**
+ * Test source that returns &lt;key/&gt;, or a given document, for any key and
+ * counts the reads
+ */
+
+public class CountingSource implements XmlCacheRawSource {
+	
+	public int reads = 0;
+	
+	public int rawReads = 0;
+	
+	private String text;
+	
+	public CountingSource() {
+		this(null);
+	}
+	
+	/**
+	 * @param text	The document returned for every key
+	 */
+	
+	public CountingSource(String text) {
+		this.text = text;
+	}
+	
+	protected String getText(String key) {
+		return text != null ? text : "<" + key + "/>";
+	}
+	
+	public XmlObject readSource(String key) {
+		reads++;
+		try {
+			return XmlObject.Factory.parse(getText(key));
+		} catch (XmlException e) {
+			return null;
+		}
+	}
+	
+	public byte[] readRawSource(String key) {
+		rawReads++;
+		return getText(key).getBytes();
+	}
+	
+	public void configure(Properties configuration, String base) {
+	}
+	
+}
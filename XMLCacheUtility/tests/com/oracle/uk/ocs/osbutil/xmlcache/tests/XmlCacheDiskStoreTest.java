@@ -0,0 +1,82 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheDiskStore;
+
+public class XmlCacheDiskStoreTest extends TestCase {
+	
+	private File dir = new File(System.getProperty("java.io.tmpdir"), "xmlcache-l2-test");
+	
+	private XmlCacheDiskStore store;
+	
+	protected void setUp() throws Exception {
+		store = new XmlCacheDiskStore(dir, 64);
+	}
+	
+	protected void tearDown() throws Exception {
+		store.close();
+	}
+	
+	public void testPutGet() throws Exception {
+		store.put("a", 123L, 456L, "<a/>".getBytes("UTF-8"));
+		XmlCacheDiskStore.Record record = store.get("a");
+		assertNotNull(record);
+		assertEquals(123L, record.getTimestamp());
+		assertEquals(456L, record.getDeadline());
+		assertEquals("<a/>", new String(record.getData(), "UTF-8"));
+		assertNull(store.get("b"));
+	}
+	
+	public void testReplace() throws Exception {
+		store.put("a", 1L, Long.MAX_VALUE, "<a/>".getBytes("UTF-8"));
+		store.put("a", 2L, Long.MAX_VALUE, "<b/>".getBytes("UTF-8"));
+		assertEquals(1, store.size());
+		assertEquals("<b/>", new String(store.get("a").getData(), "UTF-8"));
+	}
+	
+	public void testSegmentsReleased() throws Exception {
+		byte[] data = new byte[40];
+		store.put("a", 1L, Long.MAX_VALUE, data);
+		store.put("b", 1L, Long.MAX_VALUE, data);
+		store.put("c", 1L, Long.MAX_VALUE, new byte[100]);
+		assertEquals(3, store.getSegmentCount());
+		
+		store.remove("a");
+		assertEquals(2, store.getSegmentCount());
+		assertTrue(store.remove("b"));
+		assertFalse(store.remove("b"));
+		assertEquals(1, store.size());
+		assertEquals(100, store.get("c").getData().length);
+	}
+	
+	public void testEmptySegmentReleasedOnRollover() throws Exception {
+		byte[] data = new byte[40];
+		store.put("a", 1L, Long.MAX_VALUE, data);
+		
+		// Replacing the only record leaves the segment being written empty
+		store.put("a", 2L, Long.MAX_VALUE, data);
+		assertEquals(1, store.getSegmentCount());
+		assertEquals(2L, store.get("a").getTimestamp());
+	}
+	
+	public void testCapacity() throws Exception {
+		store.close();
+		store = new XmlCacheDiskStore(dir, 64, 128);
+		byte[] data = new byte[40];
+		store.put("a", 1L, Long.MAX_VALUE, data);
+		store.put("b", 1L, Long.MAX_VALUE, data);
+		store.put("c", 1L, Long.MAX_VALUE, data);
+		assertEquals(128, store.getBytes());
+		
+		// The oldest segment and its record make way for the third segment
+		store.put("d", 1L, Long.MAX_VALUE, data);
+		assertEquals(128, store.getBytes());
+		assertNull(store.get("a"));
+		assertNotNull(store.get("c"));
+		assertNotNull(store.get("d"));
+	}
+	
+}
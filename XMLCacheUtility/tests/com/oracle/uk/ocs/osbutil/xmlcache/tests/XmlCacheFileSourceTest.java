@@ -0,0 +1,68 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.xmlbeans.XmlObject;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheFileSource;
+
+public class XmlCacheFileSourceTest extends TestCase {
+
+	private File dir;
+	private XmlCacheFileSource source;
+
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "xmlcache-file-test");
+		dir.mkdirs();
+		Properties properties = new Properties();
+		properties.setProperty("source.file.basedir", dir.getPath());
+		source = new XmlCacheFileSource();
+		source.configure(properties, "source.file");
+	}
+
+	protected void tearDown() throws Exception {
+		for (File file: dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testCompressedFile() throws Exception {
+		write("zipped.xml.gz", "<root>zipped</root>", true);
+
+		XmlObject xml = source.readSource("zipped");
+		assertEquals("zipped", xml.newCursor().getTextValue());
+		assertEquals("<root>zipped</root>", new String(source.readRawSource("zipped"), "UTF-8"));
+		assertNull(source.readSource("missing"));
+	}
+
+	public void testPlainFilePreferred() throws Exception {
+		write("both.xml", "<root>plain</root>", false);
+		write("both.xml.gz", "<root>zipped</root>", true);
+
+		assertEquals("plain", source.readSource("both").newCursor().getTextValue());
+	}
+
+	public void testSize() throws Exception {
+		write("plain.xml", "<root>plain</root>", false);
+		write("zipped.xml.gz", "<root>zipped</root>", true);
+
+		assertEquals(18L, source.getSize("plain"));
+		assertEquals(19L, source.getSize("zipped"));
+		assertEquals(-1L, source.getSize("missing"));
+	}
+
+	private void write(String name, String xml, boolean compress) throws Exception {
+		OutputStream out = new FileOutputStream(new File(dir, name));
+		if (compress)
+			out = new GZIPOutputStream(out);
+		out.write(xml.getBytes("UTF-8"));
+		out.close();
+	}
+}
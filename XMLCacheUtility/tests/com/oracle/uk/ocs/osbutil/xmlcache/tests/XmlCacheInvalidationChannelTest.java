@@ -0,0 +1,106 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheInvalidationChannel;
+
+public class XmlCacheInvalidationChannelTest extends TestCase {
+	
+	private List <String> received = Collections.synchronizedList(new ArrayList <String> ());
+	
+	private XmlCacheInvalidationChannel.Listener recorder = new XmlCacheInvalidationChannel.Listener() {
+		public void invalidate(String key) {
+			received.add("I " + key);
+		}
+		public void invalidatePrefix(String prefix) {
+			received.add("P " + prefix);
+		}
+		public void reload(String key) {
+			received.add("R " + key);
+		}
+	};
+	
+	private static int freePort() throws Exception {
+		DatagramSocket socket = new DatagramSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+	
+	public void testCoalescedBroadcast() throws Exception {
+		int portA = freePort();
+		int portB = freePort();
+		List <InetSocketAddress> peersOfA = XmlCacheInvalidationChannel.parsePeers("localhost:" + portB);
+		List <InetSocketAddress> peersOfB = XmlCacheInvalidationChannel.parsePeers("localhost:" + portA);
+		
+		XmlCacheInvalidationChannel a = new XmlCacheInvalidationChannel(portA, peersOfA, 60000, recorder);
+		XmlCacheInvalidationChannel b = new XmlCacheInvalidationChannel(portB, peersOfB, 60000, recorder);
+		try {
+			a.publishInvalidate("codes/1");
+			a.publishInvalidate("codes/1");
+			a.publishInvalidate("codes/2");
+			a.publishInvalidatePrefix("codes/");
+			a.publishReload("prices");
+			a.flush();
+			
+			for (int i = 0; i < 50 && received.size() < 2; i++) {
+				Thread.sleep(100);
+			}
+			
+			assertEquals(2, received.size());
+			assertTrue(received.contains("P codes/"));
+			assertTrue(received.contains("R prices"));
+			assertEquals(3L, a.getEventsCoalesced());
+			assertEquals(1L, b.getPacketsReceived());
+		} finally {
+			a.close();
+			b.close();
+		}
+	}
+	
+	public void testPeersOnlyAndEscapedKeys() throws Exception {
+		int portA = freePort();
+		int portB = freePort();
+		int portC = freePort();
+		List <InetSocketAddress> peersOfA = XmlCacheInvalidationChannel.parsePeers("localhost:" + portB);
+		List <InetSocketAddress> peersOfB = XmlCacheInvalidationChannel.parsePeers("localhost:" + portA);
+		
+		XmlCacheInvalidationChannel a = new XmlCacheInvalidationChannel(portA, peersOfA, 60000, recorder);
+		XmlCacheInvalidationChannel b = new XmlCacheInvalidationChannel(portB, peersOfB, 60000, recorder);
+		// Sends from this host to a channel that lists a different host
+		XmlCacheInvalidationChannel c = new XmlCacheInvalidationChannel(portC,
+				XmlCacheInvalidationChannel.parsePeers("192.0.2.1:" + portA), 60000, recorder);
+		try {
+			a.publishInvalidate("line\nbreak\\path");
+			a.flush();
+			for (int i = 0; i < 50 && received.isEmpty(); i++) {
+				Thread.sleep(100);
+			}
+			assertEquals(Collections.singletonList("I line\nbreak\\path"), received);
+			
+			// Invalidations from a host that is not a peer are dropped
+			DatagramSocket stranger = new DatagramSocket();
+			byte[] data = "XMLCACHE stranger\nI codes".getBytes("UTF-8");
+			stranger.send(new DatagramPacket(data, data.length, new InetSocketAddress("localhost", portC)));
+			stranger.close();
+			for (int i = 0; i < 50 && c.getPacketsRejected() == 0; i++) {
+				Thread.sleep(100);
+			}
+			assertEquals(1L, c.getPacketsRejected());
+			assertEquals(0L, c.getPacketsReceived());
+			assertEquals(1, received.size());
+		} finally {
+			a.close();
+			b.close();
+			c.close();
+		}
+	}
+	
+}
@@ -0,0 +1,61 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.xmlbeans.XmlObject;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheException;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheLazyPayload;
+
+public class XmlCacheLazyPayloadTest extends TestCase {
+	
+	public void testParsedOnce() throws Exception {
+		final XmlCacheLazyPayload payload = new XmlCacheLazyPayload("<root/>".getBytes("UTF-8"), "test");
+		assertFalse(payload.isParsed());
+		
+		final List <XmlObject> results = new ArrayList <XmlObject> ();
+		List <Thread> threads = new ArrayList <Thread> ();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						XmlObject xml = payload.parse();
+						synchronized (results) {
+							results.add(xml);
+						}
+					} catch (XmlCacheException e) {
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		
+		assertTrue(payload.isParsed());
+		assertEquals(8, results.size());
+		for (XmlObject xml: results) {
+			assertSame(results.get(0), xml);
+		}
+	}
+	
+	public void testParseFailure() throws Exception {
+		XmlCacheLazyPayload payload = new XmlCacheLazyPayload("<root>".getBytes("UTF-8"), "test");
+		try {
+			payload.parse();
+			fail("Expected parse failure");
+		} catch (XmlCacheException e) {
+		}
+		try {
+			payload.parse();
+			fail("Expected parse failure to be remembered");
+		} catch (XmlCacheException e) {
+		}
+	}
+	
+}
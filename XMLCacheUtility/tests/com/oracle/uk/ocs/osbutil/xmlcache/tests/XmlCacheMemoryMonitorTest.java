@@ -0,0 +1,52 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import junit.framework.TestCase;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheMemoryMonitor;
+
+public class XmlCacheMemoryMonitorTest extends TestCase {
+	
+	private static class NullListener implements XmlCacheMemoryMonitor.Listener {
+		public void memoryPressure(int level) {
+		}
+		
+		public boolean memoryRelieved() {
+			return false;
+		}
+	}
+	
+	public void testRestoresThreshold() throws Exception {
+		MemoryPoolMXBean tenured = null;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+					&& pool.getUsage().getMax() > 0
+					&& (tenured == null || pool.getUsage().getMax() > tenured.getUsage().getMax())) {
+				tenured = pool;
+			}
+		}
+		if (tenured == null)
+			return;
+		
+		long original = tenured.getCollectionUsageThreshold();
+		try {
+			tenured.setCollectionUsageThreshold(1024);
+			XmlCacheMemoryMonitor.Listener first = new NullListener();
+			XmlCacheMemoryMonitor.Listener second = new NullListener();
+			assertTrue(XmlCacheMemoryMonitor.register(new double[] {0.9, 0.8}, 60000, first));
+			// Different levels are ignored, with a warning
+			assertTrue(XmlCacheMemoryMonitor.register(new double[] {0.5}, 60000, second));
+			assertEquals((long) (tenured.getUsage().getMax() * 0.8), tenured.getCollectionUsageThreshold());
+			
+			XmlCacheMemoryMonitor.unregister(first);
+			XmlCacheMemoryMonitor.unregister(second);
+			assertEquals(1024, tenured.getCollectionUsageThreshold());
+		} finally {
+			tenured.setCollectionUsageThreshold(original);
+		}
+	}
+	
+}
@@ -0,0 +1,125 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheException;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheMetrics;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheMetricsExporter;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheUtility;
+
+public class XmlCacheMetricsTest extends TestCase {
+
+	public void testExpositionFormat() throws Exception {
+		final XmlCacheMetrics.Counter counter = new XmlCacheMetrics.Counter();
+		counter.inc();
+		counter.add(4);
+		XmlCacheMetrics metrics = new XmlCacheMetrics();
+		metrics.register(new XmlCacheMetrics.Collector() {
+			public void collect(XmlCacheMetrics.Sink sink) {
+				StringBuilder a = new StringBuilder();
+				XmlCacheMetrics.label(a, "name", "a\"b");
+				sink.counter("test_total", "A count", a.toString(), counter.get());
+				sink.gauge("test_ratio", "A ratio", "", 0.5);
+				sink.counter("test_total", "Ignored", "name=\"c\"", 1);
+			}
+		});
+
+		assertEquals("# HELP test_total A count\n"
+				+ "# TYPE test_total counter\n"
+				+ "test_total{name=\"a\\\"b\"} 5\n"
+				+ "test_total{name=\"c\"} 1\n"
+				+ "# HELP test_ratio A ratio\n"
+				+ "# TYPE test_ratio gauge\n"
+				+ "test_ratio 0.5\n", metrics.scrape());
+	}
+
+	public void testCacheMetrics() throws Exception {
+		XmlCacheUtility cache = new XmlCacheUtility(new Properties()) {};
+		cache.addXmlCacheSource(new CountingSource());
+		cache.getXml("a");
+		cache.getXml("a");
+		cache.getXml("b");
+		try {
+			cache.getXml("1");
+			fail("Key cannot be loaded");
+		} catch (XmlCacheException e) {
+			// Expected
+		}
+
+		String text = cache.getMetrics().scrape();
+		assertTrue(text, text.contains("# TYPE xmlcache_requests_total counter\n"));
+		assertTrue(text, text.contains("xmlcache_requests_total{region=\"default\",result=\"hit\"} 1\n"));
+		assertTrue(text, text.contains("xmlcache_requests_total{region=\"default\",result=\"miss\"} 2\n"));
+		assertTrue(text, text.contains("xmlcache_requests_total{region=\"default\",result=\"not_found\"} 1\n"));
+		assertTrue(text, text.contains("xmlcache_entries{region=\"default\"} 2\n"));
+	}
+
+	public void testMBeans() throws Exception {
+		XmlCacheMetrics metrics = new XmlCacheMetrics();
+		metrics.registerMBeans("java.lang:type=ClassLoading");
+		String text = metrics.scrape();
+		assertTrue(text, text.contains("# TYPE java_lang_LoadedClassCount untyped\n"));
+		assertTrue(text, text.contains("java_lang_LoadedClassCount{type=\"ClassLoading\"} "));
+	}
+
+	public void testFile() throws Exception {
+		XmlCacheMetrics metrics = new XmlCacheMetrics();
+		metrics.register(new XmlCacheMetrics.Collector() {
+			public void collect(XmlCacheMetrics.Sink sink) {
+				sink.gauge("test_value", "A value", "", 1);
+			}
+		});
+		File file = File.createTempFile("metrics", ".prom");
+		file.deleteOnExit();
+		new XmlCacheMetricsExporter(metrics).write(file);
+
+		assertEquals(metrics.scrape(), new String(read(new FileInputStream(file)), "UTF-8"));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	public void testServe() throws Exception {
+		XmlCacheMetrics metrics = new XmlCacheMetrics();
+		metrics.register(new XmlCacheMetrics.Collector() {
+			public void collect(XmlCacheMetrics.Sink sink) {
+				sink.gauge("test_value", "A value", "", 1);
+			}
+		});
+		XmlCacheMetricsExporter exporter = new XmlCacheMetricsExporter(metrics);
+		exporter.serve(0);
+		try {
+			Socket socket = new Socket(InetAddress.getByName(null), exporter.getPort());
+			OutputStream out = socket.getOutputStream();
+			out.write("GET /metrics HTTP/1.0\r\n\r\n".getBytes("US-ASCII"));
+			out.flush();
+			String response = new String(read(socket.getInputStream()), "UTF-8");
+			socket.close();
+
+			assertTrue(response, response.startsWith("HTTP/1.0 200 OK\r\n"));
+			assertTrue(response, response.contains("Content-Type: text/plain; version=0.0.4"));
+			assertTrue(response, response.endsWith("\r\n\r\n" + metrics.scrape()));
+		} finally {
+			exporter.close();
+		}
+		assertEquals(-1, exporter.getPort());
+	}
+
+	private static byte[] read(InputStream in) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			bytes.write(buffer, 0, n);
+		}
+		in.close();
+		return bytes.toByteArray();
+	}
+}
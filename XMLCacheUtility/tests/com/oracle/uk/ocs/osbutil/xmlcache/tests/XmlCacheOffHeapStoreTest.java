@@ -0,0 +1,56 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import junit.framework.TestCase;
+
+import org.apache.xmlbeans.XmlObject;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheOffHeapStore;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCachePayload;
+
+public class XmlCacheOffHeapStoreTest extends TestCase {
+	
+	public void testAllocateAndParse() throws Exception {
+		XmlCacheOffHeapStore store = new XmlCacheOffHeapStore(4096, 1024 * 1024);
+		XmlCachePayload slot = store.allocate("<root><a>1</a></root>".getBytes("UTF-8"));
+		assertNotNull(slot);
+		assertEquals(4096L, store.getReserved());
+		assertEquals(256L, store.getUsed());
+		
+		XmlObject xml = slot.parse();
+		assertEquals("root", xml.getDomNode().getFirstChild().getLocalName());
+		assertEquals("<root><a>1</a></root>", new String(slot.getBytes(), "UTF-8"));
+		
+		slot.release();
+		assertEquals(0L, store.getUsed());
+		try {
+			slot.parse();
+			fail("Expected released slot to fail");
+		} catch (Exception e) {
+		}
+	}
+	
+	public void testChunksReused() throws Exception {
+		XmlCacheOffHeapStore store = new XmlCacheOffHeapStore(1024, 1024);
+		byte[] data = new byte[300];
+		XmlCachePayload a = store.allocate(data);
+		XmlCachePayload b = store.allocate(data);
+		assertNotNull(a);
+		assertNotNull(b);
+		assertNull(store.allocate(data));
+		
+		a.release();
+		assertNotNull(store.allocate(data));
+		assertEquals(1024L, store.getReserved());
+	}
+	
+	public void testLargeAllocation() throws Exception {
+		XmlCacheOffHeapStore store = new XmlCacheOffHeapStore(1024, 10000);
+		XmlCachePayload slot = store.allocate(new byte[5000]);
+		assertNotNull(slot);
+		assertEquals(5000L, store.getReserved());
+		assertNull(store.allocate(new byte[5001]));
+		slot.release();
+		assertEquals(0L, store.getReserved());
+	}
+	
+}
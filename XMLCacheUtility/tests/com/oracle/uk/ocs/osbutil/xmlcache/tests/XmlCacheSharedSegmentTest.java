@@ -0,0 +1,91 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.apache.xmlbeans.XmlObject;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheSharedSegment;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheSnapshot;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheUtility;
+
+public class XmlCacheSharedSegmentTest extends TestCase {
+	
+	private File file = new File(System.getProperty("java.io.tmpdir"), "xmlcache-shared-test.seg");
+	
+	protected void tearDown() throws Exception {
+		for (File segment: getSegmentFiles()) {
+			segment.delete();
+		}
+		file.delete();
+	}
+	
+	private File[] getSegmentFiles() {
+		return file.getParentFile().listFiles(new FileFilter() {
+			public boolean accept(File candidate) {
+				return candidate.getName().matches(Pattern.quote(file.getName()) + "\\.\\d+");
+			}
+		});
+	}
+	
+	public void testWriteAndMap() throws Exception {
+		List <XmlCacheSnapshot.Record> records = new ArrayList <XmlCacheSnapshot.Record> ();
+		records.add(new XmlCacheSnapshot.Record("a", 1L, Long.MAX_VALUE, "<a/>".getBytes("UTF-8")));
+		records.add(new XmlCacheSnapshot.Record("b/c", 2L, Long.MAX_VALUE, "<c>text</c>".getBytes("UTF-8")));
+		XmlCacheSharedSegment.write(file, records);
+		
+		XmlCacheSharedSegment segment = XmlCacheSharedSegment.open(file);
+		assertEquals(2, segment.size());
+		assertEquals(2L, segment.getVersion("b/c"));
+		assertEquals(-1L, segment.getVersion("d"));
+		assertNull(segment.get("d"));
+		assertEquals("c", segment.get("b/c").parse().getDomNode().getFirstChild().getLocalName());
+		assertEquals("<a/>", new String(segment.get("a").getBytes(), "UTF-8"));
+		assertFalse(segment.isStale());
+		
+		XmlCacheSharedSegment.write(file, records);
+		assertTrue(segment.isStale());
+		XmlCacheSharedSegment replaced = XmlCacheSharedSegment.open(file);
+		assertTrue(replaced.getSequence() > segment.getSequence());
+		assertFalse(replaced.isStale());
+		// The replaced segment is still mapped and was not overwritten
+		assertEquals("<a/>", new String(segment.get("a").getBytes(), "UTF-8"));
+		assertEquals(2, getSegmentFiles().length);
+		
+		// Only the published segment and the one it replaced are kept
+		XmlCacheSharedSegment.write(file, records);
+		assertEquals(2, getSegmentFiles().length);
+		assertTrue(replaced.isStale());
+	}
+	
+	public void testPublishAndRead() throws Exception {
+		Properties publisherProperties = new Properties();
+		publisherProperties.setProperty(XmlCacheUtility.CFGKEY_CACHE_SHARED_FILE, file.getPath());
+		XmlCacheUtility publisher = new XmlCacheUtility(publisherProperties) {};
+		publisher.addXmlCacheSource(new CountingSource());
+		publisher.getXml("shared");
+		assertEquals(1, publisher.publishSharedSegment());
+		
+		Properties readerProperties = new Properties();
+		readerProperties.setProperty("source.shared.class", "com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheSharedSource");
+		readerProperties.setProperty("source.shared.file", file.getPath());
+		XmlCacheUtility reader = new XmlCacheUtility(readerProperties) {};
+		CountingSource source = new CountingSource();
+		reader.addXmlCacheSource(source);
+		
+		XmlObject xml = reader.getXml("shared");
+		assertEquals("shared", xml.getDomNode().getFirstChild().getLocalName());
+		assertEquals(0, source.reads);
+		// Parsed out of the mapping once, not on every hit
+		assertSame(xml, reader.getXml("shared"));
+		reader.getXml("other");
+		assertEquals(1, source.reads);
+	}
+	
+}
@@ -0,0 +1,115 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheAccessRecorder;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheException;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheSimulator;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheUtility;
+
+public class XmlCacheSimulatorTest extends TestCase {
+
+	private static List <XmlCacheSimulator.Access> trace(Object... timesAndKeys) {
+		List <XmlCacheSimulator.Access> trace = new ArrayList <XmlCacheSimulator.Access> ();
+		for (int i = 0; i < timesAndKeys.length; i += 2) {
+			trace.add(new XmlCacheSimulator.Access(((Number) timesAndKeys[i]).longValue(), (String) timesAndKeys[i + 1]));
+		}
+		return trace;
+	}
+
+	public void testSweepEntryLimit() throws Exception {
+		XmlCacheSimulator simulator = new XmlCacheSimulator(
+				trace(0, "a", 1, "b", 2, "a", 3, "c", 4, "a", 5, "b"), 100);
+		Map <String, List <String>> settings = new LinkedHashMap <String, List <String>> ();
+		settings.put("cache.maxentries", Arrays.asList("2", "3"));
+		List <XmlCacheSimulator.Result> results = simulator.sweep(new Properties(), settings);
+
+		assertEquals(2, results.size());
+		XmlCacheSimulator.Result two = results.get(0);
+		assertEquals("{cache.maxentries=2}", two.getDescription());
+		assertEquals(6, two.getRequests());
+		assertEquals(4, two.getLoads());
+		assertEquals(400, two.getLoadBytes());
+		assertEquals(2, two.getPeakEntries());
+		assertTrue(two.getPeakWeight() > 200);
+
+		XmlCacheSimulator.Result three = results.get(1);
+		assertEquals(3, three.getLoads());
+		assertEquals(0.5, three.getHitRatio(), 0.0001);
+		assertEquals(3, three.getPeakEntries());
+	}
+
+	public void testExpiryUsesTraceTime() throws Exception {
+		XmlCacheSimulator simulator = new XmlCacheSimulator(
+				trace(1000000, "a", 1000500, "a", 1001500, "a", 1001600, "a"), 10);
+		Properties properties = new Properties();
+		properties.setProperty("cache.expiry", "1000");
+		properties.setProperty("source.file.class", "not.a.Source");
+		XmlCacheSimulator.Result result = simulator.simulate(properties, "expiry");
+
+		assertEquals(4, result.getRequests());
+		assertEquals(2, result.getLoads());
+		assertEquals(2, result.getHits());
+	}
+
+	public void testRecordAndReplay() throws Exception {
+		File file = File.createTempFile("requests", ".log");
+		file.deleteOnExit();
+		Properties properties = new Properties();
+		properties.setProperty("cache.record.file", file.getPath());
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		cache.getXml("a");
+		cache.getXml("b");
+		cache.getXml("a");
+		try {
+			cache.getXml("c\\\t\n\rd");
+			fail("The key is not a valid element name");
+		} catch (XmlCacheException e) {
+			// Recorded all the same
+		}
+		XmlCacheAccessRecorder recorder = cache.getAccessRecorder();
+		// Shutting the cache down closes the recorder
+		cache.shutdown();
+
+		// Four requests and the two loads
+		assertEquals(6, recorder.getRecorded());
+		assertEquals(0, recorder.getDropped());
+		List <XmlCacheSimulator.Access> trace = XmlCacheSimulator.readTrace(file);
+		assertEquals(4, trace.size());
+		assertEquals("a", trace.get(0).getKey());
+		assertEquals("b", trace.get(1).getKey());
+		assertTrue(trace.get(2).getTime() >= trace.get(0).getTime());
+		assertEquals("c\\\t\n\rd", trace.get(3).getKey());
+		long size = trace.get(0).getSize();
+		assertTrue(size > 0);
+		assertEquals(-1, trace.get(2).getSize());
+		assertEquals(-1, trace.get(3).getSize());
+
+		// The loaded sizes are replayed, so the default size is not used
+		XmlCacheSimulator.Result result = new XmlCacheSimulator(trace, 10).simulate(new Properties(), "replay");
+		assertEquals(3, result.getLoads());
+		assertEquals(size + trace.get(1).getSize() + 10, result.getLoadBytes());
+	}
+
+	public void testReplaysChangedSizes() throws Exception {
+		List <XmlCacheSimulator.Access> trace = new ArrayList <XmlCacheSimulator.Access> ();
+		trace.add(new XmlCacheSimulator.Access(0, "a"));
+		trace.add(new XmlCacheSimulator.Access(1, "a", 50));
+		trace.add(new XmlCacheSimulator.Access(40000, "a", 70));
+		XmlCacheSimulator.Result result = new XmlCacheSimulator(trace, 10).simulate(new Properties(), "sizes");
+
+		// Loaded before its size was first recorded, then reloaded after
+		// expiring at the size recorded at that point
+		assertEquals(2, result.getLoads());
+		assertEquals(50 + 70, result.getLoadBytes());
+	}
+}
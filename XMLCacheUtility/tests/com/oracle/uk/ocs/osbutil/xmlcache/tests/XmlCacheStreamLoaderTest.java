@@ -0,0 +1,100 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.xmlbeans.XmlObject;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheException;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheFileSource;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheStreamLoader;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheUtility;
+
+public class XmlCacheStreamLoaderTest extends TestCase {
+
+	private static final String CATALOG = "<c:catalog xmlns:c='urn:c' v='1'><!-- note --><c:header>h</c:header>"
+			+ "<c:item id='a'><c:name>a</c:name><c:price>1</c:price></c:item>"
+			+ "<c:item id='b'><c:name>b</c:name><c:price>2</c:price></c:item></c:catalog>";
+
+	public void testWholeDocument() throws Exception {
+		XmlCacheStreamLoader loader = new XmlCacheStreamLoader(16, 0, null);
+		XmlObject xml = loader.load(new ByteArrayInputStream(CATALOG.getBytes("UTF-8")), "test");
+
+		XmlObject expected = XmlObject.Factory.parse(CATALOG);
+		assertEquals(expected.xmlText(), xml.xmlText());
+		assertEquals(CATALOG.getBytes("UTF-8").length, loader.getBytesRead());
+		assertEquals(8, loader.getElements());
+	}
+
+	public void testKeepPaths() throws Exception {
+		XmlCacheStreamLoader loader = new XmlCacheStreamLoader(16, 0,
+				Arrays.asList("/catalog/header", "catalog/item/price"));
+		XmlObject xml = loader.load(new ByteArrayInputStream(CATALOG.getBytes("UTF-8")), "test");
+
+		String ns = "declare namespace c='urn:c'; ";
+		assertEquals(1, xml.selectPath(ns + "$this/c:catalog/@v").length);
+		assertEquals(1, xml.selectPath(ns + "$this/c:catalog/c:header").length);
+		assertEquals(2, xml.selectPath(ns + "$this/c:catalog/c:price").length);
+		assertEquals(0, xml.selectPath(ns + "$this//c:item").length);
+		assertEquals(0, xml.selectPath(ns + "$this//c:name").length);
+		assertEquals(8, loader.getElements());
+	}
+
+	public void testMalformed() throws Exception {
+		XmlCacheStreamLoader loader = new XmlCacheStreamLoader(16, 0, null);
+		try {
+			loader.load(new ByteArrayInputStream("<root><a></root>".getBytes("UTF-8")), "test");
+			fail("Expected parse failure");
+		} catch (XmlCacheException e) {
+		}
+	}
+
+	public void testFileSource() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "xmlcache-stream-test");
+		dir.mkdirs();
+		File file = new File(dir, "catalog.xml");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(CATALOG.getBytes("UTF-8"));
+		out.close();
+
+		Properties properties = new Properties();
+		properties.setProperty("source.file.basedir", dir.getPath());
+		properties.setProperty("projection.catalog.prefix", "catalog");
+		properties.setProperty("projection.catalog.paths", "$this/catalog/header");
+		XmlCacheFileSource source = new XmlCacheFileSource();
+		source.configure(properties, "source.file");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(source);
+		String ns = "declare namespace c='urn:c'; ";
+		try {
+			XmlObject xml = cache.getXml("catalog");
+			assertEquals(0, xml.selectPath(ns + "$this//c:item").length);
+			assertEquals(1, xml.selectPath(ns + "$this/c:catalog/c:header").length);
+			assertEquals(1, xml.selectPath(ns + "$this/c:catalog/@v").length);
+			assertEquals(1, source.getStreamedLoads());
+			assertEquals(file.length(), source.getStreamedBytes());
+			
+			// Other projections parse the file and then project it
+			FileOutputStream plain = new FileOutputStream(new File(dir, "catalog-plain.xml"));
+			plain.write(CATALOG.replace("c:", "").replace(" xmlns:c='urn:c'", "").getBytes("UTF-8"));
+			plain.close();
+			properties.setProperty("projection.catalog.paths", "$this//header");
+			XmlCacheUtility parsed = new XmlCacheUtility(properties) {};
+			parsed.addXmlCacheSource(source);
+			xml = parsed.getXml("catalog-plain");
+			assertEquals(0, xml.selectPath("$this//item").length);
+			assertEquals(1, xml.selectPath("$this/catalog/header").length);
+			assertEquals(1, xml.selectPath("$this/catalog/@v").length);
+			assertEquals(1, source.getStreamedLoads());
+		} finally {
+			file.delete();
+			new File(dir, "catalog-plain.xml").delete();
+			dir.delete();
+		}
+	}
+}
@@ -1,7 +1,23 @@
 package com.oracle.uk.ocs.osbutil.xmlcache.tests;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.xml.namespace.QName;
+
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
 
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheException;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheExpirySource;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheHeavyHitters;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheSource;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheTracer;
 import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheUtility;
 
 import junit.framework.TestCase;
@@ -34,4 +50,719 @@ public class XmlCacheUtilityTest extends TestCase {
 
 	}
 
+	public void testColdCompression() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_COLD_THRESHOLD, "1");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_COLD_SWEEP, "3600000");
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(source);
+		
+		cache.getXml("cold");
+		Thread.sleep(10);
+		assertEquals(1, cache.compressColdEntries());
+		assertEquals(1, cache.getColdEntryCount());
+		
+		XmlObject xml = cache.getXml("cold");
+		assertEquals("cold", xml.getDomNode().getFirstChild().getLocalName());
+		assertEquals(0, cache.getColdEntryCount());
+		assertEquals(1L, cache.getInflateTotal());
+		assertEquals(1, source.reads);
+	}
+
+	public void testOffHeapStorage() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_STORAGE, "offheap");
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(source);
+		
+		XmlObject first = cache.getXml("offheap");
+		assertTrue(cache.getOffHeapUsed() > 0);
+		// Held only off the heap
+		assertEquals(1, cache.getColdEntryCount());
+		
+		XmlObject xml = cache.getXml("offheap");
+		assertNotSame(first, xml);
+		assertEquals("offheap", xml.getDomNode().getFirstChild().getLocalName());
+		assertEquals(1, source.reads);
+		// Parsed out of direct memory on each hit rather than kept on the heap
+		assertEquals(2L, cache.getInflateTotal());
+	}
+
+	public void testOffHeapStorageWithColdThreshold() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_STORAGE, "offheap");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_COLD_THRESHOLD, "1");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_COLD_SWEEP, "3600000");
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		
+		XmlObject first = cache.getXml("offheap");
+		Thread.sleep(10);
+		assertEquals(1, cache.compressColdEntries());
+		
+		// Parsed out of direct memory once, then kept until it is cold again
+		XmlObject xml = cache.getXml("offheap");
+		assertNotSame(first, xml);
+		assertSame(xml, cache.getXml("offheap"));
+		assertEquals(1L, cache.getInflateTotal());
+	}
+
+	public void testLazyParsing() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_LAZY, "true");
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(source);
+		
+		assertTrue(cache.preload("lazy"));
+		assertEquals(1, source.rawReads);
+		assertEquals(0L, cache.getLazyParseTotal());
+		assertEquals(1, cache.getColdEntryCount());
+		
+		XmlObject xml = cache.getXml("lazy");
+		assertEquals("lazy", xml.getDomNode().getFirstChild().getLocalName());
+		assertSame(xml, cache.getXml("lazy"));
+		assertEquals(1L, cache.getLazyParseTotal());
+		assertEquals(1, source.rawReads);
+		assertEquals(0, source.reads);
+	}
+
+	public void testLazyParseCountedOnce() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_LAZY, "true");
+		
+		final XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		assertTrue(cache.preload("lazy"));
+		
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						cache.getXml("lazy");
+					} catch (XmlCacheException e) {
+						fail(e.getMessage());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		assertEquals(1L, cache.getLazyParseTotal());
+	}
+
+	public void testSnapshotRestore() throws Exception {
+		File file = new File(System.getProperty("java.io.tmpdir"), "xmlcache-snapshot-test.dat");
+		file.delete();
+		
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_SNAPSHOT_FILE, file.getPath());
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_SNAPSHOT_REVALIDATE, "false");
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		cache.getXml("one");
+		cache.getXml("two");
+		assertEquals(2, cache.writeSnapshot());
+		
+		XmlCacheUtility restarted = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource();
+		restarted.addXmlCacheSource(source);
+		assertEquals(2, restarted.getCacheSize());
+		assertEquals("two", restarted.getXml("two").getDomNode().getFirstChild().getLocalName());
+		assertEquals(0, source.reads);
+		file.delete();
+	}
+
+	public void testSnapshotKeepsEntriesMissingFromSources() throws Exception {
+		File file = new File(System.getProperty("java.io.tmpdir"), "xmlcache-snapshot-missing-test.dat");
+		file.delete();
+		
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_SNAPSHOT_FILE, file.getPath());
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		cache.getXml("one");
+		assertEquals(1, cache.writeSnapshot());
+		cache.shutdown();
+		
+		// Revalidated against no sources at all, it is kept until it expires
+		XmlCacheUtility restarted = new XmlCacheUtility(properties) {};
+		Thread.sleep(500);
+		assertEquals(1, restarted.getCacheSize());
+		assertEquals("one", restarted.getXml("one").getDomNode().getFirstChild().getLocalName());
+		restarted.shutdown();
+		file.delete();
+	}
+	
+	private static volatile long clock;
+
+	public void testSnapshotKeepsDeadline() throws Exception {
+		File file = new File(System.getProperty("java.io.tmpdir"), "xmlcache-snapshot-deadline-test.dat");
+		file.delete();
+		
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_SNAPSHOT_FILE, file.getPath());
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_SNAPSHOT_REVALIDATE, "false");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_EXPIRY, "1000");
+		
+		clock = 1000000;
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {
+			protected long currentTimeMillis() {
+				return clock;
+			}
+		};
+		cache.addXmlCacheSource(new CountingSource());
+		cache.getXml("one");
+		assertEquals(1, cache.writeSnapshot());
+		cache.shutdown();
+		
+		// Restored before the entry expires, it still expires on time
+		clock = 1000500;
+		XmlCacheUtility restarted = new XmlCacheUtility(properties) {
+			protected long currentTimeMillis() {
+				return clock;
+			}
+		};
+		CountingSource source = new CountingSource();
+		restarted.addXmlCacheSource(source);
+		assertEquals(1, restarted.getCacheSize());
+		restarted.getXml("one");
+		assertEquals(0, source.reads);
+		clock = 1001500;
+		restarted.getXml("one");
+		assertEquals(1, source.reads);
+		restarted.shutdown();
+		
+		// Restored after the entry expired, it is not restored at all
+		clock = 1000000;
+		assertEquals(1, cache.writeSnapshot());
+		clock = 1001500;
+		XmlCacheUtility late = new XmlCacheUtility(properties) {
+			protected long currentTimeMillis() {
+				return clock;
+			}
+		};
+		assertEquals(0, late.getCacheSize());
+		late.shutdown();
+		file.delete();
+	}
+
+	public void testGenerationSwap() throws Exception {
+		XmlCacheUtility cache = new XmlCacheUtility(new Properties()) {};
+		cache.addXmlCacheSource(new CountingSource());
+		cache.getXml("one");
+		assertEquals(0L, cache.getGenerationId());
+		assertFalse(cache.swapGeneration());
+		
+		List <XmlCacheSource> sources = new ArrayList <XmlCacheSource> ();
+		sources.add(new XmlCacheSource() {
+			public XmlObject readSource(String key) {
+				try {
+					return XmlObject.Factory.parse("<" + key + "-new/>");
+				} catch (XmlException e) {
+					return null;
+				}
+			}
+			public void configure(Properties configuration, String base) {
+			}
+		});
+		assertEquals(Integer.valueOf(1), cache.buildGeneration(sources, Collections.singleton("one")).get());
+		assertEquals("one", cache.getXml("one").getDomNode().getFirstChild().getLocalName());
+		
+		assertTrue(cache.swapGeneration());
+		assertEquals(1L, cache.getGenerationId());
+		assertEquals("one-new", cache.getXml("one").getDomNode().getFirstChild().getLocalName());
+		
+		assertTrue(cache.rollbackGeneration());
+		assertEquals(0L, cache.getGenerationId());
+		assertEquals("one", cache.getXml("one").getDomNode().getFirstChild().getLocalName());
+		assertFalse(cache.rollbackGeneration());
+	}
+
+	public void testRegions() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_REGIONS, "pricing, codes");
+		properties.setProperty("region.pricing.cache.expiry", "5");
+		properties.setProperty("region.codes.cache.maxentries", "1");
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {
+			{ createRegions(); }
+		};
+		assertNull(cache.getRegion("other"));
+		XmlCacheUtility pricing = cache.getRegion("pricing");
+		XmlCacheUtility codes = cache.getRegion("codes");
+		CountingSource prices = new CountingSource();
+		pricing.addXmlCacheSource(prices);
+		codes.addXmlCacheSource(new CountingSource());
+		
+		pricing.getXml("price");
+		Thread.sleep(20);
+		pricing.getXml("price");
+		assertEquals(2, prices.reads);
+		
+		codes.getXml("a");
+		codes.getXml("b");
+		assertEquals(1, codes.getCacheSize());
+		assertEquals(0, cache.getCacheSize());
+	}
+
+	public void testRegionDropped() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_REGIONS, "pricing, codes");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {
+			{ createRegions(); }
+			
+			@Override
+			public synchronized void reconfigure(Properties updated) {
+				super.reconfigure(updated);
+				createRegions();
+			}
+		};
+		assertNotNull(cache.getRegion("codes"));
+		
+		Properties updated = new Properties();
+		updated.setProperty(XmlCacheUtility.CFGKEY_CACHE_REGIONS, "pricing");
+		cache.reconfigure(updated);
+		assertNotNull(cache.getRegion("pricing"));
+		assertNull(cache.getRegion("codes"));
+	}
+
+	public void testWeightLimit() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_MAXWEIGHT, "100");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		
+		cache.getXml("a");
+		long weight = cache.getCacheWeight();
+		assertTrue(weight > 0);
+		
+		int i = 0;
+		while (cache.getCacheWeight() + weight <= 100) {
+			cache.getXml("b" + i++);
+		}
+		int size = cache.getCacheSize();
+		cache.getXml("c");
+		assertEquals(size, cache.getCacheSize());
+		assertTrue(cache.getCacheWeight() <= 100);
+	}
+
+	public void testAsyncRefresh() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_EXPIRY, "5");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_REFRESH, "async");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(source);
+		
+		cache.getXml("a");
+		Thread.sleep(20);
+		assertEquals("a", cache.getXml("a").getDomNode().getFirstChild().getLocalName());
+		for (int i = 0; i < 100 && source.reads < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, source.reads);
+	}
+
+	public void testExpiryPolicies() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_EXPIRY, "5");
+		properties.setProperty("expiry.static.prefix", "static");
+		properties.setProperty("expiry.static.ttl", "-1");
+		properties.setProperty("expiry.hourly.pattern", "h.*ly");
+		properties.setProperty("expiry.hourly.ttl", "3600000");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(source);
+		
+		cache.getXml("staticCodes");
+		cache.getXml("hourly");
+		cache.getXml("volatile");
+		Thread.sleep(20);
+		cache.getXml("staticCodes");
+		cache.getXml("hourly");
+		cache.getXml("volatile");
+		assertEquals(4, source.reads);
+	}
+
+	public void testSourceExpiry() throws Exception {
+		XmlCacheUtility cache = new XmlCacheUtility(new Properties()) {};
+		final CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(new XmlCacheExpirySource() {
+			public XmlObject readSource(String key) {
+				return source.readSource(key);
+			}
+			public long getExpiry(String key) {
+				return key.equals("short") ? 5 : XmlCacheUtility.EXPIRY_DEFAULT;
+			}
+			public void configure(Properties configuration, String base) {
+			}
+		});
+		
+		cache.getXml("short");
+		cache.getXml("long");
+		Thread.sleep(20);
+		cache.getXml("short");
+		cache.getXml("long");
+		assertEquals(3, source.reads);
+	}
+
+	public void testReconfigure() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("source.counting.class", CountingSource.class.getName());
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.getXml("a");
+		cache.getXml("b");
+		cache.getXml("c");
+		
+		Properties updated = new Properties();
+		updated.putAll(properties);
+		updated.setProperty(XmlCacheUtility.CFGKEY_CACHE_MAXENTRIES, "2");
+		updated.setProperty("expiry.c.prefix", "c");
+		updated.setProperty("expiry.c.ttl", "5");
+		cache.reconfigure(updated);
+		assertEquals(2, cache.getCacheSize());
+		Thread.sleep(20);
+		
+		updated.remove("source.counting.class");
+		cache.reconfigure(updated);
+		cache.getXml("b");
+		try {
+			cache.getXml("c");
+			fail("Expired entry was not reloaded from the removed source");
+		} catch (XmlCacheException e) {
+			// Expected
+		}
+	}
+
+	public void testPerThreadCache() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L0_SIZE, "4");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(source);
+		
+		XmlObject xml = cache.getXml("a");
+		assertSame(xml, cache.getXml("a"));
+		assertEquals(1, source.reads);
+		
+		XmlObject other = cache.getXml("b");
+		cache.invalidate("a");
+		assertNotSame(xml, cache.getXml("a"));
+		assertEquals(3, source.reads);
+		// Other keys are still served from the thread's own cache
+		assertSame(other, cache.getXml("b"));
+		
+		cache.clearLocalCaches();
+		assertSame(other, cache.getXml("b"));
+		assertEquals(3, source.reads);
+	}
+
+	public void testPerThreadCacheHitsKeepEntriesWarm() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L0_SIZE, "4");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_COLD_THRESHOLD, "50");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_COLD_SWEEP, "3600000");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		
+		XmlObject xml = cache.getXml("a");
+		for (int i = 0; i < 10; i++) {
+			Thread.sleep(10);
+			assertSame(xml, cache.getXml("a"));
+		}
+		assertEquals(0, cache.compressColdEntries());
+	}
+
+	public void testReadOnly() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_READONLY, "true");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(source);
+		
+		XmlObject copy = cache.getXmlCopy("a");
+		copy.newCursor().setTextValue("changed");
+		XmlObject xml = cache.getXml("a");
+		assertSame(xml, cache.getXml("a"));
+		
+		XmlCursor cursor = xml.newCursor();
+		cursor.toFirstChild();
+		cursor.setTextValue("changed");
+		cursor.dispose();
+		// The modified XML is discarded and reloaded for the caller
+		XmlObject reloaded = cache.getXml("a");
+		assertNotSame(xml, reloaded);
+		cursor = reloaded.newCursor();
+		cursor.toFirstChild();
+		assertEquals("", cursor.getTextValue());
+		cursor.dispose();
+		assertSame(reloaded, cache.getXml("a"));
+		assertEquals(2, source.reads);
+	}
+
+	public void testXmlFragment() throws Exception {
+		XmlCacheUtility cache = new XmlCacheUtility(new Properties()) {};
+		cache.addXmlCacheSource(new CountingSource("<codes><code id='A'>Alpha</code><code id='B'>Beta</code></codes>"));
+		
+		XmlObject[] selected = cache.getXmlFragment("codes", "$this//code");
+		assertEquals(2, selected.length);
+		assertEquals("Beta", selected[1].newCursor().getTextValue());
+		assertSame(selected[1], cache.getXmlFragment("codes", "$this//code")[1]);
+		
+		cache.invalidate("codes");
+		assertNotSame(selected[1], cache.getXmlFragment("codes", "$this//code")[1]);
+		
+		try {
+			cache.getXmlFragment("codes", "//code[");
+			fail("Invalid XPath was accepted");
+		} catch (XmlCacheException e) {
+			// Expected
+		}
+	}
+
+	public void testIndexLookup() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("index.code.prefix", "codes");
+		properties.setProperty("index.code.records", "$this//code");
+		properties.setProperty("index.code.key", "@id");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource("<codes><code id='A'>Alpha</code><code id='B'>Beta</code></codes>"));
+		
+		XmlObject record = cache.lookup("codes", "code", "B");
+		assertEquals("Beta", record.newCursor().getTextValue());
+		assertSame(record, cache.lookup("codes", "code", "B"));
+		assertNull(cache.lookup("codes", "code", "C"));
+		
+		cache.invalidate("codes");
+		assertNotSame(record, cache.lookup("codes", "code", "B"));
+		
+		try {
+			cache.lookup("other", "code", "B");
+			fail("Index was used for a key it is not defined for");
+		} catch (XmlCacheException e) {
+			// Expected
+		}
+	}
+
+	public void testProjection() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("projection.catalog.prefix", "catalog");
+		properties.setProperty("projection.catalog.paths", "$this/catalog/header;$this//price");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource("<catalog xmlns:x='urn:x' v='1' x:id='c'><header v='1'>h</header>"
+				+ "<item><name>a</name><price>1</price></item>"
+				+ "<item><name>b</name><price>2</price></item></catalog>"));
+		
+		XmlObject projected = cache.getXml("catalog");
+		assertEquals(0, projected.selectPath("$this//name").length);
+		assertEquals(2, projected.selectPath("$this/catalog/price").length);
+		assertEquals(1, projected.selectPath("$this/catalog/header").length);
+		assertEquals(1, projected.selectPath("$this/catalog/@v").length);
+		assertEquals(1, projected.selectPath("declare namespace x='urn:x'; $this/catalog/@x:id").length);
+		XmlCursor cursor = projected.newCursor();
+		cursor.toFirstChild();
+		assertEquals("urn:x", cursor.namespaceForPrefix("x"));
+		cursor.dispose();
+		
+		XmlObject whole = cache.getXml("other");
+		assertEquals(2, whole.selectPath("$this//name").length);
+	}
+
+	public void testSchemaTypes() throws Exception {
+		File xsd = File.createTempFile("xmlcache-order", ".xsd");
+		FileOutputStream out = new FileOutputStream(xsd);
+		out.write(("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:order'"
+				+ " elementFormDefault='qualified'><xs:element name='order'><xs:complexType><xs:sequence>"
+				+ "<xs:element name='qty' type='xs:int'/></xs:sequence></xs:complexType></xs:element>"
+				+ "</xs:schema>").getBytes("UTF-8"));
+		out.close();
+		
+		Properties properties = new Properties();
+		properties.setProperty("cache.schema.files", xsd.getPath());
+		properties.setProperty("cache.schema.validate", "true");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource("<order xmlns='urn:order'><qty>three</qty></order>") {
+			protected String getText(String key) {
+				return "good".equals(key) ? "<order xmlns='urn:order'><qty>3</qty></order>" : super.getText(key);
+			}
+		});
+		xsd.delete();
+		
+		XmlObject xml = cache.getXml("good");
+		assertTrue(xml.schemaType().isDocumentType());
+		assertEquals(new QName("urn:order", "order"), xml.schemaType().getDocumentElementName());
+		assertSame(xml, cache.getXml("good"));
+		
+		try {
+			cache.getXml("bad");
+			fail("Invalid XML was cached");
+		} catch (XmlCacheException e) {
+			// Expected
+		}
+	}
+
+	public void testSharedContent() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("cache.dedup", "true");
+		properties.setProperty("cache.maxweight", "1000000");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource("<text>bonjour</text>") {
+			protected String getText(String key) {
+				return key.startsWith("en") ? "<text>hello</text>" : super.getText(key);
+			}
+		};
+		cache.addXmlCacheSource(source);
+		
+		XmlObject en = cache.getXml("en-web");
+		assertSame(en, cache.getXml("en-mobile"));
+		assertNotSame(en, cache.getXml("fr-web"));
+		assertEquals(2, cache.getSharedContentCount());
+		// Raw bytes are hashed so the documents are not parsed by the source
+		assertEquals(0, source.reads);
+		assertEquals(3, source.rawReads);
+		// Shared content is weighed once
+		assertEquals("<text>hello</text>".length() + "<text>bonjour</text>".length(), cache.getCacheWeight());
+		
+		cache.invalidate("en-web");
+		assertSame(en, cache.getXml("en-mobile"));
+		assertEquals(2, cache.getSharedContentCount());
+		assertEquals("<text>hello</text>".length() + "<text>bonjour</text>".length(), cache.getCacheWeight());
+		
+		cache.invalidate("en-mobile");
+		assertEquals(1, cache.getSharedContentCount());
+		assertNotSame(en, cache.getXml("en-web"));
+	}
+
+	public void testSharedLazyContent() throws Exception {
+		File file = new File(System.getProperty("java.io.tmpdir"), "xmlcache-snapshot-shared-test.dat");
+		file.delete();
+		
+		Properties properties = new Properties();
+		properties.setProperty("cache.dedup", "true");
+		properties.setProperty("cache.lazy", "true");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_SNAPSHOT_FILE, file.getPath());
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource("<text>hello</text>"));
+		
+		assertTrue(cache.preload("en-web"));
+		assertTrue(cache.preload("en-mobile"));
+		assertEquals(1, cache.getSharedContentCount());
+		// Parsing one key leaves the raw bytes for the keys sharing them
+		XmlObject en = cache.getXml("en-web");
+		assertEquals(2, cache.writeSnapshot());
+		assertSame(en, cache.getXml("en-mobile"));
+		cache.shutdown();
+		file.delete();
+	}
+
+	public void testInvalidShedFraction() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("cache.memory.levels", "0.9");
+		properties.setProperty("cache.memory.shed", "1.0");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		for (int i = 0; i < 20; i++) {
+			cache.getXml("k" + i);
+		}
+		
+		// The default fraction is kept
+		assertEquals(5, cache.shed());
+		assertFalse(cache.growBack());
+		assertEquals(0, cache.getPressureLimit());
+		cache.shutdown();
+	}
+
+	public void testMemoryPressure() throws Exception {
+		XmlCacheUtility cache = new XmlCacheUtility(new Properties()) {};
+		cache.addXmlCacheSource(new CountingSource());
+		for (int i = 0; i < 20; i++) {
+			cache.getXml("k" + i);
+		}
+		
+		assertEquals(5, cache.shed());
+		assertEquals(15, cache.getPressureLimit());
+		cache.getXml("k0");
+		cache.getXml("extra");
+		assertEquals(15, cache.getCacheSize());
+		
+		assertEquals(4, cache.shed());
+		assertEquals(11, cache.getPressureLimit());
+		
+		assertTrue(cache.growBack());
+		assertEquals(16, cache.getPressureLimit());
+		assertFalse(cache.growBack());
+		assertEquals(0, cache.getPressureLimit());
+		for (int i = 0; i < 20; i++) {
+			cache.getXml("k" + i);
+		}
+		assertEquals(21, cache.getCacheSize());
+	}
+
+	public void testTopKeys() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("cache.statistics.topk", "2");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		for (int i = 0; i < 10; i++) {
+			cache.getXml("hot");
+		}
+		for (int i = 0; i < 5; i++) {
+			cache.getXml("warm");
+		}
+		for (int i = 0; i < 20; i++) {
+			cache.getXml("cold" + i);
+		}
+		
+		List <XmlCacheHeavyHitters.Count> top = cache.getTopRequestedKeys();
+		assertEquals(2, top.size());
+		assertEquals("hot", top.get(0).getKey());
+		assertEquals(10, top.get(0).getTotal());
+		assertEquals("warm", top.get(1).getKey());
+		assertEquals(2, cache.getTopMissedKeys().size());
+		assertEquals(1, cache.getTopMissedKeys().get(0).getTotal());
+		
+		cache.resetStatistics();
+		assertTrue(cache.getTopRequestedKeys().isEmpty());
+	}
+
+	public void testTracing() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("cache.trace.rate", "0.5");
+		properties.setProperty("cache.trace.keep", "3");
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		
+		for (int i = 0; i < 10; i++) {
+			cache.getXml("traced");
+		}
+		
+		XmlCacheTracer tracer = cache.getTracer();
+		assertEquals(Long.valueOf(5), tracer.getCounts().get("total"));
+		assertEquals(Long.valueOf(5), tracer.getCounts().get("lookup"));
+		assertEquals(3, cache.getRecentTraces().size());
+		assertTrue(cache.getRecentTraces().get(0).startsWith("TRACE traced:"));
+		assertTrue(tracer.getPercentile("total", 99) >= tracer.getPercentile("total", 50));
+		assertEquals(-1, tracer.getPercentile("unknown", 50));
+		assertTrue(cache.getTraceHistogramString().contains("lookup COUNT=5"));
+		
+		// A reload that leaves tracing alone keeps what has been traced
+		cache.reconfigure((Properties) properties.clone());
+		assertSame(tracer, cache.getTracer());
+		properties.setProperty("cache.trace.keep", "4");
+		cache.reconfigure((Properties) properties.clone());
+		assertNotSame(tracer, cache.getTracer());
+	}
+
 }
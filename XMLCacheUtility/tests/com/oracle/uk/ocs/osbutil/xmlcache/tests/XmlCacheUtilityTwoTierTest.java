@@ -0,0 +1,145 @@
+package com.oracle.uk.ocs.osbutil.xmlcache.tests;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheException;
+import com.oracle.uk.ocs.osbutil.xmlcache.XmlCacheUtility;
+
+public class XmlCacheUtilityTwoTierTest extends TestCase {
+	
+	public void testEvictAndPromote() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_MAXENTRIES, "1");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2, "true");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2_DIR,
+				new File(System.getProperty("java.io.tmpdir"), "xmlcache-l2-tier").getPath());
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(source);
+		
+		cache.getXml("a");
+		cache.getXml("b");
+		assertEquals(1, cache.getCacheSize());
+		assertEquals(1, cache.getL2Size());
+		
+		assertEquals("a", cache.getXml("a").getDomNode().getFirstChild().getLocalName());
+		assertEquals(2, source.reads);
+		assertEquals(1L, cache.getL2HitTotal());
+		assertEquals(1, cache.getL2Size());
+	}
+	
+	public void testGenerationIncludesL2() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_MAXENTRIES, "1");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2, "true");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2_DIR,
+				new File(System.getProperty("java.io.tmpdir"), "xmlcache-l2-generation").getPath());
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		cache.getXml("a");
+		cache.getXml("b");
+		assertEquals(1, cache.getL2Size());
+		
+		Properties sources = new Properties();
+		sources.setProperty("source.count.class", CountingSource.class.getName());
+		assertEquals(Integer.valueOf(2), cache.buildGeneration(sources).get());
+		assertTrue(cache.swapGeneration());
+		// Entries of the old generation are not promoted into the new one
+		assertEquals(0, cache.getL2Size());
+		assertEquals(0L, cache.getL2HitTotal());
+	}
+	
+	public void testInvalidateDuringDemotion() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_MAXENTRIES, "1");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2, "true");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2_DIR,
+				new File(System.getProperty("java.io.tmpdir"), "xmlcache-l2-invalidate").getPath());
+		
+		final CountDownLatch demoting = new CountDownLatch(1);
+		final XmlCacheUtility cache = new XmlCacheUtility(properties) {
+			@Override
+			protected void evicted(String key, XmlCacheEntry entry) {
+				demoting.countDown();
+				try {
+					// Give the invalidation every chance to overtake the demotion
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.evicted(key, entry);
+			}
+		};
+		CountingSource source = new CountingSource();
+		cache.addXmlCacheSource(source);
+		cache.getXml("a");
+		
+		Thread invalidator = new Thread() {
+			@Override
+			public void run() {
+				try {
+					demoting.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				cache.invalidate("a");
+			}
+		};
+		invalidator.start();
+		cache.getXml("b");
+		invalidator.join();
+		
+		// The invalidation is applied after the demotion, not lost before it
+		assertEquals(0, cache.getL2Size());
+		cache.getXml("a");
+		assertEquals(3, source.reads);
+		assertEquals(0L, cache.getL2HitTotal());
+	}
+	
+	public void testEvictedEntryLeavesL0() throws XmlCacheException {
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_MAXENTRIES, "1");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L0_SIZE, "4");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2, "true");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2_DIR,
+				new File(System.getProperty("java.io.tmpdir"), "xmlcache-l2-l0").getPath());
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		cache.getXml("a");
+		cache.getXml("b");
+		
+		// Evicted to L2, so no longer served from the per-thread cache
+		cache.getXml("a");
+		assertEquals(1L, cache.getL2HitTotal());
+	}
+	
+	public void testShutdownDeletesSegments() throws XmlCacheException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "xmlcache-l2-shutdown");
+		Properties properties = new Properties();
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_MAXENTRIES, "1");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2, "true");
+		properties.setProperty(XmlCacheUtility.CFGKEY_CACHE_L2_DIR, dir.getPath());
+		
+		XmlCacheUtility cache = new XmlCacheUtility(properties) {};
+		cache.addXmlCacheSource(new CountingSource());
+		cache.getXml("a");
+		cache.getXml("b");
+		assertEquals(1, dir.list().length);
+		
+		cache.shutdown();
+		assertEquals(0, dir.list().length);
+		assertEquals(0, cache.getL2Size());
+		
+		// Still readable, but no longer demoted
+		cache.getXml("a");
+		assertEquals(0, dir.list().length);
+	}
+	
+}